@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.core.digest;
+
+import java.security.MessageDigest;
+import java.util.zip.CRC32;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * The CRC-32 checksum as a message digest.
+ * This message digest cannot get cloned because {@link CRC32} cannot.
+ *
+ * @see    FingerprintProvider
+ * @author Christian Schlichtherle
+ */
+@NotThreadSafe
+public final class Crc32Digest extends MessageDigest {
+
+    private final CRC32 crc = new CRC32();
+
+    public Crc32Digest() { super("CRC32"); }
+
+    @Override protected int engineGetDigestLength() { return 4; }
+
+    @Override protected void engineUpdate(byte input) { crc.update(input); }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        crc.update(input, offset, len);
+    }
+
+    @Override protected byte[] engineDigest() {
+        final int value = (int) crc.getValue();
+        crc.reset();
+        return new byte[] {
+            (byte) (value >>> 24), (byte) (value >>> 16),
+            (byte) (value >>> 8), (byte) value
+        };
+    }
+
+    @Override protected void engineReset() { crc.reset(); }
+}
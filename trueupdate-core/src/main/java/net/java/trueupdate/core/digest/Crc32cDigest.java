@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.core.digest;
+
+import java.security.MessageDigest;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * The CRC-32C (Castagnoli) checksum as a message digest.
+ * This implementation uses the slicing-by-8 algorithm.
+ *
+ * @see    FingerprintProvider
+ * @author Christian Schlichtherle
+ */
+@NotThreadSafe
+public final class Crc32cDigest extends MessageDigest implements Cloneable {
+
+    /** The reflected polynomial. */
+    private static final int POLY = 0x82f63b78;
+
+    private static final int[][] TABLES = new int[8][256];
+
+    static {
+        final int[] t0 = TABLES[0];
+        for (int i = 0; i < 256; i++) {
+            int c = i;
+            for (int k = 0; k < 8; k++)
+                c = 0 != (c & 1) ? c >>> 1 ^ POLY : c >>> 1;
+            t0[i] = c;
+        }
+        for (int i = 0; i < 256; i++)
+            for (int t = 1; t < 8; t++)
+                TABLES[t][i] = TABLES[t - 1][i] >>> 8
+                        ^ t0[TABLES[t - 1][i] & 0xff];
+    }
+
+    private int crc = ~0;
+
+    public Crc32cDigest() { super("CRC32C"); }
+
+    @Override protected int engineGetDigestLength() { return 4; }
+
+    @Override protected void engineUpdate(byte input) {
+        crc = crc >>> 8 ^ TABLES[0][(crc ^ input) & 0xff];
+    }
+
+    @Override
+    protected void engineUpdate(final byte[] b, int off, int len) {
+        final int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2],
+                t3 = TABLES[3], t4 = TABLES[4], t5 = TABLES[5],
+                t6 = TABLES[6], t7 = TABLES[7];
+        int c = crc;
+        for (; 8 <= len; off += 8, len -= 8) {
+            final int lo = c ^ (b[off] & 0xff
+                    | (b[off + 1] & 0xff) << 8
+                    | (b[off + 2] & 0xff) << 16
+                    | (b[off + 3] & 0xff) << 24);
+            c = t7[lo & 0xff] ^ t6[lo >>> 8 & 0xff]
+                    ^ t5[lo >>> 16 & 0xff] ^ t4[lo >>> 24]
+                    ^ t3[b[off + 4] & 0xff] ^ t2[b[off + 5] & 0xff]
+                    ^ t1[b[off + 6] & 0xff] ^ t0[b[off + 7] & 0xff];
+        }
+        for (; 0 < len; off++, len--)
+            c = c >>> 8 ^ t0[(c ^ b[off]) & 0xff];
+        crc = c;
+    }
+
+    @Override protected byte[] engineDigest() {
+        final int value = ~crc;
+        crc = ~0;
+        return new byte[] {
+            (byte) (value >>> 24), (byte) (value >>> 16),
+            (byte) (value >>> 8), (byte) value
+        };
+    }
+
+    @Override protected void engineReset() { crc = ~0; }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.core.digest;
+
+import java.security.Provider;
+
+/**
+ * Provides fast, non-cryptographic fingerprints as message digest
+ * algorithms.
+ * These fingerprints detect accidental changes only, so they are suitable
+ * for integrity checks, but not for authenticity checks.
+ * The following algorithms are provided:
+ * <ul>
+ * <li>{@code CRC32}: The CRC-32 checksum as used in ZIP files (4 bytes).
+ * <li>{@code CRC32C}: The CRC-32C (Castagnoli) checksum (4 bytes).
+ * <li>{@code XXHASH64}: The 64 bit xxHash with seed zero (8 bytes).
+ * </ul>
+ * The value of each fingerprint is encoded in big-endian order.
+ * <p>
+ * {@link net.java.trueupdate.core.io.MessageDigests#create} uses this
+ * provider if no installed provider implements the requested algorithm.
+ *
+ * @author Christian Schlichtherle
+ */
+public final class FingerprintProvider extends Provider {
+
+    private static final long serialVersionUID = 0L;
+
+    public FingerprintProvider() {
+        super("TrueUpdate", 1.0,
+                "TrueUpdate fingerprints (CRC32, CRC32C, XXHASH64)");
+        put("MessageDigest.CRC32", Crc32Digest.class.getName());
+        put("MessageDigest.CRC32C", Crc32cDigest.class.getName());
+        put("MessageDigest.XXHASH64", XxHash64Digest.class.getName());
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.core.digest;
+
+import java.security.MessageDigest;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * The 64 bit xxHash with seed zero as a message digest.
+ *
+ * @see    FingerprintProvider
+ * @author Christian Schlichtherle
+ */
+@NotThreadSafe
+public final class XxHash64Digest extends MessageDigest implements Cloneable {
+
+    private static final long P1 = 0x9e3779b185ebca87L;
+    private static final long P2 = 0xc2b2ae3d27d4eb4fL;
+    private static final long P3 = 0x165667b19e3779f9L;
+    private static final long P4 = 0x85ebca77c2b2ae63L;
+    private static final long P5 = 0x27d4eb2f165667c5L;
+
+    private long v1, v2, v3, v4, total;
+    private byte[] buffer = new byte[32];
+    private int buffered;
+
+    public XxHash64Digest() {
+        super("XXHASH64");
+        engineReset();
+    }
+
+    @Override protected int engineGetDigestLength() { return 8; }
+
+    @Override protected void engineUpdate(byte input) {
+        engineUpdate(new byte[] { input }, 0, 1);
+    }
+
+    @Override
+    protected void engineUpdate(final byte[] b, int off, int len) {
+        total += len;
+        if (0 < buffered) {
+            final int fill = Math.min(32 - buffered, len);
+            System.arraycopy(b, off, buffer, buffered, fill);
+            buffered += fill;
+            off += fill;
+            len -= fill;
+            if (32 > buffered) return;
+            stripe(buffer, 0);
+            buffered = 0;
+        }
+        for (; 32 <= len; off += 32, len -= 32) stripe(b, off);
+        System.arraycopy(b, off, buffer, 0, len);
+        buffered = len;
+    }
+
+    private void stripe(final byte[] b, final int off) {
+        v1 = round(v1, long64(b, off));
+        v2 = round(v2, long64(b, off + 8));
+        v3 = round(v3, long64(b, off + 16));
+        v4 = round(v4, long64(b, off + 24));
+    }
+
+    @Override protected byte[] engineDigest() {
+        long h;
+        if (32 <= total) {
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7)
+                    + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = merge(h, v1);
+            h = merge(h, v2);
+            h = merge(h, v3);
+            h = merge(h, v4);
+        } else {
+            h = P5;
+        }
+        h += total;
+        final byte[] b = buffer;
+        int off = 0;
+        for (; off + 8 <= buffered; off += 8)
+            h = Long.rotateLeft(h ^ round(0, long64(b, off)), 27) * P1 + P4;
+        if (off + 4 <= buffered) {
+            h = Long.rotateLeft(h ^ (int32(b, off) & 0xffffffffL) * P1, 23)
+                    * P2 + P3;
+            off += 4;
+        }
+        for (; off < buffered; off++)
+            h = Long.rotateLeft(h ^ (b[off] & 0xff) * P5, 11) * P1;
+        h ^= h >>> 33;
+        h *= P2;
+        h ^= h >>> 29;
+        h *= P3;
+        h ^= h >>> 32;
+        engineReset();
+        final byte[] digest = new byte[8];
+        for (int i = 8; 0 <= --i; h >>>= 8) digest[i] = (byte) h;
+        return digest;
+    }
+
+    @Override protected void engineReset() {
+        v1 = P1 + P2;
+        v2 = P2;
+        v3 = 0;
+        v4 = -P1;
+        total = 0;
+        buffered = 0;
+    }
+
+    @Override public Object clone() throws CloneNotSupportedException {
+        final XxHash64Digest clone = (XxHash64Digest) super.clone();
+        clone.buffer = buffer.clone();
+        return clone;
+    }
+
+    private static long round(long acc, final long input) {
+        acc += input * P2;
+        return Long.rotateLeft(acc, 31) * P1;
+    }
+
+    private static long merge(final long acc, final long v) {
+        return (acc ^ round(0, v)) * P1 + P4;
+    }
+
+    private static long long64(final byte[] b, final int off) {
+        return int32(b, off) & 0xffffffffL | (long) int32(b, off + 4) << 32;
+    }
+
+    private static int int32(final byte[] b, final int off) {
+        return b[off] & 0xff | (b[off + 1] & 0xff) << 8
+                | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24;
+    }
+}
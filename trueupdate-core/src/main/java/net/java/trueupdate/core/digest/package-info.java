@@ -0,0 +1,11 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+/**
+ * Provides fast, non-cryptographic fingerprints as message digests.
+ *
+ * @author Christian Schlichtherle
+ */
+@javax.annotation.ParametersAreNonnullByDefault @javax.annotation.Nonnull
+package net.java.trueupdate.core.digest;
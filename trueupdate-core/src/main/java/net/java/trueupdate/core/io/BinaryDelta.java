@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.core.io;
+
+import java.io.*;
+import javax.annotation.WillNotClose;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Provides functions for encoding and decoding binary deltas.
+ * A binary delta is a sequence of instructions in the style of VCDIFF which
+ * reconstitute a target from a source:
+ * <ul>
+ * <li>{@code ADD length bytes...} appends the given bytes to the target.
+ * <li>{@code COPY offset length} appends the given region of the source to
+ *     the target.
+ * <li>{@code END} terminates the sequence.
+ * </ul>
+ * All numbers are encoded as unsigned variable length integers with seven
+ * bits per byte, least significant group first.
+ * <p>
+ * The encoder finds matches by indexing the source in blocks of
+ * {@value #BLOCK_SIZE} bytes and scanning the target with a rolling hash,
+ * so it finds insertions and deletions, not just modifications in place.
+ * Both the encoder and the decoder require the source to fit into memory.
+ *
+ * @author Christian Schlichtherle
+ */
+@Immutable
+public final class BinaryDelta {
+
+    /** The size of the blocks for indexing the source, which is {@value}. */
+    public static final int BLOCK_SIZE = 16;
+
+    /**
+     * The maximum size of the source or target which is supported by this
+     * class, which is {@value}.
+     */
+    public static final int MAX_SIZE = 64 * 1024 * 1024;
+
+    private static final int END = 0, ADD = 1, COPY = 2;
+
+    private static final int PRIME = 31, POWER = power(PRIME, BLOCK_SIZE - 1);
+
+    private BinaryDelta() { }
+
+    private static int power(int base, int exponent) {
+        int result = 1;
+        while (0 <= --exponent) result *= base;
+        return result;
+    }
+
+    /**
+     * Encodes the binary delta which reconstitutes the given target from the
+     * given source and writes it to the given output stream.
+     *
+     * @param source the source data.
+     * @param target the target data.
+     * @param out the output stream for writing the binary delta.
+     */
+    public static void encode(
+            final byte[] source,
+            final byte[] target,
+            final @WillNotClose OutputStream out)
+    throws IOException {
+        final int n = source.length, m = target.length;
+        if (MAX_SIZE < n || MAX_SIZE < m) throw new IllegalArgumentException();
+
+        // Index the source in blocks.
+        final int blocks = n / BLOCK_SIZE;
+        final int[] table = new int[tableSize(blocks)];
+        final int mask = table.length - 1;
+        for (int block = blocks; 0 <= --block; ) {
+            final int offset = block * BLOCK_SIZE;
+            // Store offset + 1 so that zero means empty.
+            // Iterating backwards makes the first block win on collisions.
+            table[hash(source, offset) & mask] = offset + 1;
+        }
+
+        int pending = 0, i = 0;
+        int hash = m >= BLOCK_SIZE ? hash(target, 0) : 0;
+        while (i + BLOCK_SIZE <= m) {
+            final int offset = table[hash & mask] - 1;
+            if (0 <= offset && equal(source, offset, target, i, BLOCK_SIZE)) {
+                // Extend the match forwards and backwards.
+                int length = BLOCK_SIZE;
+                while (offset + length < n && i + length < m
+                        && source[offset + length] == target[i + length])
+                    length++;
+                int back = 0;
+                while (back < i - pending && back < offset
+                        && source[offset - back - 1] == target[i - back - 1])
+                    back++;
+                add(target, pending, i - back - pending, out);
+                copy(offset - back, length + back, out);
+                i += length;
+                pending = i;
+                if (i + BLOCK_SIZE <= m) hash = hash(target, i);
+            } else {
+                if (i + BLOCK_SIZE < m)
+                    hash = (hash - target[i] * POWER) * PRIME
+                            + target[i + BLOCK_SIZE];
+                i++;
+            }
+        }
+        add(target, pending, m - pending, out);
+        out.write(END);
+        out.flush();
+    }
+
+    /**
+     * Returns an input stream which reconstitutes the target by applying the
+     * binary delta from the given input stream to the given source.
+     *
+     * @param source the source data.
+     * @param delta the input stream for reading the binary delta.
+     *        Closing the returned input stream closes this input stream,
+     *        too.
+     */
+    public static InputStream decode(
+            final byte[] source,
+            final InputStream delta) {
+        return new DecoderInputStream(source, delta);
+    }
+
+    /**
+     * Reads the given source fully into a new byte array.
+     *
+     * @param source the source for reading the data.
+     * @param size the exact number of bytes to read or -1 if unknown.
+     * @throws IOException on any I/O error or if the data exceeds
+     *         {@link #MAX_SIZE}.
+     */
+    public static byte[] load(final Source source, final long size)
+    throws IOException {
+        if (MAX_SIZE < size)
+            throw new IOException("Data size exceeds maximum.");
+
+        class LoadTask implements InputTask<byte[], IOException> {
+            @Override public byte[] execute(final InputStream in) throws IOException {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream(
+                        0 <= size ? (int) size : Store.BUFSIZE);
+                final byte[] buffer = new byte[Store.BUFSIZE];
+                for (int read; 0 <= (read = in.read(buffer)); ) {
+                    if (MAX_SIZE - read < out.size())
+                        throw new IOException("Data size exceeds maximum.");
+                    out.write(buffer, 0, read);
+                }
+                return out.toByteArray();
+            }
+        } // LoadTask
+
+        return Sources.execute(new LoadTask()).on(source);
+    }
+
+    private static int tableSize(final int blocks) {
+        int size = 16;
+        while (size < 2 * blocks) size <<= 1;
+        return size;
+    }
+
+    private static int hash(final byte[] b, final int off) {
+        int hash = 0;
+        for (int i = off, end = off + BLOCK_SIZE; i < end; i++)
+            hash = hash * PRIME + b[i];
+        return hash;
+    }
+
+    private static boolean equal(
+            final byte[] a, int aOff,
+            final byte[] b, int bOff,
+            int length) {
+        while (0 <= --length)
+            if (a[aOff++] != b[bOff++]) return false;
+        return true;
+    }
+
+    private static void add(
+            final byte[] target,
+            final int off,
+            final int length,
+            final OutputStream out)
+    throws IOException {
+        if (0 >= length) return;
+        out.write(ADD);
+        writeNumber(length, out);
+        out.write(target, off, length);
+    }
+
+    private static void copy(
+            final int offset,
+            final int length,
+            final OutputStream out)
+    throws IOException {
+        out.write(COPY);
+        writeNumber(offset, out);
+        writeNumber(length, out);
+    }
+
+    private static void writeNumber(long value, final OutputStream out)
+    throws IOException {
+        while (0 != (value & ~0x7fL)) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /** Applies a binary delta to a source. */
+    private static final class DecoderInputStream extends FilterInputStream {
+
+        final byte[] source;
+
+        /** The current instruction. */
+        int instruction = -1;
+
+        /** The remaining length and the source offset of the instruction. */
+        long remaining, offset;
+
+        DecoderInputStream(final byte[] source, final InputStream delta) {
+            super(delta);
+            this.source = source;
+        }
+
+        @Override public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return 1 == read(b, 0, 1) ? b[0] & 0xff : -1;
+        }
+
+        @Override public int read(final byte[] b, final int off, final int len)
+        throws IOException {
+            if (0 == len) return 0;
+            while (0 >= remaining) {
+                if (END == instruction) return -1;
+                next();
+            }
+            final int max = (int) Math.min(len, remaining);
+            final int read;
+            if (ADD == instruction) {
+                read = in.read(b, off, max);
+                if (0 > read) throw new EOFException();
+            } else {
+                System.arraycopy(source, (int) offset, b, off, max);
+                offset += max;
+                read = max;
+            }
+            remaining -= read;
+            return read;
+        }
+
+        void next() throws IOException {
+            instruction = in.read();
+            switch (instruction) {
+                case END:
+                    remaining = 0;
+                    break;
+                case ADD:
+                    remaining = readNumber();
+                    break;
+                case COPY:
+                    offset = readNumber();
+                    remaining = readNumber();
+                    if (offset + remaining > source.length)
+                        throw new IOException("Invalid binary delta.");
+                    break;
+                case -1:
+                    throw new EOFException();
+                default:
+                    throw new IOException("Invalid binary delta.");
+            }
+        }
+
+        long readNumber() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final int b = in.read();
+                if (0 > b) throw new EOFException();
+                value |= (long) (b & 0x7f) << shift;
+                if (0 == (b & 0x80)) return value;
+            }
+            throw new IOException("Invalid binary delta.");
+        }
+
+        @Override public long skip(final long n) throws IOException {
+            final byte[] buffer = new byte[(int) Math.min(n, Store.BUFSIZE)];
+            long total = 0;
+            for (int read; total < n && 0 <= (read = read(buffer, 0,
+                    (int) Math.min(n - total, buffer.length))); )
+                total += read;
+            return total;
+        }
+
+        @Override public int available() { return 0; }
+
+        @Override public boolean markSupported() { return false; }
+    } // DecoderInputStream
+}
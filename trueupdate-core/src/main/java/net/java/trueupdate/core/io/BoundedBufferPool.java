@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.core.io;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A buffer pool which keeps a bounded number of FIFOs.
+ * Pooled FIFOs are strongly referenced, so they don't get cleared and
+ * reallocated under memory pressure.
+ * If the pool is empty, then a new FIFO gets allocated.
+ * If the pool is full, then a released FIFO gets discarded.
+ * A high ratio of misses to hits suggests to increase the pool size.
+ *
+ * @author Christian Schlichtherle
+ */
+@ThreadSafe
+public final class BoundedBufferPool implements BufferPool {
+
+    private final int fifoSize, bufferSize;
+    private final BlockingQueue<byte[][]> queue;
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+    /**
+     * Constructs a bounded buffer pool.
+     *
+     * @param poolSize the maximum number of FIFOs to keep in the pool.
+     * @param fifoSize the number of buffers in each FIFO.
+     *        A minimum of two buffers is required.
+     * @param bufferSize the size of each buffer in bytes.
+     */
+    public BoundedBufferPool(
+            final int poolSize,
+            final int fifoSize,
+            final int bufferSize) {
+        if (2 > (this.fifoSize = fifoSize)) throw new IllegalArgumentException();
+        if (0 >= (this.bufferSize = bufferSize))
+            throw new IllegalArgumentException();
+        this.queue = new ArrayBlockingQueue<>(poolSize);
+    }
+
+    @Override public byte[][] allocate() {
+        final byte[][] fifo = queue.poll();
+        if (null != fifo) {
+            hits.incrementAndGet();
+            return fifo;
+        }
+        misses.incrementAndGet();
+        return new byte[fifoSize][bufferSize];
+    }
+
+    @Override public void release(byte[][] fifo) {
+        queue.offer(fifo); // discard if the pool is full
+    }
+
+    /** Returns the number of FIFOs which have been reused from the pool. */
+    public long hits() { return hits.get(); }
+
+    /** Returns the number of FIFOs which have been newly allocated. */
+    public long misses() { return misses.get(); }
+
+    /** Returns the number of FIFOs which are currently in the pool. */
+    public int pooled() { return queue.size(); }
+
+    @Override public String toString() {
+        return String.format(
+                "%s[fifoSize=%d, bufferSize=%d, hits=%d, misses=%d, pooled=%d]",
+                getClass().getName(), fifoSize, bufferSize,
+                hits(), misses(), pooled());
+    }
+}
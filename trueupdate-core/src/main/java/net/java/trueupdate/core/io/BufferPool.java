@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.core.io;
+
+/**
+ * A strategy for pooling the FIFOs of I/O buffers which {@link Copy} uses
+ * to exchange data between a reader thread and a writer thread.
+ * Implementations need to be thread-safe.
+ *
+ * @see    Copy#bufferPool(BufferPool)
+ * @see    BoundedBufferPool
+ * @author Christian Schlichtherle
+ */
+public interface BufferPool {
+
+    /**
+     * Returns a FIFO of at least two I/O buffers with an equal, non-zero
+     * length.
+     * The caller owns the FIFO exclusively until it gets released.
+     */
+    byte[][] allocate();
+
+    /**
+     * Returns the given FIFO to this pool.
+     * The caller must not use the FIFO anymore.
+     */
+    void release(byte[][] fifo);
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.core.io;
+
+import edu.umd.cs.findbugs.annotations.CreatesObligation;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * A sink which can accept its binary data from a file channel.
+ * {@link Copy} uses this capability to transfer the data without copying it
+ * through the Java heap.
+ *
+ * @see    ChannelSource
+ * @author Christian Schlichtherle
+ */
+public interface ChannelSink extends Sink {
+
+    /**
+     * Returns a new file channel for writing the binary data to this sink.
+     * The channel is positioned at the start of the empty binary data.
+     */
+    @CreatesObligation FileChannel outputChannel() throws IOException;
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.core.io;
+
+import edu.umd.cs.findbugs.annotations.CreatesObligation;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * A source which can provide its binary data as a file channel.
+ * {@link Copy} uses this capability to transfer the data without copying it
+ * through the Java heap.
+ *
+ * @see    ChannelSink
+ * @author Christian Schlichtherle
+ */
+public interface ChannelSource extends Source {
+
+    /**
+     * Returns a new file channel for reading the binary data from this
+     * source.
+     */
+    @CreatesObligation FileChannel inputChannel() throws IOException;
+}
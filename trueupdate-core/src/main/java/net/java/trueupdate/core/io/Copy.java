@@ -7,12 +7,12 @@ package net.java.trueupdate.core.io;
 
 import javax.annotation.WillNotClose;
 import javax.annotation.concurrent.Immutable;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.lang.ref.Reference;
-import java.lang.ref.SoftReference;
-import java.util.Queue;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
 import java.util.concurrent.*;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
@@ -28,18 +28,91 @@ import static java.util.Objects.requireNonNull;
 @Immutable
 public final class Copy {
 
+    private static final String PREFIX = Copy.class.getName() + ".";
+
     /**
      * The size of the FIFO used for exchanging I/O buffers between a reader
-     * thread and a writer thread.
+     * thread and a writer thread in the default buffer pool.
      * A minimum of two elements is required.
-     * The actual number is optimized to compensate for oscillating I/O
+     * The default number is optimized to compensate for oscillating I/O
      * bandwidths like e.g. with network shares.
+     * The value can be set with the system property
+     * {@code net.java.trueupdate.core.io.Copy.fifoSize} and defaults to four.
+     */
+    static final int FIFO_SIZE =
+            Math.max(2, Integer.getInteger(PREFIX + "fifoSize", 4));
+
+    /**
+     * The size of each I/O buffer in the FIFOs of the default buffer pool.
+     * The value can be set with the system property
+     * {@code net.java.trueupdate.core.io.Copy.bufferSize} and defaults to
+     * {@link Store#BUFSIZE}.
+     */
+    static final int BUFFER_SIZE = Math.max(1,
+            Integer.getInteger(PREFIX + "bufferSize", Store.BUFSIZE));
+
+    /**
+     * The maximum number of FIFOs to keep in the default buffer pool.
+     * The value can be set with the system property
+     * {@code net.java.trueupdate.core.io.Copy.poolSize} and defaults to
+     * four times the number of available processors.
+     */
+    static final int POOL_SIZE = Math.max(1, Integer.getInteger(
+            PREFIX + "poolSize",
+            4 * Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * The maximum number of bytes to copy on the current thread before
+     * handing over to a background reader thread.
+     * Streams which end within this threshold, e.g. most entries in a ZIP
+     * file, get copied without the overhead of synchronizing with a reader
+     * thread.
+     * The value can be set with the system property
+     * {@code net.java.trueupdate.core.io.Copy.inlineThreshold} and defaults
+     * to 64 KB.
+     * Zero disables copying on the current thread.
      */
-    static final int FIFO_SIZE = 4;
+    static final int INLINE_THRESHOLD =
+            Integer.getInteger(PREFIX + "inlineThreshold", 64 * 1024);
 
     private static final ExecutorService executor
             = Executors.newCachedThreadPool(new ReaderThreadFactory());
 
+    private static volatile BufferPool bufferPool = defaultBufferPool();
+
+    /**
+     * Returns a new instance of the class named by the system property
+     * {@code net.java.trueupdate.core.io.Copy.bufferPool}, which must
+     * implement {@link BufferPool} and have a public no-argument constructor.
+     * If the property is not set, then a {@link BoundedBufferPool} gets
+     * returned, which is configured by {@link #POOL_SIZE},
+     * {@link #FIFO_SIZE} and {@link #BUFFER_SIZE}.
+     */
+    private static BufferPool defaultBufferPool() {
+        final String name = System.getProperty(PREFIX + "bufferPool");
+        if (null == name)
+            return new BoundedBufferPool(POOL_SIZE, FIFO_SIZE, BUFFER_SIZE);
+        try {
+            return Class.forName(name).asSubclass(BufferPool.class)
+                    .newInstance();
+        } catch (ReflectiveOperationException | ClassCastException ex) {
+            throw new IllegalArgumentException(String.format(
+                    "Cannot instantiate the buffer pool %s .", name), ex);
+        }
+    }
+
+    /** Returns the buffer pool for copying streams. */
+    public static BufferPool bufferPool() { return bufferPool; }
+
+    /**
+     * Sets the buffer pool for copying streams.
+     * This affects only subsequent copies, so it's safe to call this method
+     * at any time.
+     */
+    public static void bufferPool(BufferPool pool) {
+        bufferPool = requireNonNull(pool);
+    }
+
     /**
      * Copies the data from the given source to the given sink.
      * <p>
@@ -47,12 +120,47 @@ public final class Copy {
      * thread to fill a FIFO of pooled buffers which is concurrently flushed by
      * the current thread.
      * It performs best when used with <em>unbuffered</em> streams.
+     * <p>
+     * If the source is a {@link ChannelSource} and the sink is a
+     * {@link ChannelSink}, e.g. when copying a {@link FileStore} to another
+     * {@link FileStore}, then this method transfers the data between their
+     * file channels instead, which avoids copying it through the Java heap.
      *
      * @param source the source for reading the data from.
      * @param sink the sink for writing the data to.
      */
-    public static void copy(final Source source, final Sink sink)
+    public static void copy(Source source, Sink sink) throws IOException {
+        copy(source, sink, new MessageDigest[0]);
+    }
+
+    /**
+     * Copies the data from the given source to the given sink and updates the
+     * given message digests with the data while it flows through.
+     * The message digests get updated by the thread which reads the data, so
+     * computing them does not require another pass over the data.
+     * The caller is responsible for resetting the message digests before and
+     * for computing their values after this method returns.
+     * <p>
+     * Other than this, this method behaves like {@link #copy(Source, Sink)}.
+     * However, if any message digests are given, then the data always gets
+     * copied through the Java heap.
+     *
+     * @param source the source for reading the data from.
+     * @param sink the sink for writing the data to.
+     * @param digests the message digests to update with the data.
+     */
+    public static void copy(
+            final Source source,
+            final Sink sink,
+            final MessageDigest... digests)
     throws IOException {
+        requireNonNull(digests);
+        if (0 == digests.length
+                && source instanceof ChannelSource
+                && sink instanceof ChannelSink) {
+            transfer((ChannelSource) source, (ChannelSink) sink);
+            return;
+        }
 
         class SourceTask implements InputTask<Void, IOException> {
             @Override
@@ -61,7 +169,7 @@ public final class Copy {
                 class SinkTask implements OutputTask<Void, IOException> {
                     @Override
                     public Void execute(final OutputStream out) throws IOException {
-                        cat(in, out);
+                        cat(in, out, digests);
                         return null;
                     }
                 } // SinkTask
@@ -73,6 +181,49 @@ public final class Copy {
         Sources.execute(new SourceTask()).on(source);
     }
 
+    private static void transfer(
+            final ChannelSource source,
+            final ChannelSink sink)
+    throws IOException {
+
+        class SourceTask implements Task<Void, FileChannel, IOException> {
+            @Override
+            public Void execute(final FileChannel in) throws IOException {
+
+                class SinkTask implements Task<Void, FileChannel, IOException> {
+                    @Override
+                    public Void execute(final FileChannel out) throws IOException {
+                        transfer(in, out);
+                        return null;
+                    }
+                } // SinkTask
+
+                return Closeables.execute(new SinkTask(), sink.outputChannel());
+            }
+        } // SourceTask
+
+        Closeables.execute(new SourceTask(), source.inputChannel());
+    }
+
+    /**
+     * Transfers the data from the given input channel to the given output
+     * channel <em>without</em> closing them.
+     * Depending on the operating system, this may not even copy the data to
+     * user space.
+     */
+    private static void transfer(final @WillNotClose FileChannel in,
+                                 final @WillNotClose FileChannel out)
+    throws IOException {
+        for (long position = in.position(), size = in.size();
+                position < size; ) {
+            final long transferred =
+                    in.transferTo(position, size - position, out);
+            if (0 >= transferred)
+                throw new EOFException();
+            position += transferred;
+        }
+    }
+
     /**
      * Copies the data from the given input stream to the given output stream
      * <em>without</em> closing them.
@@ -85,6 +236,8 @@ public final class Copy {
      * thread to fill a FIFO of pooled buffers which is concurrently flushed by
      * the current thread.
      * It performs best when used with <em>unbuffered</em> streams.
+     * Small streams get copied on the current thread however, see
+     * {@link #INLINE_THRESHOLD}.
      * <p>
      * The name of this method is inspired by the Unix command line utility
      * {@code cat} because you could use it to con<i>cat</i>enate the contents
@@ -92,9 +245,12 @@ public final class Copy {
      *
      * @param in the input stream.
      * @param out the output stream.
+     * @param digests the message digests to update with the data read from
+     *        the input stream.
      */
     private static void cat(final @WillNotClose InputStream in,
-                            final @WillNotClose OutputStream out)
+                            final @WillNotClose OutputStream out,
+                            final MessageDigest[] digests)
     throws IOException {
         requireNonNull(in);
         requireNonNull(out);
@@ -109,7 +265,12 @@ public final class Copy {
 
         final Lock lock = new ReentrantLock();
         final Condition signal = lock.newCondition();
-        final Buffer[] buffers = Buffer.allocate();
+        final BufferPool pool = bufferPool;
+        final byte[][] buffers = pool.allocate();
+
+        // The actual number of bytes read into each buffer.
+        // -1 represents end-of-file or an exception.
+        final int[] reads = new int[buffers.length];
 
         /*
          * The task that cycles through the buffers in order to fill them
@@ -136,7 +297,7 @@ public final class Copy {
                 int read;
                 do {
                     // Wait until a buffer is available.
-                    final Buffer buffer;
+                    final int index;
                     lock.lock();
                     try {
                         while (size >= buffersLength) {
@@ -146,7 +307,7 @@ public final class Copy {
                                 return;
                             }
                         }
-                        buffer = buffers[(off + size) % buffersLength];
+                        index = (off + size) % buffersLength;
                     } finally {
                         lock.unlock();
                     }
@@ -156,13 +317,14 @@ public final class Copy {
                     // we do not depend on this as it would be a violation
                     // of InputStream's contract.
                     try {
-                        final byte[] buf = buffer.buf;
+                        final byte[] buf = buffers[index];
                         read = in.read(buf, 0, buf.length);
+                        update(digests, buf, read);
                     } catch (final Throwable ex) {
                         exception = ex;
                         read = -1;
                     }
-                    buffer.read = read;
+                    reads[index] = read;
 
                     // Advance head and signal writer.
                     lock.lock();
@@ -178,6 +340,9 @@ public final class Copy {
 
         boolean interrupted = false;
         try {
+            if (inline(in, out, digests, buffers[0]))
+                return;
+
             final ReaderTask reader = new ReaderTask();
             final Future<?> result = executor.submit(reader);
 
@@ -188,7 +353,6 @@ public final class Copy {
             while (true) {
                 // Wait until a buffer is available.
                 final int off;
-                final Buffer buffer;
                 lock.lock();
                 try {
                     while (0 >= reader.size) {
@@ -199,19 +363,18 @@ public final class Copy {
                         }
                     }
                     off = reader.off;
-                    buffer = buffers[off];
                 } finally {
                     lock.unlock();
                 }
 
                 // Stop on last buffer.
-                write = buffer.read;
+                write = reads[off];
                 if (0 > write)
                     break; // reader has terminated because of EOF or exception
 
                 // Process buffer.
                 try {
-                    out.write(buffer.buf, 0, write);
+                    out.write(buffers[off], 0, write);
                 } catch (final IOException ex) {
                     cancel(result);
                     throw ex;
@@ -240,10 +403,52 @@ public final class Copy {
         } finally {
             if (interrupted)
                 Thread.currentThread().interrupt(); // restore
-            Buffer.release(buffers);
+            pool.release(buffers);
         }
     }
 
+    /**
+     * Copies up to {@link #INLINE_THRESHOLD} bytes from the given input stream
+     * to the given output stream on the current thread.
+     * Returns {@code true} if and only if the end of the input stream has been
+     * reached, in which case the output stream has been flushed.
+     */
+    private static boolean inline(final @WillNotClose InputStream in,
+                                  final @WillNotClose OutputStream out,
+                                  final MessageDigest[] digests,
+                                  final byte[] buf)
+    throws IOException {
+        for (int remaining = INLINE_THRESHOLD; 0 < remaining; ) {
+            final int read;
+            try {
+                read = in.read(buf, 0, Math.min(buf.length, remaining));
+                update(digests, buf, read);
+            } catch (final Throwable ex) {
+                out.flush();
+                throw ex;
+            }
+            if (0 > read) {
+                out.flush();
+                return true;
+            }
+            out.write(buf, 0, read);
+            remaining -= read;
+        }
+        return false;
+    }
+
+    /**
+     * Updates the given message digests with the given number of bytes read
+     * into the given buffer.
+     */
+    private static void update(final MessageDigest[] digests,
+                               final byte[] buf,
+                               final int read) {
+        if (0 < read)
+            for (final MessageDigest digest : digests)
+                digest.update(buf, 0, read);
+    }
+
     /**
      * Cancels the reader thread synchronously.
      * Synchronous cancellation of the reader thread is required so that a
@@ -273,47 +478,6 @@ public final class Copy {
         }
     }
 
-    /** A buffer for I/O. */
-    private static final class Buffer {
-
-        /**
-         * Each entry in this queue holds a soft reference to an array
-         * initialized with instances of this class.
-         */
-        static final Queue<Reference<Buffer[]>> queue
-                = new ConcurrentLinkedQueue<>();
-
-        static Buffer[] allocate() {
-            {
-                Reference<Buffer[]> reference;
-                while (null != (reference = queue.poll())) {
-                    final Buffer[] buffers = reference.get();
-                    if (null != buffers)
-                        return buffers;
-                }
-            }
-
-            final Buffer[] buffers = new Buffer[FIFO_SIZE];
-            for (int i = buffers.length; 0 <= --i; )
-                buffers[i] = new Buffer();
-            return buffers;
-        }
-
-        static void release(Buffer[] buffers) {
-            //queue.push(new SoftReference<>(buffers));
-            queue.add(new SoftReference<>(buffers));
-        }
-
-        /** The byte buffer used for reading and writing. */
-        final byte[] buf = new byte[Store.BUFSIZE];
-
-        /**
-         * The actual number of bytes read into the buffer.
-         * -1 represents end-of-file or {@link IOException}.
-         */
-        int read;
-    } // Buffer
-
     /** A factory for reader threads. */
     private static final class ReaderThreadFactory implements ThreadFactory {
         @Override public Thread newThread(Runnable r) {
@@ -6,15 +6,18 @@
 package net.java.trueupdate.core.io;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 
 import static java.util.Objects.requireNonNull;
 
 /**
  * A file store.
+ * A file store provides file channels, so copying a file store to another
+ * file store transfers the data without copying it through the Java heap.
  *
  * @author Christian Schlichtherle (copied and edited from TrueLicense Core 2.3.1)
  */
-public final class FileStore implements Store {
+public final class FileStore implements Store, ChannelSource, ChannelSink {
 
     private final File file;
 
@@ -28,6 +31,14 @@ public final class FileStore implements Store {
         return new FileOutputStream(file);
     }
 
+    @Override public FileChannel inputChannel() throws IOException {
+        return new FileInputStream(file).getChannel();
+    }
+
+    @Override public FileChannel outputChannel() throws IOException {
+        return new FileOutputStream(file).getChannel();
+    }
+
     @Override public void delete() throws IOException {
         if (!file.delete())
             throw new FileNotFoundException(file + " (could not delete)");
@@ -5,9 +5,12 @@
 package net.java.trueupdate.core.io;
 
 import java.io.*;
-import java.math.BigInteger;
 import java.security.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import javax.annotation.concurrent.Immutable;
+import net.java.trueupdate.core.digest.FingerprintProvider;
 
 /**
  * Provides message digest functions.
@@ -17,6 +20,8 @@ import javax.annotation.concurrent.Immutable;
 @Immutable
 public class MessageDigests {
 
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
     private MessageDigests() { }
 
     /** Returns a new SHA-1 message digest. */
@@ -24,32 +29,168 @@ public class MessageDigests {
 
     /**
      * Returns a new message digest for the given algorithm name.
+     * If no installed security provider implements the algorithm, then the
+     * {@link FingerprintProvider} gets searched and finally any security
+     * providers which are registered as services with the
+     * {@link ServiceLoader} for the class {@link Provider}.
+     * This allows to plug in fast, non-cryptographic fingerprints, e.g.
+     * {@code XXHASH64}, without installing a security provider.
      *
      * @param algorithm the algorithm name.
      * @throws IllegalArgumentException if no implementation of the algorithm
      *         is found.
      */
-    public static MessageDigest create(String algorithm) {
+    public static MessageDigest create(final String algorithm) {
         try {
-            return MessageDigest.getInstance(algorithm);
+            final Provider provider = Providers.fallbacks.get(algorithm);
+            return null != provider
+                    ? MessageDigest.getInstance(algorithm, provider)
+                    : MessageDigest.getInstance(algorithm);
         } catch (NoSuchAlgorithmException ex) {
+            for (final Provider provider : Providers.list) {
+                try {
+                    final MessageDigest digest =
+                            MessageDigest.getInstance(algorithm, provider);
+                    Providers.fallbacks.putIfAbsent(algorithm, provider);
+                    return digest;
+                } catch (NoSuchAlgorithmException ignored) {
+                }
+            }
             throw new IllegalArgumentException(ex);
         }
     }
 
+    /**
+     * Returns a new message digest which is configured like the given
+     * prototype, but has a reset state.
+     * This is useful to obtain one message digest per thread.
+     *
+     * @param prototype the message digest to replicate.
+     * @throws IllegalArgumentException if the prototype cannot get cloned and
+     *         no implementation of its algorithm is found.
+     */
+    public static MessageDigest newInstance(final MessageDigest prototype) {
+        try {
+            final MessageDigest digest = (MessageDigest) prototype.clone();
+            digest.reset();
+            return digest;
+        } catch (CloneNotSupportedException ex) {
+            return create(prototype.getAlgorithm());
+        }
+    }
+
     /**
      * Returns a positive, big-endian integer in hexadecimal string notation
      * representing the value of the given message digest.
      * This is the canonical representation of message digests.
+     * This method resets the message digest.
      *
      * @param digest a message digest.
      * @return a positive, big-endian integer in hexadecimal string notation
      *         representing the value of the message digest.
      */
     public static String valueOf(MessageDigest digest) {
-        return new BigInteger(1, digest.digest()).toString(16);
+        return valueOf(digest.digest());
+    }
+
+    /**
+     * Returns the given message digest value in canonical string notation.
+     * This is a positive, big-endian integer in hexadecimal string notation
+     * with two lower case digits per byte, including any leading zeros, so
+     * that the notation has a fixed length for each algorithm.
+     *
+     * @param value a message digest value.
+     * @return the message digest value in canonical string notation.
+     */
+    public static String valueOf(final byte[] value) {
+        final char[] chars = new char[2 * value.length];
+        for (int i = 0, j = 0; i < value.length; i++) {
+            final int b = value[i];
+            chars[j++] = HEX[b >> 4 & 0xf];
+            chars[j++] = HEX[b & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Parses the given message digest value in hexadecimal string notation.
+     * For compatibility, this method also accepts values without leading
+     * zeros.
+     *
+     * @param value a message digest value in hexadecimal string notation.
+     * @return the message digest value.
+     * @throws IllegalArgumentException if the value is not in hexadecimal
+     *         string notation.
+     */
+    public static byte[] parseValue(final String value) {
+        final int length = value.length();
+        final byte[] bytes = new byte[(length + 1) / 2];
+        for (int i = length, j = bytes.length; 0 < i; ) {
+            final int lo = digit(value.charAt(--i));
+            final int hi = 0 < i ? digit(value.charAt(--i)) : 0;
+            bytes[--j] = (byte) (hi << 4 | lo);
+        }
+        return bytes;
+    }
+
+    private static int digit(final char c) {
+        final int digit = Character.digit(c, 16);
+        if (0 > digit)
+            throw new IllegalArgumentException(
+                    "Not a hexadecimal digit: " + c);
+        return digit;
+    }
+
+    /**
+     * Returns {@code true} if and only if the given message digest values
+     * represent the same positive integer.
+     * Unlike {@link java.util.Arrays#equals(byte[], byte[])}, this method
+     * ignores any leading zero bytes, so that values which have been parsed
+     * from a notation without leading zeros compare equal.
+     */
+    public static boolean equals(final byte[] value1, final byte[] value2) {
+        int i = skip(value1), j = skip(value2);
+        if (value1.length - i != value2.length - j) return false;
+        while (i < value1.length)
+            if (value1[i++] != value2[j++]) return false;
+        return true;
     }
 
+    /**
+     * Returns a hash code for the given message digest value which is
+     * consistent with {@link #equals(byte[], byte[])}.
+     */
+    public static int hashCode(final byte[] value) {
+        int hash = 1;
+        for (int i = skip(value); i < value.length; i++)
+            hash = 31 * hash + value[i];
+        return hash;
+    }
+
+    private static int skip(final byte[] value) {
+        int i = 0;
+        while (i < value.length && 0 == value[i]) i++;
+        return i;
+    }
+
+    /** Lazily loads the fallback security providers. */
+    private static final class Providers {
+
+        static final List<Provider> list;
+
+        /** Maps algorithm names to the fallback providers found for them. */
+        static final ConcurrentMap<String, Provider>
+                fallbacks = new ConcurrentHashMap<>();
+
+        static {
+            final List<Provider> providers = new ArrayList<>();
+            providers.add(new FingerprintProvider());
+            for (final Provider provider : ServiceLoader.load(Provider.class))
+                providers.add(provider);
+            list = Collections.unmodifiableList(providers);
+        }
+    } // Providers
+
     /**
      * Updates the given message digest with the binary data from the given
      * source.
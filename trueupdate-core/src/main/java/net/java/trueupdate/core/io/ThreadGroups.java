@@ -13,7 +13,7 @@ import javax.annotation.concurrent.Immutable;
  * @author Christian Schlichtherle (copied and edited from TrueCommons I/O 2.3.2)
  */
 @Immutable
-final class ThreadGroups {
+public final class ThreadGroups {
 
     /**
      * Returns the thread group of the
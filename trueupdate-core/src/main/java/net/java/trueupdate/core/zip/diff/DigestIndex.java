@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.core.zip.diff;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A persistent index of the message digests of the entries in an archive
+ * file.
+ * The index is valid for a single archive file path, size, last modification
+ * time and message digest algorithm.
+ * If any of these properties has changed since the index was saved, then the
+ * index is loaded empty.
+ * Within the index, the message digest of an entry is keyed by its name,
+ * CRC-32 value and size, so that digesting the entry can get skipped when
+ * all of them match.
+ * <p>
+ * The index file is kept next to the archive file or in a cache directory.
+ * Because the index is just a cache, it silently starts over if the index
+ * file cannot get read and {@link #save} ignores any I/O errors.
+ *
+ * @author Christian Schlichtherle
+ */
+@ThreadSafe
+public final class DigestIndex {
+
+    private static final int MAGIC = 0x54554449; // "TUDI"
+    private static final int VERSION = 2;
+
+    private final File archive, file;
+    private final String path, algorithm;
+    private final long size, lastModified;
+
+    private final Map<String, Digest>
+            digests = new ConcurrentHashMap<String, Digest>();
+
+    private volatile boolean modified;
+
+    private DigestIndex(
+            final File archive,
+            final File file,
+            final String algorithm) {
+        this.archive = archive;
+        this.file = file;
+        this.path = archive.getAbsolutePath();
+        this.algorithm = algorithm;
+        this.size = archive.length();
+        this.lastModified = archive.lastModified();
+    }
+
+    /**
+     * Loads the digest index for the given archive file and message digest
+     * algorithm.
+     * If the index file does not exist or isn't valid anymore, then the
+     * returned index is empty.
+     *
+     * @param archive the archive file.
+     * @param algorithm the name of the message digest algorithm.
+     * @param directory the nullable cache directory for the index file.
+     *        If this is {@code null}, then the index file is kept next to
+     *        the archive file.
+     */
+    public static DigestIndex load(
+            final File archive,
+            final String algorithm,
+            final @Nullable File directory) {
+        final DigestIndex index = new DigestIndex(
+                requireNonNull(archive),
+                file(archive, algorithm, directory),
+                algorithm);
+        try {
+            index.read();
+        } catch (IOException ex) {
+            index.digests.clear();
+            index.modified = false;
+        }
+        return index;
+    }
+
+    /** Returns the index file for the given parameters. */
+    static File file(
+            final File archive,
+            final String algorithm,
+            final @CheckForNull File directory) {
+        final String suffix = '.' + sanitize(algorithm) + ".idx";
+        if (null == directory)
+            return new File(archive.getPath() + suffix);
+        final String path = archive.getAbsolutePath();
+        return new File(directory, archive.getName() + '-'
+                + Integer.toHexString(path.hashCode()) + suffix);
+    }
+
+    private static String sanitize(String string) {
+        return string.replaceAll("[^A-Za-z0-9\\-]", "_");
+    }
+
+    /** Returns the archive file. */
+    public File archive() { return archive; }
+
+    /** Returns the index file. */
+    public File file() { return file; }
+
+    /** Returns the message digest algorithm name. */
+    public String algorithm() { return algorithm; }
+
+    /**
+     * Looks up the message digest value of the given entry.
+     *
+     * @return the message digest value or {@code null} if the entry is not
+     *         indexed or its CRC-32 value or size have changed.
+     *         The value must not get modified.
+     */
+    public @Nullable byte[] lookup(final ZipEntry entry) {
+        final Digest digest = digests.get(entry.getName());
+        return null != digest && digest.matches(entry) ? digest.value : null;
+    }
+
+    /**
+     * Puts the message digest value of the given entry into this index.
+     * The entry is only indexed if its CRC-32 value and size are known.
+     * The value does not get copied, so it must not get modified anymore.
+     */
+    public void put(final ZipEntry entry, final byte[] value) {
+        final long crc = entry.getCrc(), size = entry.getSize();
+        if (-1 == crc || -1 == size) return;
+        final Digest digest = new Digest(crc, size, value);
+        if (!digest.equals(digests.put(entry.getName(), digest)))
+            modified = true;
+    }
+
+    /**
+     * Saves this index to its file if it has been modified since it was
+     * loaded or saved.
+     * The index file gets replaced atomically if the file system supports
+     * it.
+     * Any I/O error is ignored because the index is just a cache.
+     */
+    public void save() {
+        if (!modified) return;
+        try {
+            write();
+            modified = false;
+        } catch (IOException ignored) {
+        }
+    }
+
+    private boolean valid() {
+        return size == archive.length()
+                && lastModified == archive.lastModified();
+    }
+
+    private void read() throws IOException {
+        if (!file.isFile() || !valid()) return;
+        final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (MAGIC != in.readInt() || VERSION != in.readInt()) return;
+            if (!path.equals(in.readUTF())
+                    || size != in.readLong()
+                    || lastModified != in.readLong()
+                    || !algorithm.equals(in.readUTF()))
+                return;
+            for (int i = in.readInt(); 0 <= --i; ) {
+                final String name = in.readUTF();
+                final long crc = in.readLong(), size = in.readLong();
+                final byte[] value = new byte[in.readUnsignedByte()];
+                in.readFully(value);
+                digests.put(name, new Digest(crc, size, value));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void write() throws IOException {
+        if (!valid()) return;
+        final File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException(directory + " (could not create)");
+        final File temp = File.createTempFile("idx", null, directory);
+        try {
+            final DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(path);
+                out.writeLong(size);
+                out.writeLong(lastModified);
+                out.writeUTF(algorithm);
+                final Map<String, Digest> snapshot = digests;
+                out.writeInt(snapshot.size());
+                for (final Map.Entry<String, Digest> entry : snapshot.entrySet()) {
+                    final Digest digest = entry.getValue();
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(digest.crc);
+                    out.writeLong(digest.size);
+                    out.writeByte(digest.value.length);
+                    out.write(digest.value);
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                if (file.exists() && !file.delete())
+                    throw new IOException(file + " (could not delete)");
+                if (!temp.renameTo(file))
+                    throw new IOException(file + " (could not rename)");
+            }
+        } finally {
+            if (temp.exists()) temp.delete();
+        }
+    }
+
+    /** The indexed message digest of an entry. */
+    private static final class Digest {
+
+        final long crc, size;
+        final byte[] value;
+
+        Digest(final long crc, final long size, final byte[] value) {
+            this.crc = crc;
+            this.size = size;
+            this.value = requireNonNull(value);
+        }
+
+        boolean matches(ZipEntry entry) {
+            return crc == entry.getCrc() && size == entry.getSize();
+        }
+
+        @Override public boolean equals(final Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof Digest)) return false;
+            final Digest that = (Digest) obj;
+            return  this.crc == that.crc &&
+                    this.size == that.size &&
+                    Arrays.equals(this.value, that.value);
+        }
+
+        @Override public int hashCode() {
+            int hash = 17;
+            hash = 31 * hash + (int) (crc ^ (crc >>> 32));
+            hash = 31 * hash + (int) (size ^ (size >>> 32));
+            hash = 31 * hash + Arrays.hashCode(value);
+            return hash;
+        }
+    } // Digest
+}
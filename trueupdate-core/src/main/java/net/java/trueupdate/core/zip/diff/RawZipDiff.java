@@ -5,18 +5,26 @@
 package net.java.trueupdate.core.zip.diff;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
 import java.util.zip.*;
 import javax.annotation.*;
 import javax.annotation.concurrent.*;
 import net.java.trueupdate.core.io.*;
+import net.java.trueupdate.core.zip.io.JarFileStore;
 import net.java.trueupdate.core.zip.io.ZipEntrySink;
 import net.java.trueupdate.core.zip.io.ZipEntrySource;
+import net.java.trueupdate.core.zip.io.ZipFileStore;
+import net.java.trueupdate.core.zip.io.ZipFingerprints;
 import net.java.trueupdate.core.zip.io.ZipInput;
 import net.java.trueupdate.core.zip.io.ZipOutput;
+import net.java.trueupdate.core.zip.io.ZipSource;
 import net.java.trueupdate.core.zip.model.*;
+import net.java.trueupdate.core.zip.patch.ZipPatch;
 
 /**
  * Compares two archives entry by entry.
@@ -25,14 +33,29 @@ import net.java.trueupdate.core.zip.model.*;
  * {@link MessageDigest} properties, but enables you to obtain the delta
  * {@linkplain #model model} besides {@linkplain #output diffing} the input
  * archives.
+ * Optionally, you can override its {@link #parallelism} property in order to
+ * digest the entries of the input archives concurrently and its
+ * {@link #streaming} property in order to write the changed and added entries
+ * to the delta ZIP file while the comparison is still running and its
+ * {@link #binaryDeltas} and {@link #recursive} properties in order to encode
+ * changed entries as binary deltas or nested delta ZIP files and its
+ * {@link #detectCopies} property in order to refer to equal entries in the
+ * first input archive instead of writing their contents.
  *
  * @author Christian Schlichtherle
  */
 @Immutable
 public abstract class RawZipDiff {
 
-    private static final Pattern COMPRESSED_FILE_EXTENSIONS = Pattern.compile(
-            ".*\\.(ear|jar|war|zip|gz|xz)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern ARCHIVE_FILE_EXTENSIONS = Pattern.compile(
+            ".*\\.(ear|jar|war|zip)", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Must match the JAR file extensions in
+     * {@link net.java.trueupdate.core.zip.patch.RawZipPatch}.
+     */
+    private static final Pattern JAR_FILE_EXTENSIONS = Pattern.compile(
+            ".*\\.(ear|jar|war)", Pattern.CASE_INSENSITIVE);
 
     /** Returns the message digest. */
     protected abstract MessageDigest digest();
@@ -44,65 +67,344 @@ public abstract class RawZipDiff {
     /** Returns the second input archive. */
     protected abstract @WillNotClose ZipInput input2();
 
-    /** Writes the delta ZIP file. */
+    /**
+     * Returns the number of worker threads for digesting the entries of the
+     * input archives.
+     * If this is greater than one, then the entries get digested in a
+     * fork-join pool where each worker thread uses its own message digest
+     * and its own handles to the input archives.
+     * The resulting delta model is the same as if this was one.
+     * The default value is one, which digests all entries on the current
+     * thread.
+     */
+    protected int parallelism() { return 1; }
+
+    /**
+     * Returns the nullable source of the first input archive.
+     * If this is not {@code null}, then each worker thread opens its own
+     * handle to the first input archive from this source.
+     * Otherwise, all worker threads share {@link #input1()}.
+     * The default value is {@code null}.
+     */
+    protected @CheckForNull ZipSource source1() { return null; }
+
+    /**
+     * Returns the nullable source of the second input archive.
+     * If this is not {@code null}, then each worker thread opens its own
+     * handle to the second input archive from this source.
+     * Otherwise, all worker threads share {@link #input2()}.
+     * The default value is {@code null}.
+     */
+    protected @CheckForNull ZipSource source2() { return null; }
+
+    /**
+     * Returns {@code true} if the changed and added entries should get
+     * written to the delta ZIP file while the comparison is still running.
+     * This reduces the time to the first byte of the delta ZIP file because
+     * it doesn't grow with the size of the input archives anymore.
+     * However, the delta model can only get written when the comparison is
+     * complete, so the entry {@link DeltaModel#ENTRY_NAME} will be the
+     * <em>last</em> entry in the delta ZIP file.
+     * The default value is {@code false}.
+     */
+    protected boolean streaming() { return false; }
+
+    /**
+     * Returns the nullable digest index for the first input archive.
+     * If this is not {@code null}, then the message digest of an entry in the
+     * first input archive gets looked up in this index before reading its
+     * contents and any computed message digest gets put into it.
+     * The index gets saved when the comparison is complete.
+     * The default value is {@code null}.
+     */
+    protected @CheckForNull DigestIndex index1() { return null; }
+
+    /**
+     * Returns the nullable digest index for the second input archive.
+     * If this is not {@code null}, then the message digest of an entry in the
+     * second input archive gets looked up in this index before reading its
+     * contents and any computed message digest gets put into it.
+     * The index gets saved when the comparison is complete.
+     * The default value is {@code null}.
+     */
+    protected @CheckForNull DigestIndex index2() { return null; }
+
+    /**
+     * Returns {@code true} if the changed entries should get encoded as
+     * {@linkplain BinaryDelta binary deltas} against the entries in the first
+     * input archive.
+     * A changed entry only gets encoded if the binary delta is smaller than
+     * its contents.
+     * Otherwise, or if any of the entries exceeds
+     * {@link BinaryDelta#MAX_SIZE}, its whole contents get written to the
+     * delta ZIP file.
+     * The default value is {@code false}.
+     */
+    protected boolean binaryDeltas() { return false; }
+
+    /**
+     * Returns {@code true} if changed nested archives, that is entries with
+     * the extension EAR, JAR, WAR or ZIP, should get diffed recursively.
+     * A changed nested archive gets encoded as a nested delta ZIP file if
+     * that's smaller than its contents and patching the nested archive in
+     * the first input archive with it reproduces the nested archive in the
+     * second input archive byte by byte.
+     * The patch writes the entries of the rebuilt nested archive in its own
+     * order and layout, so this is only the case for nested archives which
+     * have been written like that, e.g. by a previous patch.
+     * Otherwise, the nested archive gets encoded like any other changed
+     * entry.
+     * The default value is {@code false}.
+     */
+    protected boolean recursive() { return false; }
+
+    /**
+     * Returns {@code true} if an added or changed entry with the same
+     * contents as any entry in the first input archive should get recorded
+     * as a copied entry in the delta model instead of writing its contents to
+     * the delta ZIP file.
+     * This detects renamed and moved entries.
+     * In {@linkplain #streaming streaming} mode, only entries in the first
+     * input archive which have been digested before the added or changed
+     * entry is ready to get written are considered.
+     * The default value is {@code false}.
+     */
+    protected boolean detectCopies() { return false; }
+
+    /**
+     * Returns {@code true} if the delta model should get written to the entry
+     * {@link DeltaModel#BINARY_ENTRY_NAME} in its compact binary encoding
+     * instead of writing it to the entry {@link DeltaModel#ENTRY_NAME} in
+     * XML.
+     * <p>
+     * Note that the memory footprint of the diff is still linear in the
+     * number of entries: It holds a job for each entry name in the input
+     * archives, comprising the name, the entries and their message digests.
+     * The binary encoding only avoids building the complete delta model on
+     * top of that, which the XML encoding requires for JAXB.
+     * The patch however decodes the binary encoding one entry at a time, so
+     * its memory footprint is constant.
+     * <p>
+     * The default value is {@code false}.
+     */
+    protected boolean binaryModel() { return false; }
+
+    /**
+     * Writes the delta ZIP file.
+     * Each entry of the input archives gets read only once:
+     * When an entry of the second input archive may have changed or has been
+     * added, its contents get spooled to a temporary file while digesting
+     * it.
+     * After the delta model has been written to the entry
+     * {@link DeltaModel#ENTRY_NAME}, the spooled contents of the changed and
+     * added entries get copied to the delta ZIP file.
+     * In {@linkplain #streaming streaming} mode, the spooled contents get
+     * copied as soon as each entry has been digested and the delta model gets
+     * written last.
+     */
     public void output(final @WillNotClose ZipOutput delta) throws IOException {
+        final Diff diff = new Diff(true);
+        try {
+            if (streaming()) diff.stream(delta);
+            else diff.run().output(delta);
+        } finally {
+            diff.close();
+        }
+    }
+
+    /** Computes a delta model from the two input archives. */
+    public DeltaModel model() throws IOException {
+        final Diff diff = new Diff(false);
+        try {
+            return diff.run().model();
+        } finally {
+            diff.close();
+        }
+    }
+
+    /** A single comparison of the two input archives. */
+    private final class Diff {
+
+        final Workers workers;
+        final boolean spool;
+        Job[] jobs = new Job[0];
 
-        final class Streamer {
+        Diff collect() throws IOException {
+            final List<Job> list = new Assembler()
+                    .walkAndReturn(new JobCollector(spool)).jobs;
+            jobs = list.toArray(new Job[list.size()]);
+            return this;
+        }
 
-            final DeltaModel model = model();
+        Diff(final boolean spool) {
+            final int parallelism = parallelism();
+            if (0 >= parallelism) throw new IllegalArgumentException();
+            this.workers = new Workers(1 < parallelism, spool);
+            this.spool = spool;
+        }
 
-            Streamer() throws IOException {
+        Diff run() throws IOException {
+            collect();
+            final int parallelism = parallelism();
+            if (1 == parallelism) {
+                workers.execute(jobs, 0, jobs.length);
+            } else {
+                final ForkJoinPool pool = new ForkJoinPool(parallelism);
                 try {
-                    model.encodeToXml(sink(entry(DeltaModel.ENTRY_NAME)));
-                } catch (RuntimeException ex) {
-                    throw ex;
-                } catch (IOException ex) {
-                    throw ex;
-                } catch (Exception ex) {
-                    throw new IOException(ex);
+                    pool.invoke(new JobAction(jobs, 0, jobs.length, workers));
+                } finally {
+                    pool.shutdown();
                 }
             }
+            workers.check();
+            save();
+            if (detectCopies()) link();
+            return this;
+        }
 
-            Streamer stream() throws IOException {
-                for (final ZipEntry in : input2()) {
-                    final String name = in.getName();
-                    if (changedOrAdded(name)) {
-                        final ZipEntry out = entry(name);
-                        if (COMPRESSED_FILE_EXTENSIONS.matcher(name).matches()) {
-                            final long size = in.getSize();
-                            out.setMethod(ZipOutputStream.STORED);
-                            out.setSize(size);
-                            out.setCompressedSize(size);
-                            out.setCrc(in.getCrc());
+        /**
+         * Links each added or changed entry to the first entry in the first
+         * input archive with the same message digest, if any.
+         */
+        void link() {
+            final Map<ByteBuffer, String>
+                    sources = new HashMap<ByteBuffer, String>();
+            for (final Job job : jobs) {
+                final byte[] digest1 = job.digest1;
+                if (null != digest1 && !sources.containsKey(key(digest1)))
+                    sources.put(key(digest1), job.name);
+            }
+            for (final Job job : jobs)
+                if (job.changedOrAdded())
+                    job.source = sources.get(key(job.digest2));
+        }
+
+        void save() {
+            final DigestIndex index1 = index1(), index2 = index2();
+            if (null != index1) index1.save();
+            if (null != index2) index2.save();
+        }
+
+        /**
+         * Executes the jobs in a fork-join pool and concurrently writes the
+         * changed and added entries to the given delta ZIP file in the order
+         * of their completion.
+         * Finally, writes the delta model.
+         */
+        void stream(final ZipOutput delta) throws IOException {
+            collect();
+            final BlockingQueue<Job> completed = new LinkedBlockingQueue<Job>();
+            workers.completed = completed;
+            final ForkJoinPool pool = new ForkJoinPool(parallelism());
+            try {
+                pool.execute(new Runnable() {
+                    @Override public void run() {
+                        try {
+                            new JobAction(jobs, 0, jobs.length, workers).invoke();
+                        } finally {
+                            completed.add(Job.END);
                         }
-                        Copy.copy(source2(in), sink(out));
+                    }
+                });
+                boolean done = false;
+                try {
+                    for (Job job; Job.END != (job = take(completed)); ) {
+                        if (detectCopies())
+                            job.source =
+                                    workers.sources.get(key(job.digest2));
+                        if (null == job.source) write(delta, job);
+                    }
+                    done = true;
+                } finally {
+                    if (!done) {
+                        workers.cancelled = true;
+                        while (Job.END != take(completed)) { }
                     }
                 }
-                return this;
+            } finally {
+                pool.shutdown();
             }
+            workers.check();
+            save();
+            encodeModel(delta);
+        }
 
-            Source source2(ZipEntry entry){
-                return new ZipEntrySource(entry, input2());
-            }
+        DeltaModel model() {
+            return new Assembly(jobs).buildZipDiffModel(fingerprint());
+        }
 
-            Sink sink(ZipEntry entry) {
-                return new ZipEntrySink(entry, delta);
-            }
+        /**
+         * Computes the fingerprint of the first input archive, which enables
+         * a patch to reject a wrong input archive before any heavy I/O.
+         */
+        byte[] fingerprint() {
+            return ZipFingerprints.compute(input1(),
+                    MessageDigests.create(digest().getAlgorithm()));
+        }
 
-            ZipEntry entry(String name) { return delta.entry(name); }
+        void output(final ZipOutput delta) throws IOException {
+            encodeModel(delta);
+            for (final Job job : jobs)
+                if (null != job.spool && null == job.source)
+                    write(delta, job);
+        }
 
-            boolean changedOrAdded(String name) {
-                return null != model.changed(name) || null != model.added(name);
+        void encodeModel(final ZipOutput delta) throws IOException {
+            try {
+                if (binaryModel()) encodeBinaryModel(delta);
+                else model().encodeToXml(new ZipEntrySink(
+                        delta.entry(DeltaModel.ENTRY_NAME), delta));
+            } catch (RuntimeException ex) {
+                throw ex;
+            } catch (IOException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new IOException(ex);
             }
-        } // Streamer
+        }
 
-        new Streamer().stream();
-    }
+        /**
+         * Writes the delta model directly from the jobs to its binary
+         * encoding without building it in memory.
+         */
+        void encodeBinaryModel(final ZipOutput delta) throws IOException {
+            final DeltaModelWriter writer = new DeltaModelWriter(
+                    delta.stream(delta.entry(DeltaModel.BINARY_ENTRY_NAME)),
+                    digest(), fingerprint());
+            try {
+                new Assembly(jobs).write(writer);
+            } finally {
+                writer.close();
+            }
+        }
 
-    /** Computes a delta model from the two input archives. */
-    public DeltaModel model() throws IOException {
-        return new Assembler().walkAndReturn(new Assembly()).buildZipDiffModel();
-    }
+        /** Copies the spooled contents of the given job to the delta. */
+        void write(final ZipOutput delta, final Job job) throws IOException {
+            final Spool spool = job.spool;
+            final ZipEntry in = job.entry2;
+            assert null != spool && null != in;
+            final String name = job.name;
+            final ZipEntry out = delta.entry(name);
+            // Carry over the time, so that the patch can reproduce a nested
+            // archive.
+            out.setTime(in.getTime());
+            // Store the contents if and only if they are stored in the second
+            // archive, so that the patch can carry over the compression
+            // method.
+            final long size = in.getSize();
+            if (null == job.encoding && 0 <= size && -1 != in.getCrc()
+                    && ZipEntry.STORED == in.getMethod()) {
+                out.setMethod(ZipOutputStream.STORED);
+                out.setSize(size);
+                out.setCompressedSize(size);
+                out.setCrc(in.getCrc());
+            }
+            Copy.copy(spool.source(job.offset, job.length),
+                      new ZipEntrySink(out, delta));
+        }
+
+        void close() throws IOException { workers.close(); }
+    } // Diff
 
     @Immutable
     private class Assembler {
@@ -138,67 +440,596 @@ public abstract class RawZipDiff {
         }
     } // Assembler
 
-    private class Assembly implements Visitor {
+    /** Collects a job for each visited entry or pair of entries. */
+    private static final class JobCollector implements Visitor {
+
+        final List<Job> jobs = new ArrayList<Job>();
+        final boolean spool;
+
+        JobCollector(final boolean spool) { this.spool = spool; }
+
+        @Override
+        public void visitEntriesInBothFiles(
+                final ZipEntrySource source1,
+                final ZipEntrySource source2) {
+            final ZipEntry entry1 = source1.entry(), entry2 = source2.entry();
+            jobs.add(new Job(source1.name(), entry1, entry2,
+                    spool && mayDiffer(entry1, entry2)));
+        }
+
+        @Override public void visitEntryInFirstFile(ZipEntrySource source1) {
+            jobs.add(new Job(source1.name(), source1.entry(), null, false));
+        }
+
+        @Override public void visitEntryInSecondFile(ZipEntrySource source2) {
+            jobs.add(new Job(source2.name(), null, source2.entry(), spool));
+        }
+
+        /**
+         * Returns {@code false} if the given entries have equal CRC-32 values
+         * and sizes, so that their contents are most likely equal.
+         */
+        static boolean mayDiffer(final ZipEntry entry1, final ZipEntry entry2) {
+            final long crc = entry1.getCrc(), size = entry1.getSize();
+            return -1 == crc || -1 == size
+                    || crc != entry2.getCrc() || size != entry2.getSize();
+        }
+    } // JobCollector
+
+    /**
+     * A job for digesting an entry which is present in the first and/or the
+     * second input archive.
+     * When spooling is requested, the job also copies the contents of the
+     * entry in the second input archive to a spool.
+     */
+    private static final class Job {
+
+        /** The number of jobs to execute in a single fork-join task. */
+        static final int THRESHOLD = 16;
+
+        /** Signals the completion of all jobs. */
+        static final Job END = new Job("", null, null, false);
+
+        final String name;
+        final @CheckForNull ZipEntry entry1, entry2;
+
+        /**
+         * Whether or not to spool the contents of the second entry while
+         * digesting it.
+         */
+        final boolean eager;
+
+        @CheckForNull byte[] digest1, digest2;
+
+        /**
+         * The spool which holds the contents of the second entry or their
+         * encoding, if any.
+         */
+        @CheckForNull Spool spool;
+        long offset, length;
 
-        private final Map<String, EntryNameAndTwoDigests>
-                changed = new TreeMap<String, EntryNameAndTwoDigests>();
+        /** The nullable encoding of the contents in the spool. */
+        @CheckForNull EntryEncoding encoding;
 
-        private final Map<String, EntryNameAndDigest>
-                unchanged = new TreeMap<String, EntryNameAndDigest>(),
-                added = new TreeMap<String, EntryNameAndDigest>(),
-                removed = new TreeMap<String, EntryNameAndDigest>();
+        /**
+         * The nullable name of an entry in the first input archive with the
+         * same contents as the second entry.
+         */
+        @CheckForNull String source;
 
-        DeltaModel buildZipDiffModel() {
+        Job(final String name,
+            final @CheckForNull ZipEntry entry1,
+            final @CheckForNull ZipEntry entry2,
+            final boolean eager) {
+            this.name = name;
+            this.entry1 = entry1;
+            this.entry2 = entry2;
+            this.eager = eager;
+        }
+
+        /** Returns {@code true} if the entry has been changed or added. */
+        boolean changedOrAdded() {
+            return null != entry2
+                    && (null == entry1
+                        || !MessageDigests.equals(digest1, digest2));
+        }
+    } // Job
+
+    /**
+     * Assembles the delta model from the jobs in the order of their entry
+     * names.
+     * The entries of the delta model get created on demand, so that they
+     * can get written to the binary encoding without holding the delta model
+     * in memory.
+     * However, the jobs themselves are held in memory and get sorted in
+     * place, so the memory footprint is still linear in the number of
+     * entries.
+     */
+    private final class Assembly {
+
+        private final Job[] jobs;
+
+        Assembly(final Job[] jobs) {
+            this.jobs = jobs;
+            Arrays.sort(jobs, new Comparator<Job>() {
+                @Override public int compare(Job job1, Job job2) {
+                    return job1.name.compareTo(job2.name);
+                }
+            });
+        }
+
+        DeltaModel buildZipDiffModel(final byte[] fingerprint) {
+            final List<EntryNameAndTwoDigests>
+                    changed = new ArrayList<EntryNameAndTwoDigests>();
+            final List<EntryNameAndDigest>
+                    unchanged = new ArrayList<EntryNameAndDigest>(),
+                    added = new ArrayList<EntryNameAndDigest>(),
+                    removed = new ArrayList<EntryNameAndDigest>();
+            final List<EntryNameDigestAndSource>
+                    copied = new ArrayList<EntryNameDigestAndSource>();
+            for (final Job job : jobs) {
+                switch (kind(job)) {
+                    case UNCHANGED: unchanged.add(unchanged(job)); break;
+                    case CHANGED: changed.add(changed(job)); break;
+                    case ADDED: added.add(added(job)); break;
+                    case REMOVED: removed.add(removed(job)); break;
+                    case COPIED: copied.add(copied(job)); break;
+                    default: throw new AssertionError();
+                }
+            }
             return DeltaModel
                     .builder()
                     .messageDigest(digest())
-                    .changedEntries(changed.values())
-                    .unchangedEntries(unchanged.values())
-                    .addedEntries(added.values())
-                    .removedEntries(removed.values())
+                    .inputFingerprint(fingerprint)
+                    .changedEntries(changed)
+                    .unchangedEntries(unchanged)
+                    .addedEntries(added)
+                    .removedEntries(removed)
+                    .copiedEntries(copied)
                     .build();
         }
 
-        @Override
-        public void visitEntriesInBothFiles(
-                final ZipEntrySource source1,
-                final ZipEntrySource source2)
-        throws IOException {
-            final String name1 = source1.name();
-            assert name1.equals(source2.name());
-            final String digest1 = digestValueOf(source1);
-            final String digest2 = digestValueOf(source2);
-            if (digest1.equals(digest2))
-                unchanged.put(name1,
-                        new EntryNameAndDigest(name1, digest1));
-            else
-                changed.put(name1,
-                        new EntryNameAndTwoDigests(name1, digest1, digest2));
+        /**
+         * Writes the entries to the given writer grouped by their kind.
+         * Only one entry at a time is held in memory.
+         */
+        void write(final DeltaModelWriter writer) throws IOException {
+            for (final Kind kind : Kind.values()) {
+                for (final Job job : jobs) {
+                    if (kind != kind(job)) continue;
+                    switch (kind) {
+                        case UNCHANGED: writer.unchanged(unchanged(job)); break;
+                        case CHANGED: writer.changed(changed(job)); break;
+                        case ADDED: writer.added(added(job)); break;
+                        case REMOVED: writer.removed(removed(job)); break;
+                        case COPIED: writer.copied(copied(job)); break;
+                        default: throw new AssertionError();
+                    }
+                }
+            }
         }
 
-        @Override
-        public void visitEntryInFirstFile(final ZipEntrySource source1)
-        throws IOException {
-            final String name = source1.name();
-            removed.put(name, new EntryNameAndDigest(name,
-                    digestValueOf(source1)));
+        Kind kind(final Job job) {
+            final byte[] digest1 = job.digest1, digest2 = job.digest2;
+            if (null != job.source) return Kind.COPIED;
+            if (null == digest2) return Kind.REMOVED;
+            if (null == digest1) return Kind.ADDED;
+            if (MessageDigests.equals(digest1, digest2)) return Kind.UNCHANGED;
+            return Kind.CHANGED;
         }
 
-        @Override
-        public void visitEntryInSecondFile(final ZipEntrySource source2)
+        EntryNameAndDigest unchanged(Job job) {
+            return new EntryNameAndDigest(job.name, job.digest1, crc(job));
+        }
+
+        EntryNameAndTwoDigests changed(Job job) {
+            return new EntryNameAndTwoDigests(
+                    job.name, job.digest1, job.digest2, job.encoding);
+        }
+
+        EntryNameAndDigest added(Job job) {
+            return new EntryNameAndDigest(job.name, job.digest2, null);
+        }
+
+        EntryNameAndDigest removed(Job job) {
+            return new EntryNameAndDigest(job.name, job.digest1, null);
+        }
+
+        EntryNameDigestAndSource copied(Job job) {
+            return new EntryNameDigestAndSource(
+                    job.name, job.digest2, job.source);
+        }
+    } // Assembly
+
+    /** Enumerates the kinds of entries in the order of their encoding. */
+    private enum Kind { UNCHANGED, CHANGED, ADDED, REMOVED, COPIED }
+
+    /**
+     * Returns the CRC-32 value of the entries of the given unchanged job if
+     * it's known for both of them, so that a patch can copy the entry without
+     * inflating it.
+     */
+    private static @Nullable Long crc(final Job job) {
+        final long crc = job.entry1.getCrc();
+        return -1 != crc && crc == job.entry2.getCrc() ? crc : null;
+    }
+
+    /**
+     * Returns a key for looking up the given message digest value in a map.
+     */
+    private static ByteBuffer key(byte[] digest) {
+        return ByteBuffer.wrap(digest);
+    }
+
+    /** Recursively splits an array of jobs and executes them. */
+    @SuppressWarnings("serial")
+    private static final class JobAction extends RecursiveAction {
+
+        final Job[] jobs;
+        final int from, to;
+        final Workers workers;
+
+        JobAction(
+                final Job[] jobs,
+                final int from,
+                final int to,
+                final Workers workers) {
+            this.jobs = jobs;
+            this.from = from;
+            this.to = to;
+            this.workers = workers;
+        }
+
+        @Override protected void compute() {
+            if (to - from <= Job.THRESHOLD) {
+                workers.execute(jobs, from, to);
+            } else {
+                final int mid = (from + to) >>> 1;
+                invokeAll(new JobAction(jobs, from, mid, workers),
+                          new JobAction(jobs, mid, to, workers));
+            }
+        }
+    } // JobAction
+
+    /**
+     * Manages the worker state per thread, that is one message digest, one
+     * spool and, if forked, one handle per input archive.
+     */
+    private final class Workers {
+
+        final ConcurrentMap<Thread, Worker>
+                workers = new ConcurrentHashMap<Thread, Worker>();
+
+        final AtomicReference<Exception>
+                exception = new AtomicReference<Exception>();
+
+        /**
+         * Maps the message digests of the entries in the first input archive
+         * to their names for detecting copies in streaming mode.
+         */
+        final ConcurrentMap<ByteBuffer, String>
+                sources = new ConcurrentHashMap<ByteBuffer, String>();
+
+        final boolean fork, spool;
+
+        /**
+         * The nullable queue for publishing the jobs which have spooled the
+         * contents of a changed or added entry.
+         */
+        volatile @CheckForNull BlockingQueue<Job> completed;
+
+        volatile boolean cancelled;
+
+        Workers(final boolean fork, final boolean spool) {
+            this.fork = fork;
+            this.spool = spool;
+        }
+
+        void execute(final Job[] jobs, final int from, final int to) {
+            try {
+                final Worker worker = worker();
+                final BlockingQueue<Job> completed = this.completed;
+                for (int i = from; i < to; i++) {
+                    if (cancelled || null != exception.get()) return;
+                    final Job job = jobs[i];
+                    worker.execute(job);
+                    if (null != completed && null != job.spool)
+                        completed.add(job);
+                }
+            } catch (IOException | RuntimeException ex) {
+                exception.compareAndSet(null, ex);
+            }
+        }
+
+        /** Throws the first exception of any worker, if any. */
+        void check() throws IOException {
+            final Exception ex = exception.get();
+            if (ex instanceof IOException) throw (IOException) ex;
+            if (ex instanceof RuntimeException) throw (RuntimeException) ex;
+            assert null == ex;
+        }
+
+        Worker worker() throws IOException {
+            final Thread thread = Thread.currentThread();
+            Worker worker = workers.get(thread);
+            if (null == worker) {
+                worker = new Worker(spool, sources);
+                workers.put(thread, worker);
+                if (fork) worker.fork();
+            }
+            return worker;
+        }
+
+        void close() throws IOException {
+            IOException ex = null;
+            for (final Worker worker : workers.values()) {
+                try {
+                    worker.close();
+                } catch (IOException ex2) {
+                    if (null == ex) ex = ex2;
+                }
+            }
+            if (null != ex) throw ex;
+        }
+    } // Workers
+
+    /** The state of a worker thread. */
+    private final class Worker {
+
+        final MessageDigest digest = MessageDigests.newInstance(digest());
+        final List<Closeable> resources = new ArrayList<Closeable>(3);
+        final boolean spooling;
+        final ConcurrentMap<ByteBuffer, String> sources;
+        ZipInput input1 = input1(), input2 = input2();
+        @CheckForNull Spool spool;
+
+        Worker(
+                final boolean spooling,
+                final ConcurrentMap<ByteBuffer, String> sources) {
+            this.spooling = spooling;
+            this.sources = sources;
+        }
+
+        /** Opens this worker's own handles to the input archives. */
+        void fork() throws IOException {
+            final ZipSource source1 = source1(), source2 = source2();
+            if (null != source1) input1 = open(source1);
+            if (null != source2) input2 = open(source2);
+        }
+
+        ZipInput open(final ZipSource source) throws IOException {
+            final ZipInput input = source.input();
+            resources.add(input);
+            return input;
+        }
+
+        Spool spool() throws IOException {
+            Spool spool = this.spool;
+            if (null == spool) {
+                this.spool = spool = new Spool();
+                resources.add(spool);
+            }
+            return spool;
+        }
+
+        void execute(final Job job) throws IOException {
+            final ZipEntry entry1 = job.entry1, entry2 = job.entry2;
+            if (null != entry1) {
+                final DigestIndex index1 = index1();
+                byte[] digest1 = null != index1 ? index1.lookup(entry1) : null;
+                if (null == digest1) {
+                    digest1 = digestValueOf(source(entry1, input1));
+                    if (null != index1) index1.put(entry1, digest1);
+                }
+                job.digest1 = digest1;
+                if (detectCopies())
+                    sources.putIfAbsent(key(digest1), job.name);
+            }
+            if (null != entry2) {
+                final DigestIndex index2 = index2();
+                final byte[] digest2 =
+                        null != index2 ? index2.lookup(entry2) : null;
+                if (null != digest2) {
+                    job.digest2 = digest2;
+                    if (spooling && job.changedOrAdded())
+                        spool(job, source(entry2, input2));
+                } else {
+                    final Source source2 = source(entry2, input2);
+                    if (job.eager) {
+                        spool(job, source2);
+                    } else {
+                        job.digest2 = digestValueOf(source2);
+                        // The CRC-32 values and sizes of the entries are
+                        // equal, but their contents aren't, so spool it now.
+                        if (spooling && job.changedOrAdded())
+                            spool(job, source2);
+                    }
+                    if (null != index2) index2.put(entry2, job.digest2);
+                }
+            }
+        }
+
+        /**
+         * Returns a source for the given entry in the given input archive.
+         * If the input archive is a handle of its own, then the entry gets
+         * looked up by its name first.
+         */
+        ZipEntrySource source(final ZipEntry entry, final ZipInput input)
         throws IOException {
-            final String name = source2.name();
-            added.put(name, new EntryNameAndDigest(name,
-                    digestValueOf(source2)));
+            if (input == input1() || input == input2())
+                return new ZipEntrySource(entry, input);
+            final String name = entry.getName();
+            final ZipEntry forked = input.entry(name);
+            if (null == forked) throw new FileNotFoundException(name);
+            return new ZipEntrySource(forked, input);
         }
 
-        String digestValueOf(Source source) throws IOException {
-            final MessageDigest digest = digest();
+        byte[] digestValueOf(Source source) throws IOException {
             digest.reset();
             MessageDigests.updateDigestFrom(digest, source);
-            return MessageDigests.valueOf(digest);
+            return digest.digest();
         }
-    } // Assembly
+
+        void spool(final Job job, final Source source2) throws IOException {
+            final Spool spool = spool();
+            final long offset = spool.size();
+            digest.reset();
+            Copy.copy(source2, spool.sink(), digest);
+            job.digest2 = digest.digest();
+            if (job.changedOrAdded()) {
+                job.spool = spool;
+                job.offset = offset;
+                job.length = spool.size() - offset;
+                if (null != job.entry1) encode(job);
+            } else {
+                spool.truncate(offset);
+            }
+        }
+
+        /**
+         * Replaces the spooled contents of the given changed job with a
+         * nested delta ZIP file or a binary delta if that's smaller.
+         */
+        void encode(final Job job) throws IOException {
+            if (recursive()
+                    && ARCHIVE_FILE_EXTENSIONS.matcher(job.name).matches()
+                    && encodeNested(job))
+                return;
+            if (binaryDeltas()) encodeBinary(job);
+        }
+
+        boolean encodeNested(final Job job) throws IOException {
+            final ZipEntry entry1 = job.entry1;
+            assert null != entry1;
+            final Spool spool = job.spool;
+            final File file1 = temp(), file2 = temp(), delta = temp();
+            try {
+                Copy.copy(source(entry1, input1), new FileStore(file1));
+                Copy.copy(spool.source(job.offset, job.length),
+                          new FileStore(file2));
+                try {
+                    ZipDiff.builder()
+                            .input1(file1)
+                            .input2(file2)
+                            .digest(digest.getAlgorithm())
+                            .binaryDeltas(binaryDeltas())
+                            .recursive(true)
+                            .detectCopies(detectCopies())
+                            .binaryModel(binaryModel())
+                            .build()
+                            .output(delta);
+                } catch (ZipException notAnArchive) {
+                    return false;
+                }
+                if (delta.length() >= job.length
+                        || !reproduces(job, file1, delta))
+                    return false;
+                spool.truncate(job.offset);
+                spool.write(new FileStore(delta));
+                job.length = spool.size() - job.offset;
+                job.encoding = EntryEncoding.ZIP;
+                return true;
+            } finally {
+                delete(file1);
+                delete(file2);
+                delete(delta);
+            }
+        }
+
+        /**
+         * Returns {@code true} if patching the given nested archive in the
+         * first input archive with the given nested delta ZIP file
+         * reproduces the nested archive in the second input archive byte by
+         * byte.
+         * Otherwise, patching the second input archive would produce an
+         * archive which is equal to it entry by entry only, so a diff
+         * against the second input archive wouldn't apply to the result.
+         */
+        boolean reproduces(
+                final Job job,
+                final File file1,
+                final File delta)
+        throws IOException {
+            final File output = temp();
+            try {
+                ZipPatch.builder()
+                        .input(file1)
+                        .delta(delta)
+                        .build()
+                        .output(JAR_FILE_EXTENSIONS.matcher(job.name)
+                                    .matches()
+                                ? new JarFileStore(output)
+                                : new ZipFileStore(output));
+                return MessageDigest.isEqual(job.digest2,
+                        digestValueOf(new FileStore(output)));
+            } finally {
+                delete(output);
+            }
+        }
+
+        void encodeBinary(final Job job) throws IOException {
+            final ZipEntry entry1 = job.entry1;
+            assert null != entry1;
+            final long size1 = entry1.getSize(), length = job.length;
+            if (BinaryDelta.MAX_SIZE < size1 || BinaryDelta.MAX_SIZE < length
+                    || BinaryDelta.BLOCK_SIZE > length)
+                return;
+            final Spool spool = job.spool;
+            final byte[] source = BinaryDelta.load(source(entry1, input1), size1);
+            final byte[] target = BinaryDelta.load(
+                    spool.source(job.offset, length), length);
+            final ByteArrayOutputStream
+                    out = new ByteArrayOutputStream(target.length / 4);
+            BinaryDelta.encode(source, target, out);
+            if (out.size() >= length) return;
+            spool.truncate(job.offset);
+            final byte[] encoded = out.toByteArray();
+            spool.write(encoded, 0, encoded.length);
+            job.length = encoded.length;
+            job.encoding = EntryEncoding.BINARY;
+        }
+
+        File temp() throws IOException {
+            return File.createTempFile("tud", null);
+        }
+
+        void delete(final File file) {
+            if (!file.delete()) file.deleteOnExit();
+        }
+
+        void close() throws IOException {
+            IOException ex = null;
+            for (final Closeable resource : resources) {
+                try {
+                    resource.close();
+                } catch (IOException ex2) {
+                    if (null == ex) ex = ex2;
+                }
+            }
+            if (null != ex) throw ex;
+        }
+    } // Worker
+
+    /**
+     * Takes the next job from the given queue.
+     * If the current thread gets interrupted, then it continues to wait and
+     * finally restores the interrupt status.
+     */
+    private static Job take(final BlockingQueue<Job> queue) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return queue.take();
+                } catch (InterruptedException interrupt) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt(); // restore
+        }
+    }
 
     /**
      * A visitor of two ZIP files.
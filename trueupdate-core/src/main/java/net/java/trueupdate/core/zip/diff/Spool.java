@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.core.zip.diff;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import net.java.trueupdate.core.io.*;
+
+/**
+ * A temporary file for spooling the contents of ZIP entries.
+ * Data gets appended to the end of the spool and can get read back from any
+ * region of it.
+ * The temporary file gets deleted when the spool gets closed.
+ * <p>
+ * A spool has a single writer:
+ * Only one thread may append data to it or truncate it.
+ * However, other threads may concurrently read any region which the writer
+ * has published to them, e.g. by putting a job into a queue, as long as the
+ * writer doesn't truncate the spool below the end of this region anymore.
+ * This is safe because all I/O on the file channel is positional and the
+ * size is volatile.
+ * Closing the spool must happen after all readers are done.
+ *
+ * @author Christian Schlichtherle
+ */
+final class Spool implements Closeable {
+
+    private final File file;
+    private final FileChannel channel;
+
+    /** Only ever gets updated by the writer. */
+    private volatile long size;
+
+    Spool() throws IOException {
+        file = File.createTempFile("spool", null);
+        try {
+            channel = new RandomAccessFile(file, "rw").getChannel();
+        } catch (IOException ex) {
+            file.delete();
+            throw ex;
+        }
+    }
+
+    /** Returns the size of this spool. */
+    long size() { return size; }
+
+    /** Appends the given data to the end of this spool. */
+    void write(final byte[] b, final int off, final int len)
+    throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+        long size = this.size;
+        while (buffer.hasRemaining())
+            size += channel.write(buffer, size);
+        this.size = size;
+    }
+
+    /** Appends the contents of the given source to the end of this spool. */
+    void write(Source source) throws IOException { Copy.copy(source, sink()); }
+
+    /**
+     * Returns a sink for appending data to the end of this spool.
+     * Closing the output stream does not close this spool.
+     */
+    Sink sink() {
+        return new Sink() {
+            @Override public OutputStream output() {
+                return new OutputStream() {
+
+                    @Override public void write(int b) throws IOException {
+                        write(new byte[] { (byte) b }, 0, 1);
+                    }
+
+                    @Override public void write(
+                            final byte[] b,
+                            final int off,
+                            final int len)
+                    throws IOException {
+                        Spool.this.write(b, off, len);
+                    }
+                };
+            }
+        };
+    }
+
+    /** Discards any data beyond the given size. */
+    void truncate(final long size) throws IOException {
+        assert 0 <= size && size <= this.size;
+        channel.truncate(size);
+        this.size = size;
+    }
+
+    /**
+     * Returns a source for reading the region of this spool with the given
+     * offset and length.
+     */
+    Source source(final long offset, final long length) {
+        assert 0 <= offset && 0 <= length && offset + length <= size;
+        return new Source() {
+            @Override public InputStream input() {
+                return new InputStream() {
+                    final long limit = offset + length;
+                    long position = offset;
+
+                    @Override public int read() throws IOException {
+                        final byte[] b = new byte[1];
+                        return 1 == read(b, 0, 1) ? b[0] & 0xff : -1;
+                    }
+
+                    @Override public int read(
+                            final byte[] b,
+                            final int off,
+                            final int len)
+                    throws IOException {
+                        if (position >= limit) return -1;
+                        final int max = (int) Math.min(len, limit - position);
+                        final int read = channel.read(
+                                ByteBuffer.wrap(b, off, max), position);
+                        if (0 > read) throw new EOFException();
+                        position += read;
+                        return read;
+                    }
+                };
+            }
+        };
+    }
+
+    @Override public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            if (!file.delete() && file.exists())
+                throw new IOException(file + " (could not delete)");
+        }
+    }
+}
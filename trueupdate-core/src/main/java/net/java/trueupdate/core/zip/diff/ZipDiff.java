@@ -35,11 +35,23 @@ public abstract class ZipDiff {
     /**
      * A builder for a ZIP diff.
      * The default message digest is SHA-1.
+     * The default parallelism is one, which digests all entries on the
+     * current thread.
+     * By default, streaming is disabled.
+     * By default, no digest index is used.
+     * By default, binary deltas are disabled.
+     * By default, nested archives are not diffed recursively.
+     * By default, copies are not detected.
+     * By default, the delta model gets encoded in XML.
      */
     public static class Builder {
 
         private @CheckForNull ZipSource input1, input2;
         private @CheckForNull String digest;
+        private @CheckForNull Integer parallelism;
+        private @CheckForNull Boolean streaming, index, binaryDeltas, recursive,
+                detectCopies, binaryModel;
+        private @CheckForNull File indexDirectory;
 
         Builder() { }
 
@@ -61,22 +73,132 @@ public abstract class ZipDiff {
             return this;
         }
 
+        /**
+         * Sets the name of the message digest algorithm for the entries.
+         * Besides cryptographic message digests like {@code SHA-1}, this may
+         * name a fast fingerprint like {@code XXHASH64}, see
+         * {@link net.java.trueupdate.core.digest.FingerprintProvider}.
+         * A fingerprint detects accidental changes only, so use a
+         * cryptographic message digest where authenticity matters.
+         * The patch uses the algorithm named in the delta model.
+         */
         public Builder digest(final @Nullable String digest) {
             this.digest = digest;
             return this;
         }
 
+        /**
+         * Sets the number of worker threads for digesting the entries of the
+         * input archives.
+         * Each worker thread opens its own handles to the input archives.
+         */
+        public Builder parallelism(final @Nullable Integer parallelism) {
+            this.parallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * Sets whether or not to write the changed and added entries to the
+         * delta ZIP file while the comparison is still running.
+         * If enabled, the delta model gets written as the last entry.
+         */
+        public Builder streaming(final @Nullable Boolean streaming) {
+            this.streaming = streaming;
+            return this;
+        }
+
+        /**
+         * Sets whether or not to use a persistent {@link DigestIndex} for
+         * each input archive which is a {@link ZipFileStore}.
+         * Unless an index directory is set, the index files are kept next
+         * to the archive files.
+         */
+        public Builder index(final @Nullable Boolean index) {
+            this.index = index;
+            return this;
+        }
+
+        /**
+         * Sets the cache directory for the index files.
+         * Setting a directory implies using a {@link DigestIndex}.
+         */
+        public Builder indexDirectory(final @Nullable File indexDirectory) {
+            this.indexDirectory = indexDirectory;
+            return this;
+        }
+
+        /**
+         * Sets whether or not to encode changed entries as binary deltas if
+         * that's smaller than their contents.
+         */
+        public Builder binaryDeltas(final @Nullable Boolean binaryDeltas) {
+            this.binaryDeltas = binaryDeltas;
+            return this;
+        }
+
+        /**
+         * Sets whether or not to diff changed nested archives recursively and
+         * encode them as nested delta ZIP files if that's smaller than their
+         * contents and reproduces them byte by byte.
+         *
+         * @see RawZipDiff#recursive()
+         */
+        public Builder recursive(final @Nullable Boolean recursive) {
+            this.recursive = recursive;
+            return this;
+        }
+
+        /**
+         * Sets whether or not to record added or changed entries with the
+         * same contents as any entry in the first archive as copied entries
+         * instead of writing their contents to the delta ZIP file.
+         */
+        public Builder detectCopies(final @Nullable Boolean detectCopies) {
+            this.detectCopies = detectCopies;
+            return this;
+        }
+
+        /**
+         * Sets whether or not to encode the delta model in its compact
+         * binary encoding instead of XML.
+         * This makes the delta ZIP file smaller and enables the patch to
+         * start copying the unchanged entries while the delta model is
+         * still getting decoded, but older versions of the patch cannot
+         * apply the delta ZIP file.
+         */
+        public Builder binaryModel(final @Nullable Boolean binaryModel) {
+            this.binaryModel = binaryModel;
+            return this;
+        }
+
         public ZipDiff build() {
-            return create(input1, input2, digest);
+            return create(input1, input2, digest, parallelism,
+                    Boolean.TRUE.equals(streaming),
+                    Boolean.TRUE.equals(index) || null != indexDirectory,
+                    indexDirectory,
+                    Boolean.TRUE.equals(binaryDeltas),
+                    Boolean.TRUE.equals(recursive),
+                    Boolean.TRUE.equals(detectCopies),
+                    Boolean.TRUE.equals(binaryModel));
         }
 
         private static @CreatesObligation
         ZipDiff create(
-                final ZipSource input1,
-                final ZipSource input2,
-                final @Nullable String digestName) {
-            requireNonNull(input1);
-            requireNonNull(input2);
+                final ZipSource source1,
+                final ZipSource source2,
+                final @Nullable String digestName,
+                final @Nullable Integer parallelism,
+                final boolean streaming,
+                final boolean index,
+                final @Nullable File indexDirectory,
+                final boolean binaryDeltas,
+                final boolean recursive,
+                final boolean detectCopies,
+                final boolean binaryModel) {
+            requireNonNull(source1);
+            requireNonNull(source2);
+            if (null != parallelism && 0 >= parallelism)
+                throw new IllegalArgumentException();
 
             return new ZipDiff() {
 
@@ -99,10 +221,28 @@ public abstract class ZipDiff {
                                             new RawZipDiff() {
                                                 final MessageDigest digest = MessageDigests.create(
                                                         null != digestName ? digestName : "SHA-1");
+                                                final DigestIndex index1 = index(source1), index2 = index(source2);
+
+                                                DigestIndex index(final ZipSource source) {
+                                                    return index && source instanceof ZipFileStore
+                                                            ? DigestIndex.load(((ZipFileStore) source).file(),
+                                                                    digest.getAlgorithm(), indexDirectory)
+                                                            : null;
+                                                }
 
                                                 protected MessageDigest digest() { return digest; }
                                                 protected ZipInput input1() { return input1; }
                                                 protected ZipInput input2() { return input2; }
+                                                protected int parallelism() { return null != parallelism ? parallelism : 1; }
+                                                protected ZipSource source1() { return source1; }
+                                                protected ZipSource source2() { return source2; }
+                                                protected boolean streaming() { return streaming; }
+                                                protected DigestIndex index1() { return index1; }
+                                                protected DigestIndex index2() { return index2; }
+                                                protected boolean binaryDeltas() { return binaryDeltas; }
+                                                protected boolean recursive() { return recursive; }
+                                                protected boolean detectCopies() { return detectCopies; }
+                                                protected boolean binaryModel() { return binaryModel; }
                                             }.output(delta);
                                             return null;
                                         }
@@ -112,11 +252,11 @@ public abstract class ZipDiff {
                                 }
                             } // Input2Task
 
-                            return ZipSources.execute(new Input2Task()).on(input2);
+                            return ZipSources.execute(new Input2Task()).on(source2);
                         }
                     } // Input1Task
 
-                    ZipSources.execute(new Input1Task()).on(input1);
+                    ZipSources.execute(new Input1Task()).on(source1);
                 }
             }; // ZipDiff
         }
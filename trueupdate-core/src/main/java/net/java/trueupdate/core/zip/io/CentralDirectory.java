@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.core.zip.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.ZipException;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * The central directory of a ZIP file.
+ * Parsing locates the end of central directory record, including any ZIP64
+ * end header, and walks the central directory headers in order to resolve
+ * the sizes and the positions of the local file headers of the entries.
+ * Any data which has been prepended to the ZIP file, e.g. a self extractor,
+ * gets compensated for.
+ * The names, extra fields and comments of the entries are left in the
+ * {@linkplain #buffer buffer} for decoding on demand.
+ *
+ * @see    RawZipFile
+ * @see    MappedZipFile
+ * @author Christian Schlichtherle
+ */
+@Immutable
+final class CentralDirectory {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final int LOC_SIG = 0x04034b50;
+    static final int CEN_SIG = 0x02014b50;
+    static final int END_SIG = 0x06054b50;
+    static final int ZIP64_END_SIG = 0x06064b50;
+    static final int ZIP64_LOC_SIG = 0x07064b50;
+
+    static final int LOC_HDR = 30, CEN_HDR = 46, END_HDR = 22;
+    static final int ZIP64_END_HDR = 56, ZIP64_LOC_HDR = 20;
+    static final int MAX_COMMENT = 0xffff;
+    static final int ZIP64_EXTRA = 0x0001;
+    static final long UINT32_MAX = 0xffffffffL;
+
+    /** Reads regions of a ZIP file. */
+    interface Reader {
+
+        /**
+         * Returns a little endian buffer with the given region of the ZIP
+         * file at position zero.
+         */
+        ByteBuffer read(long position, int length) throws IOException;
+    }
+
+    /** The central directory in little endian byte order. */
+    final ByteBuffer buffer;
+
+    /** The position of the central directory in the ZIP file. */
+    final long position;
+
+    /** The positions of the central directory headers in the buffer. */
+    final int[] headers;
+
+    /** The positions of the local file headers in the ZIP file. */
+    final long[] locals;
+
+    /** The compressed and uncompressed sizes of the entries. */
+    final long[] csizes, sizes;
+
+    /**
+     * Parses the central directory of a ZIP file.
+     *
+     * @param reader the reader for the ZIP file.
+     * @param size the size of the ZIP file.
+     * @param name the name of the ZIP file for use in exception messages.
+     */
+    static CentralDirectory parse(
+            final Reader reader,
+            final long size,
+            final String name)
+    throws IOException {
+        return new CentralDirectory(reader, size, name);
+    }
+
+    private CentralDirectory(
+            final Reader reader,
+            final long size,
+            final String name)
+    throws IOException {
+        final long endPos = findEnd(reader, size, name);
+        final ByteBuffer end = reader.read(endPos, END_HDR);
+        long total = end.getShort(10) & 0xffff;
+        long cenSize = end.getInt(12) & UINT32_MAX;
+        long cenOff = end.getInt(16) & UINT32_MAX;
+        long cenPos = endPos - cenSize;
+        if (0xffff == total || UINT32_MAX == cenSize
+                || UINT32_MAX == cenOff) {
+            final long locPos = endPos - ZIP64_LOC_HDR;
+            final ByteBuffer loc;
+            if (0 <= locPos && ZIP64_LOC_SIG
+                    == (loc = reader.read(locPos, ZIP64_LOC_HDR)).getInt(0)) {
+                // Prefer the position right before the locator over the
+                // recorded position in case data has been prepended.
+                long end64Pos = locPos - ZIP64_END_HDR;
+                if (0 > end64Pos || ZIP64_END_SIG
+                        != reader.read(end64Pos, 4).getInt(0))
+                    end64Pos = loc.getLong(8);
+                if (0 > end64Pos || end64Pos > size - ZIP64_END_HDR)
+                    throw new ZipException(
+                            name + " (invalid ZIP64 end header)");
+                final ByteBuffer end64 = reader.read(end64Pos, ZIP64_END_HDR);
+                if (ZIP64_END_SIG != end64.getInt(0))
+                    throw new ZipException(
+                            name + " (invalid ZIP64 end header)");
+                total = end64.getLong(32);
+                cenSize = end64.getLong(40);
+                cenOff = end64.getLong(48);
+                cenPos = end64Pos - cenSize;
+            }
+        }
+        if (0 > cenPos || 0 > total || total > cenSize / CEN_HDR
+                || cenSize > Integer.MAX_VALUE)
+            throw new ZipException(name + " (invalid central directory)");
+        // Compensate for any data which has been prepended to the ZIP file.
+        final long base = cenPos - cenOff;
+        final ByteBuffer cen = reader.read(cenPos, (int) cenSize);
+        final int n = (int) total;
+        final int[] headers = new int[n];
+        final long[] locals = new long[n], csizes = new long[n],
+                sizes = new long[n];
+        for (int i = 0, pos = 0; i < n; i++) {
+            if (pos + CEN_HDR > cenSize || CEN_SIG != cen.getInt(pos))
+                throw new ZipException(
+                        name + " (invalid central directory header)");
+            final int nameLen = cen.getShort(pos + 28) & 0xffff;
+            final int extraLen = cen.getShort(pos + 30) & 0xffff;
+            final int commentLen = cen.getShort(pos + 32) & 0xffff;
+            long csize = cen.getInt(pos + 20) & UINT32_MAX;
+            long usize = cen.getInt(pos + 24) & UINT32_MAX;
+            long offset = cen.getInt(pos + 42) & UINT32_MAX;
+            if (UINT32_MAX == usize || UINT32_MAX == csize
+                    || UINT32_MAX == offset) {
+                // The ZIP64 extra field holds the values in this order.
+                int extra = zip64Extra(cen, pos + CEN_HDR + nameLen,
+                        extraLen, name);
+                if (UINT32_MAX == usize) {
+                    usize = cen.getLong(extra);
+                    extra += 8;
+                }
+                if (UINT32_MAX == csize) {
+                    csize = cen.getLong(extra);
+                    extra += 8;
+                }
+                if (UINT32_MAX == offset) offset = cen.getLong(extra);
+            }
+            final long local = base + offset;
+            if (0 > local || local > size - LOC_HDR || 0 > csize)
+                throw new ZipException(
+                        name + " (invalid central directory header)");
+            headers[i] = pos;
+            locals[i] = local;
+            csizes[i] = csize;
+            sizes[i] = usize;
+            pos += CEN_HDR + nameLen + extraLen + commentLen;
+        }
+        this.buffer = cen;
+        this.position = cenPos;
+        this.headers = headers;
+        this.locals = locals;
+        this.csizes = csizes;
+        this.sizes = sizes;
+    }
+
+    private static long findEnd(
+            final Reader reader,
+            final long size,
+            final String name)
+    throws IOException {
+        final int len = (int) Math.min(size, END_HDR + MAX_COMMENT);
+        final long start = size - len;
+        final ByteBuffer buf = reader.read(start, len);
+        for (int pos = len - END_HDR; 0 <= pos; pos--)
+            if (END_SIG == buf.getInt(pos)
+                    && pos + END_HDR + (buf.getShort(pos + 20) & 0xffff) <= len)
+                return start + pos;
+        throw new ZipException(
+                name + " (missing end of central directory record)");
+    }
+
+    private static int zip64Extra(
+            final ByteBuffer cen,
+            int pos,
+            final int extraLen,
+            final String name)
+    throws ZipException {
+        for (final int end = pos + extraLen; pos + 4 <= end; ) {
+            final int id = cen.getShort(pos) & 0xffff;
+            final int len = cen.getShort(pos + 2) & 0xffff;
+            if (ZIP64_EXTRA == id && pos + 4 + len <= end) return pos + 4;
+            pos += 4 + len;
+        }
+        throw new ZipException(name + " (invalid ZIP64 extra field)");
+    }
+
+    /** Returns the number of entries. */
+    int size() { return headers.length; }
+
+    /** Returns the length of the name of the entry with the given index. */
+    int nameLength(int index) {
+        return buffer.getShort(headers[index] + 28) & 0xffff;
+    }
+
+    /** Decodes the name of the entry with the given index. */
+    String name(final int index) {
+        final byte[] bytes = new byte[nameLength(index)];
+        final ByteBuffer dup = buffer.duplicate();
+        dup.position(headers[index] + CEN_HDR);
+        dup.get(bytes);
+        return new String(bytes, UTF8);
+    }
+}
@@ -6,7 +6,6 @@ package net.java.trueupdate.core.zip.io;
 
 import java.io.*;
 import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
 
 /**
  * A file based JAR store.
@@ -22,7 +21,6 @@ public class JarFileStore extends ZipFileStore {
     }
 
     @Override public ZipOutput output() throws IOException {
-        return new JarOutputStreamAdapter(new JarOutputStream(
-                new FileOutputStream(file)));
+        return new JarWriter(new FileOutputStream(file));
     }
 }
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.core.zip.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.jar.JarEntry;
+import java.util.zip.ZipEntry;
+import javax.annotation.CheckForNull;
+import javax.annotation.WillCloseWhenClosed;
+
+/**
+ * Writes a JAR file to an output stream.
+ * Like {@link java.util.jar.JarOutputStream}, this class adds the JAR magic
+ * extra field to the first entry, so that the resulting file gets recognized
+ * as an executable JAR file on Solaris.
+ *
+ * @author Christian Schlichtherle
+ */
+public class JarWriter extends ZipWriter {
+
+    private static final int JAR_MAGIC = 0xCAFE;
+
+    private boolean first = true;
+
+    public JarWriter(@WillCloseWhenClosed OutputStream out) { super(out); }
+
+    @Override public ZipEntry entry(String name) { return new JarEntry(name); }
+
+    @Override
+    public OutputStream stream(ZipEntry entry) throws IOException {
+        return super.stream(magic(entry));
+    }
+
+    @Override
+    public OutputStream rawStream(ZipEntry entry) throws IOException {
+        return super.rawStream(magic(entry));
+    }
+
+    private ZipEntry magic(final ZipEntry entry) {
+        if (first) {
+            first = false;
+            if (!hasMagic(entry.getExtra()))
+                entry.setExtra(magic(entry.getExtra()));
+        }
+        return entry;
+    }
+
+    private static boolean hasMagic(final @CheckForNull byte[] extra) {
+        if (null == extra) return false;
+        for (int pos = 0; pos + 4 <= extra.length; ) {
+            final int id = (extra[pos] & 0xff) | (extra[pos + 1] & 0xff) << 8;
+            if (JAR_MAGIC == id) return true;
+            pos += 4 + ((extra[pos + 2] & 0xff) | (extra[pos + 3] & 0xff) << 8);
+        }
+        return false;
+    }
+
+    private static byte[] magic(final @CheckForNull byte[] extra) {
+        final int length = null == extra ? 0 : extra.length;
+        final byte[] magic = new byte[4 + length];
+        magic[0] = (byte) JAR_MAGIC;
+        magic[1] = (byte) (JAR_MAGIC >> 8);
+        if (0 < length) System.arraycopy(extra, 0, magic, 4, length);
+        return magic;
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.core.zip.io;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.*;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import net.java.trueupdate.core.io.Store;
+
+import static net.java.trueupdate.core.zip.io.CentralDirectory.*;
+
+/**
+ * A ZIP input which maps a ZIP file into memory.
+ * Upon construction, the {@linkplain CentralDirectory central directory}
+ * gets parsed into a compact index of primitive arrays instead of a
+ * {@link ZipEntry} object per entry, so opening a ZIP file with many entries
+ * is cheap.
+ * The contents of an entry are read from a {@linkplain #slice slice} of the
+ * mapping, so reading them doesn't require a native handle per entry and
+ * reading the raw contents doesn't copy any data.
+ * <p>
+ * The ZIP file must not be larger than {@link Integer#MAX_VALUE} bytes.
+ * Note that the mapping gets released by the garbage collector only, so on
+ * some platforms the ZIP file cannot get deleted until then.
+ *
+ * @see    MappedZipFileStore
+ * @author Christian Schlichtherle
+ */
+@ThreadSafe
+public final class MappedZipFile implements RawZipInput {
+
+    private final String name;
+    private volatile @CheckForNull ByteBuffer map;
+
+    /** The positions of the central directory headers of the entries. */
+    private final int[] headers;
+
+    /** The positions of the local file headers of the entries. */
+    private final int[] locals;
+
+    /**
+     * The positions of the contents of the entries or zero if not yet
+     * resolved.
+     */
+    private final int[] data;
+
+    /** The compressed and uncompressed sizes of the entries. */
+    private final long[] csizes, sizes;
+
+    /** An open addressing hash table of the entry indexes plus one. */
+    private final int[] table;
+
+    /** Maps the given ZIP file into memory and indexes its entries. */
+    public MappedZipFile(final File file) throws IOException {
+        this.name = file.getPath();
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        final ByteBuffer map;
+        try {
+            final FileChannel channel = raf.getChannel();
+            final long size = channel.size();
+            if (Integer.MAX_VALUE < size)
+                throw new ZipException(name + " (too large for mapping)");
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            raf.close();
+        }
+        final CentralDirectory cen = CentralDirectory.parse(
+                new CentralDirectory.Reader() {
+                    @Override public ByteBuffer read(long position, int length) {
+                        final ByteBuffer slice = map.duplicate();
+                        slice.limit((int) position + length)
+                                .position((int) position);
+                        return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+                    }
+                }, map.limit(), name);
+        final int n = cen.size();
+        final int[] headers = new int[n], locals = new int[n];
+        final int[] table = new int[tableSize(n)];
+        for (int i = 0; i < n; i++) {
+            headers[i] = (int) cen.position + cen.headers[i];
+            locals[i] = (int) cen.locals[i];
+            put(table, headers, map, i);
+        }
+        this.map = map;
+        this.headers = headers;
+        this.locals = locals;
+        this.data = new int[n];
+        this.csizes = cen.csizes;
+        this.sizes = cen.sizes;
+        this.table = table;
+    }
+
+    private static int tableSize(final int entries) {
+        int size = 16;
+        while (size < entries * 2 && 0 < size) size <<= 1;
+        return 0 < size ? size : 1 << 30;
+    }
+
+    /**
+     * Puts the given entry index into the given hash table unless an entry
+     * with the same name has been put already.
+     */
+    private static void put(
+            final int[] table,
+            final int[] headers,
+            final ByteBuffer map,
+            final int index) {
+        final int header = headers[index];
+        final int len = map.getShort(header + 28) & 0xffff;
+        final int mask = table.length - 1;
+        for (int slot = hash(map, header + CEN_HDR, len) & mask; ;
+                slot = slot + 1 & mask) {
+            final int entry = table[slot];
+            if (0 == entry) {
+                table[slot] = index + 1;
+                return;
+            }
+            if (sameName(map, headers[entry - 1], header)) return;
+        }
+    }
+
+    private static int hash(final ByteBuffer map, int off, final int len) {
+        int hash = 0;
+        for (final int end = off + len; off < end; off++)
+            hash = 31 * hash + map.get(off);
+        return hash ^ hash >>> 16;
+    }
+
+    private static int hash(final byte[] name) {
+        int hash = 0;
+        for (final byte b : name) hash = 31 * hash + b;
+        return hash ^ hash >>> 16;
+    }
+
+    private static boolean sameName(
+            final ByteBuffer map,
+            final int header1,
+            final int header2) {
+        final int len = map.getShort(header1 + 28) & 0xffff;
+        if ((map.getShort(header2 + 28) & 0xffff) != len) return false;
+        final int off1 = header1 + CEN_HDR, off2 = header2 + CEN_HDR;
+        for (int i = 0; i < len; i++)
+            if (map.get(off1 + i) != map.get(off2 + i)) return false;
+        return true;
+    }
+
+    /** Returns the number of entries in the ZIP file. */
+    public int size() { return headers.length; }
+
+    @Override public Iterator<ZipEntry> iterator() {
+        final ByteBuffer map = this.map;
+        return new Iterator<ZipEntry>() {
+            int index;
+
+            @Override public boolean hasNext() {
+                return index < headers.length;
+            }
+
+            @Override public ZipEntry next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                if (null == map) throw new IllegalStateException("Closed.");
+                return entry(map, index++);
+            }
+
+            @Override public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override public @Nullable ZipEntry entry(final String name) {
+        final ByteBuffer map = this.map;
+        if (null == map) throw new IllegalStateException("Closed.");
+        int index = index(map, name);
+        if (0 > index && !name.endsWith("/")) index = index(map, name + '/');
+        return 0 > index ? null : entry(map, index);
+    }
+
+    private int index(final ByteBuffer map, final String name) {
+        final byte[] bytes = name.getBytes(UTF8);
+        final int mask = table.length - 1;
+        for (int slot = hash(bytes) & mask; ; slot = slot + 1 & mask) {
+            final int entry = table[slot];
+            if (0 == entry) return -1;
+            final int index = entry - 1;
+            if (matches(map, headers[index], bytes)) return index;
+        }
+    }
+
+    private static boolean matches(
+            final ByteBuffer map,
+            final int header,
+            final byte[] name) {
+        if ((map.getShort(header + 28) & 0xffff) != name.length) return false;
+        for (int i = 0, off = header + CEN_HDR; i < name.length; i++)
+            if (map.get(off + i) != name[i]) return false;
+        return true;
+    }
+
+    private ZipEntry entry(final ByteBuffer map, final int index) {
+        final int header = headers[index];
+        final int nameLen = map.getShort(header + 28) & 0xffff;
+        final int extraLen = map.getShort(header + 30) & 0xffff;
+        final int commentLen = map.getShort(header + 32) & 0xffff;
+        final int off = header + CEN_HDR;
+        final ZipEntry entry = new IndexedEntry(
+                string(map, off, nameLen), index);
+        entry.setMethod(map.getShort(header + 10) & 0xffff);
+        entry.setTime(javaTime(map.getInt(header + 12) & UINT32_MAX));
+        entry.setCrc(map.getInt(header + 16) & UINT32_MAX);
+        entry.setSize(sizes[index]);
+        entry.setCompressedSize(csizes[index]);
+        if (0 < extraLen) {
+            final byte[] extra = new byte[extraLen];
+            get(map, off + nameLen, extra);
+            entry.setExtra(extra);
+        }
+        if (0 < commentLen)
+            entry.setComment(string(map, off + nameLen + extraLen, commentLen));
+        return entry;
+    }
+
+    private static String string(
+            final ByteBuffer map,
+            final int off,
+            final int len) {
+        final byte[] bytes = new byte[len];
+        get(map, off, bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static void get(
+            final ByteBuffer map,
+            final int off,
+            final byte[] bytes) {
+        final ByteBuffer dup = map.duplicate();
+        dup.position(off);
+        dup.get(bytes);
+    }
+
+    /** Converts the given MS-DOS date and time to Java time. */
+    private static long javaTime(final long dtime) {
+        return new GregorianCalendar(
+                (int) (dtime >> 25 & 0x7f) + 1980,
+                (int) (dtime >> 21 & 0x0f) - 1,
+                (int) (dtime >> 16 & 0x1f),
+                (int) (dtime >> 11 & 0x1f),
+                (int) (dtime >> 5 & 0x3f),
+                (int) (dtime << 1 & 0x3e)).getTimeInMillis();
+    }
+
+    /**
+     * Returns a read-only slice of the mapping which contains the raw, that
+     * is the compressed contents of the given entry.
+     * The slice doesn't copy any data and stays valid even after this ZIP
+     * file has been closed.
+     */
+    public ByteBuffer slice(final ZipEntry entry) throws IOException {
+        final ByteBuffer map = this.map;
+        if (null == map) throw new IOException(name + " (closed)");
+        final int index = indexOf(map, entry);
+        int start = data[index];
+        if (0 == start) {
+            final int local = locals[index];
+            if (LOC_SIG != map.getInt(local))
+                throw new ZipException(entry.getName()
+                        + " (invalid local file header)");
+            data[index] = start = local + LOC_HDR
+                    + (map.getShort(local + 26) & 0xffff)
+                    + (map.getShort(local + 28) & 0xffff);
+        }
+        final long csize = csizes[index];
+        if (csize > map.limit() - start)
+            throw new ZipException(entry.getName() + " (truncated)");
+        final ByteBuffer slice = map.duplicate();
+        slice.limit(start + (int) csize).position(start);
+        return slice.slice().asReadOnlyBuffer();
+    }
+
+    private int indexOf(final ByteBuffer map, final ZipEntry entry)
+    throws ZipException {
+        if (entry instanceof IndexedEntry
+                && this == ((IndexedEntry) entry).file())
+            return ((IndexedEntry) entry).index;
+        final int index = index(map, entry.getName());
+        if (0 > index) throw new ZipException(entry.getName() + " (not found)");
+        return index;
+    }
+
+    @Override
+    public InputStream rawStream(ZipEntry entry) throws IOException {
+        return new ByteBufferInputStream(slice(entry));
+    }
+
+    @Override
+    public InputStream stream(final ZipEntry entry) throws IOException {
+        final ByteBuffer slice = slice(entry);
+        switch (entry.getMethod()) {
+            case ZipEntry.STORED:
+                return new ByteBufferInputStream(slice);
+            case ZipEntry.DEFLATED:
+                return new EntryInflaterInputStream(
+                        new ByteBufferInputStream(slice),
+                        Math.min(slice.remaining() + 1, Store.BUFSIZE));
+            default:
+                throw new ZipException(entry.getName()
+                        + " (unsupported compression method "
+                        + entry.getMethod() + ")");
+        }
+    }
+
+    /** Releases the mapping to the garbage collector. */
+    @Override public void close() { map = null; }
+
+    /** A ZIP entry which knows its index in this ZIP file. */
+    private final class IndexedEntry extends ZipEntry {
+
+        final int index;
+
+        IndexedEntry(final String name, final int index) {
+            super(name);
+            this.index = index;
+        }
+
+        MappedZipFile file() { return MappedZipFile.this; }
+    } // IndexedEntry
+
+    /** Reads the remaining contents of a byte buffer. */
+    private static final class ByteBufferInputStream extends InputStream {
+
+        final ByteBuffer buffer;
+
+        ByteBufferInputStream(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override public int read(final byte[] b, final int off, int len) {
+            if (0 == len) return 0;
+            final int remaining = buffer.remaining();
+            if (0 == remaining) return -1;
+            if (len > remaining) len = remaining;
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override public long skip(final long n) {
+            final int skipped = (int) Math.max(0,
+                    Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override public int available() { return buffer.remaining(); }
+    } // ByteBufferInputStream
+
+    /**
+     * Inflates the contents of an entry and releases the inflater when
+     * closed.
+     */
+    private static final class EntryInflaterInputStream
+    extends InflaterInputStream {
+
+        boolean eof, closed;
+
+        EntryInflaterInputStream(final InputStream in, final int size) {
+            super(in, new Inflater(true), size);
+        }
+
+        /**
+         * Provides an extra dummy byte at the end of the input, which the
+         * inflater may require when the ZLIB header and checksum fields are
+         * omitted.
+         */
+        @Override protected void fill() throws IOException {
+            if (eof) throw new EOFException(
+                    "Unexpected end of ZLIB input stream.");
+            len = in.read(buf, 0, buf.length);
+            if (-1 == len) {
+                buf[0] = 0;
+                len = 1;
+                eof = true;
+            }
+            inf.setInput(buf, 0, len);
+        }
+
+        @Override public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try {
+                super.close();
+            } finally {
+                inf.end();
+            }
+        }
+    } // EntryInflaterInputStream
+}
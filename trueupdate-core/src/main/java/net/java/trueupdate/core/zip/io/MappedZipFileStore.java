@@ -0,0 +1,28 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.core.zip.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.zip.ZipFile;
+
+/**
+ * A file based ZIP store which maps the ZIP file into memory for reading.
+ * If the ZIP file is too large for mapping, then it gets read using a
+ * {@link ZipFile} instead.
+ *
+ * @see    MappedZipFile
+ * @author Christian Schlichtherle
+ */
+public class MappedZipFileStore extends ZipFileStore {
+
+    public MappedZipFileStore(File file) { super(file); }
+
+    @Override public ZipInput input() throws IOException {
+        return Integer.MAX_VALUE < file.length()
+                ? super.input()
+                : new MappedZipFile(file);
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.core.zip.io;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.*;
+import javax.annotation.CheckForNull;
+import javax.annotation.WillCloseWhenClosed;
+import javax.annotation.concurrent.NotThreadSafe;
+import net.java.trueupdate.core.io.ThreadGroups;
+
+/**
+ * Decorates a {@link RawZipOutput} in order to deflate entries concurrently.
+ * The contents of each DEFLATED entry get buffered and deflated by a pool of
+ * worker threads while the client continues to write the next entries.
+ * The deflated entries get written to the decorated output as raw entries
+ * in the same order as the client has written them, so any ordering
+ * requirements, e.g. for the manifest of a JAR file, still hold.
+ * <p>
+ * Any other entries and any entries which exceed {@link #MAX_BUFFER_SIZE}
+ * get written to the decorated output directly, after all preceding entries
+ * have been written.
+ *
+ * @author Christian Schlichtherle
+ */
+@NotThreadSafe
+public final class ParallelZipOutput implements RawZipOutput {
+
+    /**
+     * The maximum size of the contents of an entry for deflating it
+     * concurrently, which is {@value}.
+     */
+    public static final int MAX_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private final RawZipOutput output;
+    private final int window;
+    private final ExecutorService executor;
+    private final Deque<Pending> pending = new ArrayDeque<Pending>();
+
+    /**
+     * Constructs a parallel ZIP output.
+     *
+     * @param output the decorated ZIP output.
+     * @param parallelism the number of worker threads for deflating entries.
+     */
+    public ParallelZipOutput(
+            final @WillCloseWhenClosed RawZipOutput output,
+            final int parallelism) {
+        if (0 >= parallelism) throw new IllegalArgumentException();
+        this.output = output;
+        this.window = 2 * parallelism;
+        this.executor = Executors.newFixedThreadPool(parallelism,
+                new DeflaterThreadFactory());
+    }
+
+    @Override public ZipEntry entry(String name) { return output.entry(name); }
+
+    @Override
+    public OutputStream stream(final ZipEntry entry) throws IOException {
+        final int method = entry.getMethod();
+        if (-1 == method || ZipEntry.DEFLATED == method)
+            return new BufferedEntryOutputStream(entry);
+        writePending();
+        return output.stream(entry);
+    }
+
+    @Override
+    public OutputStream rawStream(final ZipEntry entry) throws IOException {
+        writePending();
+        return output.rawStream(entry);
+    }
+
+    /**
+     * Writes all pending entries to the decorated output and shuts down the
+     * worker threads.
+     * This does not close the decorated output.
+     */
+    public void finish() throws IOException {
+        try {
+            writePending();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Discards all pending entries and shuts down the worker threads.
+     * This does not close the decorated output.
+     * This method has no effect if this output has been finished already.
+     */
+    public void cancel() {
+        pending.clear();
+        executor.shutdownNow();
+    }
+
+    @Override public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            output.close();
+        }
+    }
+
+    /** Writes all pending entries to the decorated output. */
+    private void writePending() throws IOException {
+        while (!pending.isEmpty()) write(pending.removeFirst());
+    }
+
+    /** Writes the completed pending entries at the head of the queue. */
+    private void drain() throws IOException {
+        for (Pending head; null != (head = pending.peekFirst())
+                && (head.future.isDone() || pending.size() > window); )
+            write(pending.removeFirst());
+    }
+
+    private void write(final Pending pending) throws IOException {
+        final Deflated deflated = get(pending.future);
+        final ZipEntry entry = pending.entry;
+        entry.setMethod(ZipEntry.DEFLATED);
+        entry.setCrc(deflated.crc);
+        entry.setSize(deflated.size);
+        entry.setCompressedSize(deflated.data.length);
+        final OutputStream out = output.rawStream(entry);
+        try {
+            out.write(deflated.data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static Deflated get(final Future<Deflated> future)
+    throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                } catch (ExecutionException ex) {
+                    final Throwable cause = ex.getCause();
+                    if (cause instanceof IOException) throw (IOException) cause;
+                    if (cause instanceof RuntimeException)
+                        throw (RuntimeException) cause;
+                    if (cause instanceof Error) throw (Error) cause;
+                    throw new IOException(cause);
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt(); // restore
+        }
+    }
+
+    /** An entry which gets deflated by a worker thread. */
+    private static final class Pending {
+
+        final ZipEntry entry;
+        final Future<Deflated> future;
+
+        Pending(final ZipEntry entry, final Future<Deflated> future) {
+            this.entry = entry;
+            this.future = future;
+        }
+    } // Pending
+
+    /** The deflated contents of an entry. */
+    private static final class Deflated {
+
+        final long crc, size;
+        final byte[] data;
+
+        Deflated(final long crc, final long size, final byte[] data) {
+            this.crc = crc;
+            this.size = size;
+            this.data = data;
+        }
+    } // Deflated
+
+    /** Deflates the buffered contents of an entry. */
+    private static final class DeflateTask implements Callable<Deflated> {
+
+        final byte[] buffer;
+        final int length;
+
+        DeflateTask(final byte[] buffer, final int length) {
+            this.buffer = buffer;
+            this.length = length;
+        }
+
+        @Override public Deflated call() {
+            final CRC32 crc = new CRC32();
+            crc.update(buffer, 0, length);
+            final Deflater deflater =
+                    new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try {
+                deflater.setInput(buffer, 0, length);
+                deflater.finish();
+                final ByteArrayOutputStream out =
+                        new ByteArrayOutputStream(length / 2 + 64);
+                final byte[] chunk = new byte[8 * 1024];
+                while (!deflater.finished())
+                    out.write(chunk, 0, deflater.deflate(chunk));
+                return new Deflated(crc.getValue(), length, out.toByteArray());
+            } finally {
+                deflater.end();
+            }
+        }
+    } // DeflateTask
+
+    /**
+     * Buffers the contents of an entry and submits them for deflating when
+     * closed.
+     * If the contents exceed the maximum buffer size, then all pending
+     * entries get written and the contents get written to the decorated
+     * output directly.
+     */
+    private final class BufferedEntryOutputStream extends OutputStream {
+
+        final ZipEntry entry;
+        final Buffer buffer = new Buffer();
+        @CheckForNull OutputStream direct;
+        boolean closed;
+
+        BufferedEntryOutputStream(final ZipEntry entry) { this.entry = entry; }
+
+        @Override public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override public void write(final byte[] b, final int off, final int len)
+        throws IOException {
+            if (closed) throw new IOException("Entry closed.");
+            if (null != direct) {
+                direct.write(b, off, len);
+            } else if (MAX_BUFFER_SIZE - buffer.size() < len) {
+                writePending();
+                direct = output.stream(entry);
+                direct.write(buffer.array(), 0, buffer.size());
+                direct.write(b, off, len);
+            } else {
+                buffer.write(b, off, len);
+            }
+        }
+
+        @Override public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            if (null != direct) {
+                direct.close();
+            } else {
+                pending.addLast(new Pending(entry, executor.submit(
+                        new DeflateTask(buffer.array(), buffer.size()))));
+                drain();
+            }
+        }
+    } // BufferedEntryOutputStream
+
+    /** Exposes the internal array of a byte array output stream. */
+    private static final class Buffer extends ByteArrayOutputStream {
+        byte[] array() { return buf; }
+    } // Buffer
+
+    /**
+     * Creates numbered daemon threads in the server thread group, so that
+     * they don't inherit the thread group of the thread which happens to
+     * create the parallel ZIP output.
+     */
+    private static final class DeflaterThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(
+                    ThreadGroups.getServerThreadGroup(), r,
+                    ParallelZipOutput.class.getName() + '-'
+                    + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    } // DeflaterThreadFactory
+}
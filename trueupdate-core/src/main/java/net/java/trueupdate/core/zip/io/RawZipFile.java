@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.core.zip.io;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static net.java.trueupdate.core.zip.io.CentralDirectory.*;
+
+/**
+ * Reads the raw contents of the entries in a ZIP file.
+ * This class parses the {@linkplain CentralDirectory central directory} of
+ * the ZIP file in order to locate the local file headers of its entries.
+ *
+ * @author Christian Schlichtherle
+ */
+@ThreadSafe
+final class RawZipFile implements Closeable, CentralDirectory.Reader {
+
+    private final String name;
+    private final FileChannel channel;
+    private volatile Map<String, Long> offsets;
+
+    RawZipFile(final File file) throws IOException {
+        this.name = file.getPath();
+        this.channel = new RandomAccessFile(file, "r").getChannel();
+    }
+
+    /**
+     * Returns an input stream for reading the raw contents of the given
+     * entry.
+     */
+    InputStream stream(final ZipEntry entry) throws IOException {
+        final String name = entry.getName();
+        final Long offset = offsets().get(name);
+        if (null == offset) throw new ZipException(name + " (not found)");
+        final ByteBuffer loc = read(offset, LOC_HDR);
+        if (LOC_SIG != loc.getInt(0))
+            throw new ZipException(name + " (invalid local file header)");
+        final long start = offset + LOC_HDR
+                + (loc.getShort(26) & 0xffff)
+                + (loc.getShort(28) & 0xffff);
+        final long length = entry.getCompressedSize();
+        if (0 > length) throw new ZipException(name + " (unknown size)");
+        return new RegionInputStream(start, length);
+    }
+
+    private Map<String, Long> offsets() throws IOException {
+        Map<String, Long> offsets = this.offsets;
+        if (null == offsets) {
+            synchronized (this) {
+                offsets = this.offsets;
+                if (null == offsets) this.offsets = offsets = parse();
+            }
+        }
+        return offsets;
+    }
+
+    private Map<String, Long> parse() throws IOException {
+        final CentralDirectory cen = CentralDirectory.parse(
+                this, channel.size(), name);
+        final int n = cen.size();
+        final Map<String, Long> offsets = new HashMap<String, Long>(
+                Math.max(n * 4 / 3 + 1, 16));
+        for (int i = 0; i < n; i++) {
+            final String key = cen.name(i);
+            if (!offsets.containsKey(key)) offsets.put(key, cen.locals[i]);
+        }
+        return offsets;
+    }
+
+    @Override
+    public ByteBuffer read(long position, final int length)
+    throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.hasRemaining()) {
+            final int read = channel.read(buf, position);
+            if (0 > read) throw new EOFException();
+            position += read;
+        }
+        buf.flip();
+        return buf;
+    }
+
+    @Override public void close() throws IOException { channel.close(); }
+
+    /** Reads a region of the ZIP file using positional reads. */
+    private final class RegionInputStream extends InputStream {
+
+        final long limit;
+        long position;
+
+        RegionInputStream(final long start, final long length) {
+            this.position = start;
+            this.limit = start + length;
+        }
+
+        @Override public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return 1 == read(b, 0, 1) ? b[0] & 0xff : -1;
+        }
+
+        @Override public int read(final byte[] b, final int off, final int len)
+        throws IOException {
+            if (0 == len) return 0;
+            if (position >= limit) return -1;
+            final int max = (int) Math.min(len, limit - position);
+            final int read = channel.read(ByteBuffer.wrap(b, off, max), position);
+            if (0 > read) throw new EOFException();
+            position += read;
+            return read;
+        }
+
+        @Override public long skip(final long n) {
+            final long skipped = Math.max(0, Math.min(n, limit - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override public int available() {
+            return (int) Math.min(limit - position, Integer.MAX_VALUE);
+        }
+    } // RegionInputStream
+}
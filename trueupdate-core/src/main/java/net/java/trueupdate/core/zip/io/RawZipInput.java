@@ -0,0 +1,26 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.core.zip.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * A ZIP input which can read the raw, that is the compressed contents of its
+ * entries.
+ *
+ * @see RawZipOutput
+ * @author Christian Schlichtherle
+ */
+public interface RawZipInput extends ZipInput {
+
+    /**
+     * Returns an input stream for reading the raw ZIP entry contents.
+     * The stream provides exactly {@link ZipEntry#getCompressedSize()} bytes
+     * of data compressed with {@link ZipEntry#getMethod()}.
+     */
+    InputStream rawStream(ZipEntry entry) throws IOException;
+}
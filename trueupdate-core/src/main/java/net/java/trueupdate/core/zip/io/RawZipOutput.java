@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.core.zip.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * A ZIP output which can write the raw, that is the compressed contents of
+ * its entries.
+ * This enables copying entries from a {@link RawZipInput} without inflating
+ * and deflating them again.
+ *
+ * @see RawZipInput
+ * @author Christian Schlichtherle
+ */
+public interface RawZipOutput extends ZipOutput {
+
+    /**
+     * Returns an output stream for writing the raw ZIP entry contents.
+     * The method, CRC-32 value, size and compressed size of the given entry
+     * must be set and the stream must receive exactly
+     * {@link ZipEntry#getCompressedSize()} bytes of data compressed with
+     * {@link ZipEntry#getMethod()}.
+     * The CRC-32 value and size are written as is without verifying them.
+     */
+    OutputStream rawStream(ZipEntry entry) throws IOException;
+}
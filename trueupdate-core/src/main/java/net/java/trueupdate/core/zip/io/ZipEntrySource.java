@@ -28,6 +28,9 @@ public final class ZipEntrySource implements Source {
         this.input = requireNonNull(input);
     }
 
+    /** Returns the entry. */
+    public ZipEntry entry() { return entry; }
+
     /** Returns the entry name. */
     public String name() { return entry.getName(); }
 
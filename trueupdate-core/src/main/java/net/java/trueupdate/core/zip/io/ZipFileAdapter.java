@@ -4,8 +4,10 @@
  */
 package net.java.trueupdate.core.zip.io;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nullable;
 import javax.annotation.WillCloseWhenClosed;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Enumeration;
@@ -16,16 +18,20 @@ import java.util.zip.ZipFile;
 import static java.util.Objects.requireNonNull;
 
 /**
- * Adapts a {@link ZipFile} to a {@link ZipInput}.
+ * Adapts a {@link ZipFile} to a {@link RawZipInput}.
+ * Reading the raw contents of an entry opens the ZIP file once more, so
+ * unless you call {@link #rawStream}, there is no overhead.
  *
  * @see ZipOutputStreamAdapter
  * @author Christian Schlichtherle
  */
-public class ZipFileAdapter implements ZipInput {
+public class ZipFileAdapter implements RawZipInput {
 
     /** The adapted ZIP file. */
     protected ZipFile zip;
 
+    private @CheckForNull RawZipFile raw;
+
     /** Use of this constructor requires setting the {@code zip} field. */
     protected ZipFileAdapter() { }
 
@@ -56,5 +62,27 @@ public class ZipFileAdapter implements ZipInput {
         return zip.getInputStream(entry);
     }
 
-    @Override public void close() throws IOException { zip.close(); }
+    @Override
+    public InputStream rawStream(final ZipEntry entry) throws IOException {
+        return raw().stream(entry);
+    }
+
+    private synchronized RawZipFile raw() throws IOException {
+        final RawZipFile raw = this.raw;
+        return null != raw ? raw
+                : (this.raw = new RawZipFile(new File(zip.getName())));
+    }
+
+    @Override public void close() throws IOException {
+        final RawZipFile raw;
+        synchronized (this) {
+            raw = this.raw;
+            this.raw = null;
+        }
+        try {
+            zip.close();
+        } finally {
+            if (null != raw) raw.close();
+        }
+    }
 }
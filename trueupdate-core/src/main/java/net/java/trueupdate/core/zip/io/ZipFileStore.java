@@ -8,7 +8,6 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
 
 import static java.util.Objects.requireNonNull;
 
@@ -25,13 +24,15 @@ public class ZipFileStore implements ZipStore {
         this.file = requireNonNull(file);
     }
 
+    /** Returns the ZIP file. */
+    public File file() { return file; }
+
     @Override public ZipInput input() throws IOException {
         return new ZipFileAdapter(new ZipFile(file));
     }
 
     @Override public ZipOutput output() throws IOException {
-        return new ZipOutputStreamAdapter(new ZipOutputStream(
-                new FileOutputStream(file)));
+        return new ZipWriter(new FileOutputStream(file));
     }
 
     @Override public void delete() throws IOException {
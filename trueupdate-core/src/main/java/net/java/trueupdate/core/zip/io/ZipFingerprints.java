@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.core.zip.io;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import javax.annotation.WillNotClose;
+
+/**
+ * Provides functions for fingerprinting ZIP files.
+ *
+ * @author Christian Schlichtherle
+ */
+public final class ZipFingerprints {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Computes a fingerprint of the given ZIP input from the name, CRC-32
+     * value and size of its file entries in the order of their names.
+     * This requires only the meta data from the central directory, not the
+     * contents of the entries, so it's cheap even for large archives.
+     * Directory entries get ignored, so that the fingerprint doesn't change
+     * when an archive gets unzipped and zipped again.
+     * However, adding, removing or changing any file entry changes the
+     * fingerprint.
+     *
+     * @param input the ZIP input.
+     * @param digest the message digest to use, which gets reset.
+     * @return the message digest value.
+     */
+    public static byte[] compute(
+            final @WillNotClose ZipInput input,
+            final MessageDigest digest) {
+        final List<ZipEntry> entries = new ArrayList<ZipEntry>();
+        for (final ZipEntry entry : input)
+            if (!entry.isDirectory()) entries.add(entry);
+        Collections.sort(entries, new Comparator<ZipEntry>() {
+            @Override public int compare(ZipEntry entry1, ZipEntry entry2) {
+                return entry1.getName().compareTo(entry2.getName());
+            }
+        });
+        digest.reset();
+        final byte[] buf = new byte[17];
+        for (final ZipEntry entry : entries) {
+            digest.update(entry.getName().getBytes(UTF8));
+            // The first byte is always zero and terminates the name.
+            putLong(buf, 1, entry.getCrc());
+            putLong(buf, 9, entry.getSize());
+            digest.update(buf);
+        }
+        return digest.digest();
+    }
+
+    private static void putLong(final byte[] buf, final int off, long value) {
+        for (int i = off + 7; i >= off; i--) {
+            buf[i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private ZipFingerprints() { }
+}
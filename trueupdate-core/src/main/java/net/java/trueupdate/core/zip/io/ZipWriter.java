@@ -0,0 +1,454 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.core.zip.io;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.zip.*;
+import javax.annotation.CheckForNull;
+import javax.annotation.WillCloseWhenClosed;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Writes a ZIP file to an output stream.
+ * Unlike {@link ZipOutputStream}, this class can also write the raw, that is
+ * the compressed contents of an entry, e.g. for copying it from a
+ * {@link RawZipInput}.
+ * Entry names and comments are always encoded in UTF-8.
+ * ZIP64 extensions are used when required.
+ *
+ * @see ZipFileAdapter
+ * @author Christian Schlichtherle
+ */
+@NotThreadSafe
+public class ZipWriter implements RawZipOutput {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int LOC_SIG = 0x04034b50;
+    private static final int EXT_SIG = 0x08074b50;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int ZIP64_LOC_SIG = 0x07064b50;
+
+    private static final int ZIP64_EXTRA = 0x0001;
+    private static final int DATA_DESCRIPTOR = 1 << 3, UTF8_NAMES = 1 << 11;
+    private static final long UINT32_MAX = 0xffffffffL;
+    private static final int UINT16_MAX = 0xffff;
+
+    private final CountingOutputStream out;
+    private final List<Record> records = new ArrayList<Record>();
+    private final Set<String> names = new HashSet<String>();
+    private @CheckForNull OutputStream current;
+    private boolean closed;
+
+    public ZipWriter(final @WillCloseWhenClosed OutputStream out) {
+        this.out = new CountingOutputStream(new BufferedOutputStream(
+                requireNonNull(out), 64 * 1024));
+    }
+
+    @Override public ZipEntry entry(String name) { return new ZipEntry(name); }
+
+    @Override
+    public OutputStream stream(final ZipEntry entry) throws IOException {
+        final int method = -1 == entry.getMethod()
+                ? ZipEntry.DEFLATED : entry.getMethod();
+        if (ZipEntry.STORED == method) {
+            if (-1 == entry.getSize() || -1 == entry.getCrc())
+                throw new ZipException(entry.getName()
+                        + " (STORED entry requires size and CRC-32 value)");
+            final Record record = begin(entry, method, 0, entry.getSize());
+            return current = new StoredOutputStream(record);
+        } else if (ZipEntry.DEFLATED == method) {
+            final Record record = begin(entry, method, DATA_DESCRIPTOR, -1);
+            return current = new DeflatedOutputStream(record,
+                    entry.getCrc(), entry.getSize());
+        } else {
+            throw new ZipException(entry.getName()
+                    + " (unsupported compression method " + method + ")");
+        }
+    }
+
+    @Override
+    public OutputStream rawStream(final ZipEntry entry) throws IOException {
+        final int method = entry.getMethod();
+        if (-1 == method || -1 == entry.getCrc() || -1 == entry.getSize()
+                || -1 == entry.getCompressedSize())
+            throw new ZipException(entry.getName() + " (raw entry requires "
+                    + "method, size, compressed size and CRC-32 value)");
+        final Record record = begin(entry, method, 0,
+                entry.getCompressedSize());
+        return current = new RawOutputStream(record);
+    }
+
+    /** Writes the local file header and returns the record for the entry. */
+    private Record begin(
+            final ZipEntry entry,
+            final int method,
+            final int flags,
+            final long csize)
+    throws IOException {
+        if (closed) throw new IOException("ZIP writer closed.");
+        if (null != current) current.close();
+        final String name = entry.getName();
+        if (!names.add(name))
+            throw new ZipException("duplicate entry: " + name);
+        final Record record = new Record();
+        record.name = name.getBytes(UTF8);
+        final String comment = entry.getComment();
+        record.comment = null == comment ? new byte[0] : comment.getBytes(UTF8);
+        record.extra = strip(entry.getExtra());
+        record.method = method;
+        record.flags = flags | UTF8_NAMES;
+        record.time = dosTime(-1 == entry.getTime()
+                ? System.currentTimeMillis() : entry.getTime());
+        record.offset = out.count;
+        if (0 == (flags & DATA_DESCRIPTOR)) {
+            record.crc = entry.getCrc();
+            record.size = entry.getSize();
+            record.csize = csize;
+        }
+        if (record.name.length > UINT16_MAX
+                || record.comment.length > UINT16_MAX)
+            throw new ZipException(name + " (name or comment too long)");
+
+        final boolean zip64 = UINT32_MAX <= record.size
+                || UINT32_MAX <= record.csize;
+        final byte[] extra = zip64
+                ? concat(zip64Extra(record.size, record.csize, -1), record.extra)
+                : record.extra;
+        if (extra.length > UINT16_MAX)
+            throw new ZipException(name + " (extra field too long)");
+        writeInt(LOC_SIG);
+        writeShort(version(record, zip64));
+        writeShort(record.flags);
+        writeShort(method);
+        writeInt(record.time);
+        if (0 != (flags & DATA_DESCRIPTOR)) {
+            // The CRC-32 value and sizes follow in the data descriptor.
+            writeInt(0);
+            writeInt(0);
+            writeInt(0);
+        } else {
+            writeInt(record.crc);
+            writeInt(zip64 ? UINT32_MAX : record.csize);
+            writeInt(zip64 ? UINT32_MAX : record.size);
+        }
+        writeShort(record.name.length);
+        writeShort(extra.length);
+        out.write(record.name);
+        out.write(extra);
+        return record;
+    }
+
+    /** Finishes the given entry. */
+    private void end(final Record record) {
+        records.add(record);
+        current = null;
+    }
+
+    @Override public void close() throws IOException {
+        if (closed) return;
+        try {
+            if (null != current) current.close();
+            final long cenPos = out.count;
+            for (final Record record : records) writeCentralHeader(record);
+            final long cenSize = out.count - cenPos;
+            final long total = records.size();
+            if (UINT16_MAX <= total || UINT32_MAX <= cenPos
+                    || UINT32_MAX <= cenSize) {
+                final long end64Pos = out.count;
+                writeInt(ZIP64_END_SIG);
+                writeLong(44);
+                writeShort(45);
+                writeShort(45);
+                writeInt(0);
+                writeInt(0);
+                writeLong(total);
+                writeLong(total);
+                writeLong(cenSize);
+                writeLong(cenPos);
+                writeInt(ZIP64_LOC_SIG);
+                writeInt(0);
+                writeLong(end64Pos);
+                writeInt(1);
+            }
+            writeInt(END_SIG);
+            writeShort(0);
+            writeShort(0);
+            writeShort((int) Math.min(total, UINT16_MAX));
+            writeShort((int) Math.min(total, UINT16_MAX));
+            writeInt(Math.min(cenSize, UINT32_MAX));
+            writeInt(Math.min(cenPos, UINT32_MAX));
+            writeShort(0);
+        } finally {
+            closed = true;
+            out.close();
+        }
+    }
+
+    private void writeCentralHeader(final Record record) throws IOException {
+        final boolean zip64size = UINT32_MAX <= record.size
+                || UINT32_MAX <= record.csize;
+        final boolean zip64offset = UINT32_MAX <= record.offset;
+        final byte[] extra = zip64size || zip64offset
+                ? concat(zip64Extra(
+                        zip64size ? record.size : -1,
+                        zip64size ? record.csize : -1,
+                        zip64offset ? record.offset : -1),
+                    record.extra)
+                : record.extra;
+        final int version = version(record, zip64size || zip64offset);
+        writeInt(CEN_SIG);
+        writeShort(version);
+        writeShort(version);
+        writeShort(record.flags);
+        writeShort(record.method);
+        writeInt(record.time);
+        writeInt(record.crc);
+        writeInt(zip64size ? UINT32_MAX : record.csize);
+        writeInt(zip64size ? UINT32_MAX : record.size);
+        writeShort(record.name.length);
+        writeShort(extra.length);
+        writeShort(record.comment.length);
+        writeShort(0);
+        writeShort(0);
+        writeInt(0);
+        writeInt(zip64offset ? UINT32_MAX : record.offset);
+        out.write(record.name);
+        out.write(extra);
+        out.write(record.comment);
+    }
+
+    private static int version(final Record record, final boolean zip64) {
+        return zip64 ? 45 : ZipEntry.STORED == record.method
+                && 0 == (record.flags & DATA_DESCRIPTOR) ? 10 : 20;
+    }
+
+    /** Returns a ZIP64 extra field with all given values which are not -1. */
+    private static byte[] zip64Extra(
+            final long size,
+            final long csize,
+            final long offset) {
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream(28);
+        final int len = (-1 != size ? 8 : 0) + (-1 != csize ? 8 : 0)
+                + (-1 != offset ? 8 : 0);
+        le(buf, ZIP64_EXTRA, 2);
+        le(buf, len, 2);
+        if (-1 != size) le(buf, size, 8);
+        if (-1 != csize) le(buf, csize, 8);
+        if (-1 != offset) le(buf, offset, 8);
+        return buf.toByteArray();
+    }
+
+    /** Removes any ZIP64 extra field because it gets recomputed. */
+    private static byte[] strip(final @CheckForNull byte[] extra) {
+        if (null == extra) return new byte[0];
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream(extra.length);
+        for (int pos = 0; pos + 4 <= extra.length; ) {
+            final int id = (extra[pos] & 0xff) | (extra[pos + 1] & 0xff) << 8;
+            final int len = (extra[pos + 2] & 0xff)
+                    | (extra[pos + 3] & 0xff) << 8;
+            if (pos + 4 + len > extra.length) break;
+            if (ZIP64_EXTRA != id) buf.write(extra, pos, 4 + len);
+            pos += 4 + len;
+        }
+        return buf.toByteArray();
+    }
+
+    private static byte[] concat(final byte[] a, final byte[] b) {
+        final byte[] c = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+
+    private static int dosTime(final long time) {
+        final Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(time);
+        final int year = cal.get(Calendar.YEAR);
+        if (1980 > year) return (1 << 21) | (1 << 16);
+        return (year - 1980) << 25
+                | (cal.get(Calendar.MONTH) + 1) << 21
+                | cal.get(Calendar.DAY_OF_MONTH) << 16
+                | cal.get(Calendar.HOUR_OF_DAY) << 11
+                | cal.get(Calendar.MINUTE) << 5
+                | cal.get(Calendar.SECOND) >> 1;
+    }
+
+    private static void le(final OutputStream out, final long value, int bytes)
+    throws IOException {
+        for (long v = value; 0 < bytes--; v >>>= 8)
+            out.write((int) v & 0xff);
+    }
+
+    private static void le(
+            final ByteArrayOutputStream out,
+            final long value,
+            int bytes) {
+        for (long v = value; 0 < bytes--; v >>>= 8)
+            out.write((int) v & 0xff);
+    }
+
+    private void writeShort(int value) throws IOException { le(out, value, 2); }
+
+    private void writeInt(long value) throws IOException { le(out, value, 4); }
+
+    private void writeLong(long value) throws IOException { le(out, value, 8); }
+
+    /** The data for the central directory header of an entry. */
+    private static final class Record {
+        byte[] name, extra, comment;
+        int method, flags, time;
+        long crc, size = -1, csize = -1, offset;
+    }
+
+    /** Counts the number of bytes written to the underlying stream. */
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        long count;
+
+        CountingOutputStream(OutputStream out) { super(out); }
+
+        @Override public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override public void write(byte[] b, int off, int len)
+        throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    } // CountingOutputStream
+
+    /** The base class for the entry output streams. */
+    private abstract class EntryOutputStream extends OutputStream {
+
+        final Record record;
+        final CRC32 crc = new CRC32();
+        long size;
+        boolean closed;
+
+        EntryOutputStream(final Record record) { this.record = record; }
+
+        @Override public final void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        void check() throws IOException {
+            if (closed || ZipWriter.this.closed)
+                throw new IOException("Entry closed.");
+        }
+
+        @Override public final void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            finish();
+            end(record);
+        }
+
+        abstract void finish() throws IOException;
+
+        ZipException mismatch(String what) {
+            return new ZipException(new String(record.name, UTF8)
+                    + " (invalid " + what + ")");
+        }
+    } // EntryOutputStream
+
+    private final class StoredOutputStream extends EntryOutputStream {
+
+        StoredOutputStream(Record record) { super(record); }
+
+        @Override public void write(final byte[] b, final int off, final int len)
+        throws IOException {
+            check();
+            out.write(b, off, len);
+            crc.update(b, off, len);
+            size += len;
+        }
+
+        @Override void finish() throws IOException {
+            if (size != record.size) throw mismatch("size");
+            if (crc.getValue() != record.crc) throw mismatch("CRC-32 value");
+        }
+    } // StoredOutputStream
+
+    private final class DeflatedOutputStream extends EntryOutputStream {
+
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        final byte[] buffer = new byte[8 * 1024];
+        final long expectedCrc, expectedSize;
+        final long start = out.count;
+
+        DeflatedOutputStream(
+                final Record record,
+                final long expectedCrc,
+                final long expectedSize) {
+            super(record);
+            this.expectedCrc = expectedCrc;
+            this.expectedSize = expectedSize;
+        }
+
+        @Override public void write(final byte[] b, final int off, final int len)
+        throws IOException {
+            check();
+            if (0 == len) return;
+            crc.update(b, off, len);
+            size += len;
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) deflate();
+        }
+
+        void deflate() throws IOException {
+            final int n = deflater.deflate(buffer, 0, buffer.length);
+            if (0 < n) out.write(buffer, 0, n);
+        }
+
+        @Override void finish() throws IOException {
+            try {
+                deflater.finish();
+                while (!deflater.finished()) deflate();
+            } finally {
+                deflater.end();
+            }
+            if (-1 != expectedSize && size != expectedSize)
+                throw mismatch("size");
+            if (-1 != expectedCrc && crc.getValue() != expectedCrc)
+                throw mismatch("CRC-32 value");
+            record.crc = crc.getValue();
+            record.size = size;
+            record.csize = out.count - start;
+            writeInt(EXT_SIG);
+            writeInt(record.crc);
+            if (UINT32_MAX <= record.size || UINT32_MAX <= record.csize) {
+                writeLong(record.csize);
+                writeLong(record.size);
+            } else {
+                writeInt(record.csize);
+                writeInt(record.size);
+            }
+        }
+    } // DeflatedOutputStream
+
+    private final class RawOutputStream extends EntryOutputStream {
+
+        RawOutputStream(Record record) { super(record); }
+
+        @Override public void write(final byte[] b, final int off, final int len)
+        throws IOException {
+            check();
+            out.write(b, off, len);
+            size += len;
+        }
+
+        @Override void finish() throws IOException {
+            if (size != record.csize) throw mismatch("compressed size");
+        }
+    } // RawOutputStream
+}
@@ -17,6 +17,7 @@ import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlAttribute;
 import javax.xml.bind.annotation.XmlRootElement;
 import javax.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
@@ -30,9 +31,13 @@ import static java.util.Collections.*;
 
 /**
  * A Value Object which represents the meta data in a delta ZIP file.
- * It encapsulates unmodifiable collections of changed, unchanged, added and
- * removed entry names and message digests in canonical string notation,
- * attributed with the message digest algorithm name and byte length.
+ * It encapsulates unmodifiable collections of changed, unchanged, added,
+ * removed and copied entry names and message digests in canonical string
+ * notation, attributed with the message digest algorithm name and byte
+ * length.
+ * The copied entries are added or changed entries which have the same
+ * contents as some entry in the first archive, so their contents are not
+ * contained in the delta ZIP file.
  *
  * @author Christian Schlichtherle
  */
@@ -46,16 +51,31 @@ public final class DeltaModel implements Serializable {
     /**
      * The name of the entry which contains the marshalled delta model in a
      * delta ZIP file.
-     * This should be the first entry in the delta ZIP file.
+     * This should be the first entry in the delta ZIP file unless it has been
+     * written in streaming mode, in which case it's the last entry.
      */
     public static final String ENTRY_NAME = "META-INF/delta.xml";
 
+    /**
+     * The name of the entry which contains the delta model in its compact
+     * binary encoding in a delta ZIP file.
+     * If present, this entry supersedes the entry named {@link #ENTRY_NAME}.
+     *
+     * @see DeltaModelWriter
+     * @see DeltaModelReader
+     */
+    public static final String BINARY_ENTRY_NAME = "META-INF/delta.bin";
+
     @XmlAttribute(required = true)
     private final String algorithm;
 
     @XmlAttribute
     private final @CheckForNull Integer numBytes;
 
+    @XmlAttribute
+    @XmlJavaTypeAdapter(DigestValueAdapter.class)
+    private final @CheckForNull byte[] fingerprint;
+
     @XmlJavaTypeAdapter(EntryNameAndTwoDigestsMapAdapter.class)
     private final Map<String, EntryNameAndTwoDigests> changed;
 
@@ -63,28 +83,49 @@ public final class DeltaModel implements Serializable {
     private final Map<String, EntryNameAndDigest>
             unchanged, added, removed;
 
+    @XmlJavaTypeAdapter(EntryNameDigestAndSourceMapAdapter.class)
+    private final Map<String, EntryNameDigestAndSource> copied;
+
     /** Required for JAXB. */
     @SuppressWarnings("unused")
     private DeltaModel() {
         algorithm = "";
         numBytes = null;
+        fingerprint = null;
         changed = emptyMap();
         unchanged = added = removed = emptyMap();
+        copied = emptyMap();
     }
 
     DeltaModel(final Builder b) {
-        this.algorithm = b.messageDigest.getAlgorithm();
-        this.numBytes = lengthBytes(b.messageDigest);
-        this.changed = changedMap(b.changed);
-        this.unchanged = unchangedMap(b.unchanged);
-        this.added = unchangedMap(b.added);
-        this.removed = unchangedMap(b.removed);
+        this(b.messageDigest.getAlgorithm(), lengthBytes(b.messageDigest),
+                b.inputFingerprint,
+                b.changed, b.unchanged, b.added, b.removed, b.copied);
+    }
+
+    DeltaModel(
+            final String algorithm,
+            final @Nullable Integer numBytes,
+            final @Nullable byte[] fingerprint,
+            final Collection<EntryNameAndTwoDigests> changed,
+            final Collection<EntryNameAndDigest> unchanged,
+            final Collection<EntryNameAndDigest> added,
+            final Collection<EntryNameAndDigest> removed,
+            final Collection<EntryNameDigestAndSource> copied) {
+        this.algorithm = algorithm;
+        this.numBytes = numBytes;
+        this.fingerprint = fingerprint;
+        this.changed = changedMap(changed);
+        this.unchanged = unchangedMap(unchanged);
+        this.added = unchangedMap(added);
+        this.removed = unchangedMap(removed);
+        this.copied = copiedMap(copied);
     }
 
     /** Returns a new builder for a delta model. */
     public static Builder builder() { return new Builder(); }
 
-    private static @Nullable Integer lengthBytes(final MessageDigest digest) {
+    static @Nullable Integer lengthBytes(final MessageDigest digest) {
         try {
             final MessageDigest
                     clone = MessageDigests.create(digest.getAlgorithm());
@@ -113,6 +154,15 @@ public final class DeltaModel implements Serializable {
         return unmodifiableMap(map);
     }
 
+    static Map<String, EntryNameDigestAndSource> copiedMap(
+            final Collection<EntryNameDigestAndSource> entries) {
+        final Map<String, EntryNameDigestAndSource> map =
+                new LinkedHashMap<>(initialCapacity(entries));
+        for (EntryNameDigestAndSource entryNameDigestAndSource : entries)
+            map.put(entryNameDigestAndSource.name(), entryNameDigestAndSource);
+        return unmodifiableMap(map);
+    }
+
     private static int initialCapacity(Collection<?> c) {
         return HashMaps.initialCapacity(c.size());
     }
@@ -128,6 +178,17 @@ public final class DeltaModel implements Serializable {
      */
     public @Nullable Integer digestByteLength() { return numBytes; }
 
+    /**
+     * Returns the fingerprint of the first archive in canonical string
+     * notation.
+     * This is {@code null} if the delta model has been built without it.
+     *
+     * @see net.java.trueupdate.core.zip.io.ZipFingerprints
+     */
+    public @Nullable String inputFingerprint() {
+        return null == fingerprint ? null : MessageDigests.valueOf(fingerprint);
+    }
+
     /**
      * Returns a collection of the entry name and two message digests for the
      * <i>changed</i> entries.
@@ -180,6 +241,19 @@ public final class DeltaModel implements Serializable {
         return removed.get(name);
     }
 
+    /**
+     * Returns a collection of the entry name, message digest and source entry
+     * name for the <i>copied</i> entries.
+     */
+    public Collection<EntryNameDigestAndSource> copiedEntries() {
+        return copied.values();
+    }
+
+    /** Looks up the given entry name in the <i>copied</i> entries. */
+    public EntryNameDigestAndSource copied(String name) {
+        return copied.get(name);
+    }
+
     @SuppressWarnings("AccessingNonPublicFieldOfAnotherObject")
     @Override public boolean equals(final Object obj) {
         if (this == obj) return true;
@@ -187,20 +261,28 @@ public final class DeltaModel implements Serializable {
         final DeltaModel that = (DeltaModel) obj;
         return  this.algorithm.equals(that.algorithm) &&
                 Objects.equals(this.numBytes, that.numBytes) &&
+                (null == this.fingerprint
+                    ? null == that.fingerprint
+                    : null != that.fingerprint && MessageDigests.equals(
+                        this.fingerprint, that.fingerprint)) &&
                 this.changed.equals(that.changed) &&
                 this.unchanged.equals(that.unchanged) &&
                 this.added.equals(that.added) &&
-                this.removed.equals(that.removed);
+                this.removed.equals(that.removed) &&
+                this.copied.equals(that.copied);
     }
 
     @Override public int hashCode() {
         int hash = 17;
         hash = 31 * hash + algorithm.hashCode();
         hash = 31 * hash + Objects.hashCode(numBytes);
+        hash = 31 * hash + (null == fingerprint
+                ? 0 : MessageDigests.hashCode(fingerprint));
         hash = 31 * hash + changed.hashCode();
         hash = 31 * hash + unchanged.hashCode();
         hash = 31 * hash + added.hashCode();
         hash = 31 * hash + removed.hashCode();
+        hash = 31 * hash + copied.hashCode();
         return hash;
     }
 
@@ -242,6 +324,51 @@ public final class DeltaModel implements Serializable {
         return Sources.execute(new DecodeTask()).on(source);
     }
 
+    /**
+     * Encodes this delta model to its compact binary encoding.
+     *
+     * @param sink the sink for writing the binary encoding.
+     * @throws IOException if the sink isn't writable.
+     * @see DeltaModelWriter
+     */
+    public void encodeToBinary(final Sink sink) throws IOException {
+        final DeltaModelWriter writer = new DeltaModelWriter(
+                sink.output(), algorithm, numBytes, fingerprint);
+        try {
+            for (EntryNameAndDigest entry : unchangedEntries())
+                writer.unchanged(entry);
+            for (EntryNameAndTwoDigests entry : changedEntries())
+                writer.changed(entry);
+            for (EntryNameAndDigest entry : addedEntries())
+                writer.added(entry);
+            for (EntryNameAndDigest entry : removedEntries())
+                writer.removed(entry);
+            for (EntryNameDigestAndSource entry : copiedEntries())
+                writer.copied(entry);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Decodes a delta model from its compact binary encoding.
+     *
+     * @param source the source for reading the binary encoding.
+     * @return the decoded delta model.
+     * @throws IOException if the source isn't readable or doesn't contain a
+     *         valid binary encoding.
+     * @see DeltaModelReader
+     */
+    public static DeltaModel decodeFromBinary(final Source source)
+    throws IOException {
+        final DeltaModelReader reader = new DeltaModelReader(source.input());
+        try {
+            return reader.model();
+        } finally {
+            reader.close();
+        }
+    }
+
     /** Returns a JAXB context which binds only this class. */
     public static JAXBContext jaxbContext() { return Lazy.JAXB_CONTEXT; }
 
@@ -258,8 +385,9 @@ public final class DeltaModel implements Serializable {
     /**
      * A builder for a delta model.
      * The default value for the collection of <i>unchanged</i>, <i>changed</i>,
-     * <i>added</i> and <i>removed</i> entry names and message digests is an
-     * empty collection.
+     * <i>added</i>, <i>removed</i> and <i>copied</i> entry names and message
+     * digests is an empty collection.
+     * By default, there is no input fingerprint.
      */
     @SuppressWarnings({
         "PackageVisibleField",
@@ -268,11 +396,13 @@ public final class DeltaModel implements Serializable {
     public static final class Builder {
 
         @CheckForNull MessageDigest messageDigest;
+        @CheckForNull byte[] inputFingerprint;
         @CheckForNull Collection<EntryNameAndTwoDigests> changed = emptyList();
         @CheckForNull Collection<EntryNameAndDigest>
                 unchanged = emptyList(),
                 added = emptyList(),
                 removed = emptyList();
+        @CheckForNull Collection<EntryNameDigestAndSource> copied = emptyList();
 
         Builder() { }
 
@@ -282,6 +412,17 @@ public final class DeltaModel implements Serializable {
             return this;
         }
 
+        /**
+         * Sets the fingerprint of the first archive.
+         * The value does not get copied, so it must not get modified
+         * anymore.
+         */
+        public Builder inputFingerprint(
+                final @Nullable byte[] inputFingerprint) {
+            this.inputFingerprint = inputFingerprint;
+            return this;
+        }
+
         public Builder changedEntries(
                 final @Nullable Collection<EntryNameAndTwoDigests> changed) {
             this.changed = changed;
@@ -306,6 +447,12 @@ public final class DeltaModel implements Serializable {
             return this;
         }
 
+        public Builder copiedEntries(
+                final @Nullable Collection<EntryNameDigestAndSource> copied) {
+            this.copied = copied;
+            return this;
+        }
+
         public DeltaModel build() { return new DeltaModel(this); }
     } // Builder
 }
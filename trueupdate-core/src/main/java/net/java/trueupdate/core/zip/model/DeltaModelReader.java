@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.core.zip.model;
+
+import java.io.*;
+import java.util.*;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import javax.annotation.WillCloseWhenClosed;
+import javax.annotation.concurrent.NotThreadSafe;
+import net.java.trueupdate.core.io.MessageDigests;
+import net.java.trueupdate.core.io.Store;
+
+import static net.java.trueupdate.core.zip.model.DeltaModelWriter.*;
+
+/**
+ * Reads a delta model from its compact binary encoding incrementally.
+ * The header gets read upon construction, so the message digest algorithm
+ * name and byte length are available immediately.
+ * Then, either {@link #model()} reads all entries and returns the complete
+ * delta model, or the entries get read one at a time in the order of their
+ * kind using {@link #nextUnchanged()}, {@link #nextChanged()},
+ * {@link #nextAdded()}, {@link #nextRemoved()} and {@link #nextCopied()}.
+ * The latter does not hold the delta model in memory, so the memory
+ * footprint is constant regardless of the number of entries.
+ *
+ * @see    DeltaModelWriter
+ * @author Christian Schlichtherle
+ */
+@NotThreadSafe
+public final class DeltaModelReader implements Closeable {
+
+    private final DataInputStream in;
+    private final String algorithm;
+    private final @CheckForNull Integer numBytes;
+    private final @CheckForNull byte[] fingerprint;
+
+    /** The tag of the next record or -1 if it hasn't been read yet. */
+    private int tag = -1;
+
+    /** The tag of the last record. */
+    private int last = UNCHANGED;
+
+    private boolean started;
+    private @CheckForNull DeltaModel model;
+
+    /**
+     * Constructs a delta model reader and reads the header.
+     *
+     * @param in the input stream for reading the binary encoding.
+     * @throws IOException if the header is invalid or on any I/O error.
+     */
+    public DeltaModelReader(final @WillCloseWhenClosed InputStream in)
+    throws IOException {
+        this.in = new DataInputStream(
+                new BufferedInputStream(in, Store.BUFSIZE));
+        if (MAGIC != this.in.readInt())
+            throw new IOException("Not a binary delta model.");
+        final int version = this.in.readUnsignedByte();
+        if (VERSION != version)
+            throw new IOException(String.format(
+                    "Unsupported binary delta model version %d.", version));
+        this.algorithm = this.in.readUTF();
+        final int numBytes = this.in.readInt();
+        this.numBytes = -1 == numBytes ? null : numBytes;
+        final byte[] fingerprint = readValue();
+        this.fingerprint = 0 == fingerprint.length ? null : fingerprint;
+    }
+
+    /** Returns the message digest algorithm name. */
+    public String digestAlgorithmName() { return algorithm; }
+
+    /**
+     * Returns the message digest byte length.
+     * This is {@code null} if and only if the byte length of the message
+     * digest is the default value for the algorithm.
+     */
+    public @Nullable Integer digestByteLength() { return numBytes; }
+
+    /**
+     * Returns the fingerprint of the first archive in canonical string
+     * notation or {@code null} if unknown.
+     *
+     * @see DeltaModel#inputFingerprint()
+     */
+    public @Nullable String inputFingerprint() {
+        return null == fingerprint ? null : MessageDigests.valueOf(fingerprint);
+    }
+
+    /**
+     * Reads the next <i>unchanged</i> entry.
+     *
+     * @return the next unchanged entry or {@code null} if there are no more
+     *         unchanged entries.
+     */
+    public @CheckForNull EntryNameAndDigest nextUnchanged() throws IOException {
+        return next(UNCHANGED) ? readEntryNameAndDigest() : null;
+    }
+
+    /**
+     * Reads the next <i>changed</i> entry.
+     * This skips any remaining unchanged entries.
+     *
+     * @return the next changed entry or {@code null} if there are no more
+     *         changed entries.
+     */
+    public @CheckForNull EntryNameAndTwoDigests nextChanged()
+    throws IOException {
+        return next(CHANGED) ? readEntryNameAndTwoDigests() : null;
+    }
+
+    /**
+     * Reads the next <i>added</i> entry.
+     * This skips any remaining unchanged or changed entries.
+     *
+     * @return the next added entry or {@code null} if there are no more
+     *         added entries.
+     */
+    public @CheckForNull EntryNameAndDigest nextAdded() throws IOException {
+        return next(ADDED) ? readEntryNameAndDigest() : null;
+    }
+
+    /**
+     * Reads the next <i>removed</i> entry.
+     * This skips any remaining unchanged, changed or added entries.
+     *
+     * @return the next removed entry or {@code null} if there are no more
+     *         removed entries.
+     */
+    public @CheckForNull EntryNameAndDigest nextRemoved() throws IOException {
+        return next(REMOVED) ? readEntryNameAndDigest() : null;
+    }
+
+    /**
+     * Reads the next <i>copied</i> entry.
+     * This skips any remaining unchanged, changed, added or removed entries.
+     *
+     * @return the next copied entry or {@code null} if there are no more
+     *         copied entries.
+     */
+    public @CheckForNull EntryNameDigestAndSource nextCopied()
+    throws IOException {
+        return next(COPIED) ? readEntryNameDigestAndSource() : null;
+    }
+
+    /**
+     * Reads all entries and returns the complete delta model.
+     * Subsequent calls return the same delta model.
+     *
+     * @throws IllegalStateException if any entries have been read one at a
+     *         time before.
+     */
+    public DeltaModel model() throws IOException {
+        if (null != model) return model;
+        if (started) throw new IllegalStateException();
+        final List<EntryNameAndDigest>
+                unchanged = new ArrayList<>(),
+                added = new ArrayList<>(),
+                removed = new ArrayList<>();
+        final List<EntryNameAndTwoDigests> changed = new ArrayList<>();
+        final List<EntryNameDigestAndSource> copied = new ArrayList<>();
+        for (EntryNameAndDigest entry; null != (entry = nextUnchanged()); )
+            unchanged.add(entry);
+        for (EntryNameAndTwoDigests entry; null != (entry = nextChanged()); )
+            changed.add(entry);
+        for (EntryNameAndDigest entry; null != (entry = nextAdded()); )
+            added.add(entry);
+        for (EntryNameAndDigest entry; null != (entry = nextRemoved()); )
+            removed.add(entry);
+        for (EntryNameDigestAndSource entry;
+                null != (entry = nextCopied()); )
+            copied.add(entry);
+        return model = new DeltaModel(algorithm, numBytes, fingerprint,
+                changed, unchanged, added, removed, copied);
+    }
+
+    /**
+     * Returns {@code true} and consumes the tag of the next record if it's
+     * of the given kind.
+     * Otherwise, skips any records of a preceding kind and returns
+     * {@code false}.
+     */
+    private boolean next(final int kind) throws IOException {
+        started = true;
+        while (true) {
+            final int tag = tag();
+            if (kind == tag) {
+                this.tag = -1;
+                return true;
+            }
+            if (END == tag || kind < tag) return false;
+            this.tag = -1;
+            switch (tag) {
+                case UNCHANGED:
+                case ADDED:
+                case REMOVED:
+                    readEntryNameAndDigest();
+                    break;
+                case CHANGED:
+                    readEntryNameAndTwoDigests();
+                    break;
+                default:
+                    throw new AssertionError();
+            }
+        }
+    }
+
+    private int tag() throws IOException {
+        if (-1 == tag) {
+            final int tag = in.readUnsignedByte();
+            if (END != tag && (tag < last || COPIED < tag))
+                throw new IOException(String.format(
+                        "Invalid binary delta model record tag %d.", tag));
+            if (END != tag) last = tag;
+            this.tag = tag;
+        }
+        return tag;
+    }
+
+    private EntryNameAndDigest readEntryNameAndDigest() throws IOException {
+        final String name = in.readUTF();
+        final byte[] digest = readValue();
+        final long crc = in.readLong();
+        return new EntryNameAndDigest(name, digest, -1 == crc ? null : crc);
+    }
+
+    private EntryNameAndTwoDigests readEntryNameAndTwoDigests()
+    throws IOException {
+        final String name = in.readUTF();
+        final byte[] first = readValue(), second = readValue();
+        final int encoding = in.readUnsignedByte();
+        final EntryEncoding[] encodings = EntryEncoding.values();
+        if (encodings.length < encoding)
+            throw new IOException(String.format(
+                    "Invalid entry encoding %d.", encoding));
+        return new EntryNameAndTwoDigests(name, first, second,
+                0 == encoding ? null : encodings[encoding - 1]);
+    }
+
+    private EntryNameDigestAndSource readEntryNameDigestAndSource()
+    throws IOException {
+        final String name = in.readUTF();
+        final byte[] digest = readValue();
+        return new EntryNameDigestAndSource(name, digest, in.readUTF());
+    }
+
+    private byte[] readValue() throws IOException {
+        final byte[] value = new byte[in.readUnsignedByte()];
+        in.readFully(value);
+        return value;
+    }
+
+    @Override public void close() throws IOException { in.close(); }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.core.zip.model;
+
+import java.io.*;
+import java.security.MessageDigest;
+import javax.annotation.Nullable;
+import javax.annotation.WillCloseWhenClosed;
+import javax.annotation.concurrent.NotThreadSafe;
+import net.java.trueupdate.core.io.Store;
+
+/**
+ * Writes a delta model in its compact binary encoding, one entry at a time.
+ * The encoding starts with a header which consists of a magic number, a
+ * version number, the message digest algorithm name and byte length and the
+ * input fingerprint.
+ * It continues with a sequence of records, each consisting of a tag for the
+ * kind of the entry, the entry name and the raw message digest value(s),
+ * and ends with a terminating tag.
+ * <p>
+ * The entries must get written grouped by their kind in the order
+ * <i>unchanged</i>, <i>changed</i>, <i>added</i>, <i>removed</i> and
+ * <i>copied</i>, so that a {@link DeltaModelReader} can provide them one at
+ * a time without holding the delta model in memory.
+ *
+ * @see    DeltaModelReader
+ * @author Christian Schlichtherle
+ */
+@NotThreadSafe
+public final class DeltaModelWriter implements Closeable {
+
+    /** The magic number at the start of the binary encoding: "TUDM". */
+    static final int MAGIC = 0x5455444d;
+
+    /** The version of the binary encoding. */
+    static final int VERSION = 1;
+
+    static final int END = 0, UNCHANGED = 1, CHANGED = 2, ADDED = 3,
+            REMOVED = 4, COPIED = 5;
+
+    private final DataOutputStream out;
+    private int last = UNCHANGED;
+    private boolean closed;
+
+    /**
+     * Constructs a delta model writer and writes the header.
+     *
+     * @param out the output stream for writing the binary encoding.
+     * @param algorithm the message digest algorithm name.
+     * @param numBytes the message digest byte length or {@code null} if it's
+     *        the default value for the algorithm.
+     */
+    public DeltaModelWriter(
+            @WillCloseWhenClosed OutputStream out,
+            String algorithm,
+            @Nullable Integer numBytes)
+    throws IOException {
+        this(out, algorithm, numBytes, null);
+    }
+
+    /**
+     * Constructs a delta model writer and writes the header.
+     *
+     * @param out the output stream for writing the binary encoding.
+     * @param algorithm the message digest algorithm name.
+     * @param numBytes the message digest byte length or {@code null} if it's
+     *        the default value for the algorithm.
+     * @param fingerprint the fingerprint of the first archive or
+     *        {@code null} if unknown.
+     */
+    public DeltaModelWriter(
+            final @WillCloseWhenClosed OutputStream out,
+            final String algorithm,
+            final @Nullable Integer numBytes,
+            final @Nullable byte[] fingerprint)
+    throws IOException {
+        this.out = new DataOutputStream(
+                new BufferedOutputStream(out, Store.BUFSIZE));
+        this.out.writeInt(MAGIC);
+        this.out.writeByte(VERSION);
+        this.out.writeUTF(algorithm);
+        this.out.writeInt(null == numBytes ? -1 : numBytes);
+        writeValue(null == fingerprint ? new byte[0] : fingerprint);
+    }
+
+    /**
+     * Constructs a delta model writer for the algorithm and byte length of
+     * the given message digest and writes the header.
+     *
+     * @param out the output stream for writing the binary encoding.
+     * @param digest the message digest used to compute the entries.
+     */
+    public DeltaModelWriter(
+            @WillCloseWhenClosed OutputStream out,
+            MessageDigest digest)
+    throws IOException {
+        this(out, digest, null);
+    }
+
+    /**
+     * Constructs a delta model writer for the algorithm and byte length of
+     * the given message digest and writes the header.
+     *
+     * @param out the output stream for writing the binary encoding.
+     * @param digest the message digest used to compute the entries.
+     * @param fingerprint the fingerprint of the first archive or
+     *        {@code null} if unknown.
+     */
+    public DeltaModelWriter(
+            @WillCloseWhenClosed OutputStream out,
+            MessageDigest digest,
+            @Nullable byte[] fingerprint)
+    throws IOException {
+        this(out, digest.getAlgorithm(), DeltaModel.lengthBytes(digest),
+                fingerprint);
+    }
+
+    /** Writes the given <i>unchanged</i> entry. */
+    public void unchanged(EntryNameAndDigest entry) throws IOException {
+        write(UNCHANGED, entry);
+    }
+
+    /** Writes the given <i>changed</i> entry. */
+    public void changed(final EntryNameAndTwoDigests entry)
+    throws IOException {
+        tag(CHANGED);
+        out.writeUTF(entry.name());
+        writeValue(entry.firstValue());
+        writeValue(entry.secondValue());
+        final EntryEncoding encoding = entry.encoding();
+        out.writeByte(null == encoding ? 0 : encoding.ordinal() + 1);
+    }
+
+    /** Writes the given <i>added</i> entry. */
+    public void added(EntryNameAndDigest entry) throws IOException {
+        write(ADDED, entry);
+    }
+
+    /** Writes the given <i>removed</i> entry. */
+    public void removed(EntryNameAndDigest entry) throws IOException {
+        write(REMOVED, entry);
+    }
+
+    /** Writes the given <i>copied</i> entry. */
+    public void copied(final EntryNameDigestAndSource entry)
+    throws IOException {
+        tag(COPIED);
+        out.writeUTF(entry.name());
+        writeValue(entry.digestValue());
+        out.writeUTF(entry.source());
+    }
+
+    private void write(final int tag, final EntryNameAndDigest entry)
+    throws IOException {
+        tag(tag);
+        out.writeUTF(entry.name());
+        writeValue(entry.digestValue());
+        final Long crc = entry.crc();
+        out.writeLong(null == crc ? -1 : crc);
+    }
+
+    private void tag(final int tag) throws IOException {
+        if (closed) throw new IOException("Delta model writer closed.");
+        if (tag < last)
+            throw new IllegalStateException(
+                    "Entries must get written grouped by their kind.");
+        last = tag;
+        out.writeByte(tag);
+    }
+
+    private void writeValue(final byte[] value) throws IOException {
+        if (255 < value.length)
+            throw new IllegalArgumentException(
+                    "Message digest value too long.");
+        out.writeByte(value.length);
+        out.write(value);
+    }
+
+    /** Writes the terminating tag and closes the output stream. */
+    @Override public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            out.writeByte(END);
+        } finally {
+            out.close();
+        }
+    }
+}
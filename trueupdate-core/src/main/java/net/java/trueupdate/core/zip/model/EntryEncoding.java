@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.core.zip.model;
+
+import javax.xml.bind.annotation.XmlEnum;
+import javax.xml.bind.annotation.XmlEnumValue;
+
+/**
+ * Enumerates the encodings of a changed entry in a delta ZIP file.
+ * If a changed entry has no encoding, then the delta ZIP file contains the
+ * whole contents of the entry in the second archive.
+ *
+ * @author Christian Schlichtherle
+ */
+@XmlEnum
+public enum EntryEncoding {
+
+    /**
+     * The delta ZIP file contains a
+     * {@linkplain net.java.trueupdate.core.io.BinaryDelta binary delta} which
+     * reconstitutes the entry in the second archive from the entry in the
+     * first archive.
+     */
+    @XmlEnumValue("binary") BINARY,
+
+    /**
+     * The delta ZIP file contains a nested delta ZIP file which rebuilds the
+     * nested archive in the second archive from the nested archive in the
+     * first archive.
+     * The diff chooses this encoding only if the rebuilt nested archive is
+     * equal to the nested archive in the second archive byte by byte, so its
+     * message digest gets verified like for any other entry.
+     */
+    @XmlEnumValue("zip") ZIP
+}
@@ -4,17 +4,24 @@
  */
 package net.java.trueupdate.core.zip.model;
 
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
 import java.io.Serializable;
+import java.util.Objects;
+import net.java.trueupdate.core.io.MessageDigests;
 
 import static java.util.Objects.requireNonNull;
 
 /**
- * A Value Object which represents a ZIP entry name and message digest in
- * canonical string notation.
+ * A Value Object which represents a ZIP entry name and message digest,
+ * optionally attributed with the CRC-32 value of the entry contents.
+ * The message digest value is kept as a byte array and gets represented in
+ * canonical string notation in XML only.
  *
  * @author Christian Schlichtherle
  */
@@ -22,37 +29,93 @@ import static java.util.Objects.requireNonNull;
 @XmlAccessorType(XmlAccessType.FIELD)
 public final class EntryNameAndDigest implements Serializable {
 
-    private static final long serialVersionUID = 0L;
+    private static final long serialVersionUID = 1L;
 
     @XmlAttribute(required = true)
-    private final String name, digest;
+    private final String name;
+
+    @XmlAttribute(required = true)
+    @XmlJavaTypeAdapter(DigestValueAdapter.class)
+    private final byte[] digest;
+
+    @XmlAttribute
+    private final @CheckForNull Long crc;
 
     /** Required for JAXB. */
-    private EntryNameAndDigest() { name = digest = ""; }
+    private EntryNameAndDigest() {
+        name = "";
+        digest = new byte[0];
+        crc = null;
+    }
 
     public EntryNameAndDigest(final String name, final String digest) {
+        this(name, digest, null);
+    }
+
+    /**
+     * Constructs an entry name and digest with the given nullable CRC-32
+     * value of the entry contents.
+     */
+    public EntryNameAndDigest(
+            final String name,
+            final String digest,
+            final @Nullable Long crc) {
+        this(name, MessageDigests.parseValue(digest), crc);
+    }
+
+    /**
+     * Constructs an entry name and digest with the given message digest
+     * value and the given nullable CRC-32 value of the entry contents.
+     * The message digest value does not get copied, so it must not get
+     * modified anymore.
+     */
+    public EntryNameAndDigest(
+            final String name,
+            final byte[] digest,
+            final @Nullable Long crc) {
         this.name = requireNonNull(name);
         this.digest = requireNonNull(digest);
+        this.crc = crc;
     }
 
     /** Returns the entry name. */
     public String name() { return name; }
 
-    /** Returns the value of the message digest. */
-    public String digest() { return digest; }
+    /** Returns the value of the message digest in canonical string notation. */
+    public String digest() { return MessageDigests.valueOf(digest); }
+
+    /** Returns the message digest value, which must not get modified. */
+    byte[] digestValue() { return digest; }
+
+    /**
+     * Returns {@code true} if and only if the given message digest value
+     * equals the message digest value of this entry.
+     * This method does not allocate any objects.
+     */
+    public boolean matches(byte[] value) {
+        return MessageDigests.equals(digest, value);
+    }
+
+    /**
+     * Returns the CRC-32 value of the entry contents.
+     * This may be {@code null} if it's unknown.
+     */
+    public @Nullable Long crc() { return crc; }
 
     @Override public boolean equals(final Object obj) {
         if (this == obj) return true;
         if (!(obj instanceof EntryNameAndDigest)) return false;
         final EntryNameAndDigest that = (EntryNameAndDigest) obj;
         return  this.name().equals(that.name()) &&
-                this.digest().equals(that.digest());
+                MessageDigests.equals(this.digest, that.digest) &&
+                Objects.equals(this.crc(), that.crc());
     }
 
     @Override public int hashCode() {
         int hash = 17;
         hash = 31 * hash + name().hashCode();
-        hash = 31 * hash + digest().hashCode();
+        hash = 31 * hash + MessageDigests.hashCode(digest);
+        hash = 31 * hash + Objects.hashCode(crc());
         return hash;
     }
 }
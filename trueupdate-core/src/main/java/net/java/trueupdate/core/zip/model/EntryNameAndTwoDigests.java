@@ -4,17 +4,23 @@
  */
 package net.java.trueupdate.core.zip.model;
 
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
 import java.io.Serializable;
+import java.util.Objects;
+import net.java.trueupdate.core.io.MessageDigests;
 
 import static java.util.Objects.requireNonNull;
 
 /**
- * A Value Object which represents a ZIP entry name and two message digests in
- * canonical string notation.
+ * A Value Object which represents a ZIP entry name and two message digests.
+ * The message digest values are kept as byte arrays and get represented in
+ * canonical string notation in XML only.
  *
  * @author Christian Schlichtherle
  */
@@ -22,14 +28,23 @@ import static java.util.Objects.requireNonNull;
 @XmlAccessorType(XmlAccessType.FIELD)
 public final class EntryNameAndTwoDigests implements Serializable {
 
-    private static final long serialVersionUID = 0L;
+    private static final long serialVersionUID = 1L;
 
     @XmlAttribute(required = true)
-    private final String name, first, second;
+    private final String name;
+
+    @XmlAttribute(required = true)
+    @XmlJavaTypeAdapter(DigestValueAdapter.class)
+    private final byte[] first, second;
+
+    @XmlAttribute
+    private final @CheckForNull EntryEncoding encoding;
 
     /** Required for JAXB. */
     private EntryNameAndTwoDigests() {
-        name = first = second = "";
+        name = "";
+        first = second = new byte[0];
+        encoding = null;
     }
 
     /**
@@ -40,30 +55,91 @@ public final class EntryNameAndTwoDigests implements Serializable {
             final String name,
             final String first,
             final String second) {
+        this(name, first, second, null);
+    }
+
+    /**
+     * Constructs an entry name and two message digests with the given
+     * nullable encoding of the entry in the delta ZIP file.
+     * The first and second message digest should not be equal.
+     */
+    public EntryNameAndTwoDigests(
+            final String name,
+            final String first,
+            final String second,
+            final @Nullable EntryEncoding encoding) {
+        this(name, MessageDigests.parseValue(first),
+                MessageDigests.parseValue(second), encoding);
+    }
+
+    /**
+     * Constructs an entry name and two message digests with the given
+     * message digest values and the given nullable encoding of the entry in
+     * the delta ZIP file.
+     * The first and second message digest should not be equal.
+     * The message digest values do not get copied, so they must not get
+     * modified anymore.
+     */
+    public EntryNameAndTwoDigests(
+            final String name,
+            final byte[] first,
+            final byte[] second,
+            final @Nullable EntryEncoding encoding) {
         this.name = requireNonNull(name);
         this.first = requireNonNull(first);
         this.second = requireNonNull(second);
-        assert !first.equals(second);
+        this.encoding = encoding;
+        assert !MessageDigests.equals(first, second);
     }
 
     /** Returns the entry name. */
     public String name() { return name; }
 
-    /** Returns the first message digest value. */
-    public String first() { return first; }
+    /**
+     * Returns the first message digest value in canonical string notation.
+     */
+    public String first() { return MessageDigests.valueOf(first); }
+
+    /**
+     * Returns the second message digest value in canonical string notation.
+     */
+    public String second() { return MessageDigests.valueOf(second); }
 
-    /** Returns the second message digest value. */
-    public String second() { return second; }
+    /**
+     * Returns the first message digest value, which must not get modified.
+     */
+    byte[] firstValue() { return first; }
+
+    /**
+     * Returns the second message digest value, which must not get modified.
+     */
+    byte[] secondValue() { return second; }
+
+    /**
+     * Returns {@code true} if and only if the given message digest value
+     * equals the first message digest value.
+     * This method does not allocate any objects.
+     */
+    public boolean matchesFirst(byte[] value) {
+        return MessageDigests.equals(first, value);
+    }
+
+    /**
+     * Returns the encoding of the entry in the delta ZIP file.
+     * This is {@code null} if the delta ZIP file contains the whole contents
+     * of the entry in the second archive.
+     */
+    public @Nullable EntryEncoding encoding() { return encoding; }
 
     /** Returns the first ZIP entry name and digest value. */
     @Deprecated
     public EntryNameAndDigest entryNameAndDigest1() {
-        return new EntryNameAndDigest(name(), first());
+        return new EntryNameAndDigest(name(), first, null);
     }
 
     /** Returns the second ZIP entry name and digest value. */
     public EntryNameAndDigest entryNameAndDigest2() {
-        return new EntryNameAndDigest(name(), second());
+        return new EntryNameAndDigest(name(), second, null);
     }
 
     @Override public boolean equals(final Object obj) {
@@ -71,15 +147,17 @@ public final class EntryNameAndTwoDigests implements Serializable {
         if (!(obj instanceof EntryNameAndTwoDigests)) return false;
         final EntryNameAndTwoDigests that = (EntryNameAndTwoDigests) obj;
         return  this.name().equals(that.name()) &&
-                this.first().equals(that.first()) &&
-                this.second().equals(that.second());
+                MessageDigests.equals(this.first, that.first) &&
+                MessageDigests.equals(this.second, that.second) &&
+                Objects.equals(this.encoding(), that.encoding());
     }
 
     @Override public int hashCode() {
         int hash = 17;
         hash = 31 * hash + name().hashCode();
-        hash = 31 * hash + first().hashCode();
-        hash = 31 * hash + second().hashCode();
+        hash = 31 * hash + MessageDigests.hashCode(first);
+        hash = 31 * hash + MessageDigests.hashCode(second);
+        hash = 31 * hash + Objects.hashCode(encoding());
         return hash;
     }
 }
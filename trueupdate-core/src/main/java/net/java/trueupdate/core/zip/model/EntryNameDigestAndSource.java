@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.core.zip.model;
+
+import javax.annotation.concurrent.Immutable;
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
+import java.io.Serializable;
+import net.java.trueupdate.core.io.MessageDigests;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A Value Object which represents a ZIP entry name and message digest plus
+ * the name of an entry in the first archive with the same contents.
+ * The message digest value is kept as a byte array and gets represented in
+ * canonical string notation in XML only.
+ *
+ * @author Christian Schlichtherle
+ */
+@Immutable
+@XmlAccessorType(XmlAccessType.FIELD)
+public final class EntryNameDigestAndSource implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    @XmlAttribute(required = true)
+    private final String name;
+
+    @XmlAttribute(required = true)
+    @XmlJavaTypeAdapter(DigestValueAdapter.class)
+    private final byte[] digest;
+
+    @XmlAttribute(required = true)
+    private final String source;
+
+    /** Required for JAXB. */
+    private EntryNameDigestAndSource() {
+        name = source = "";
+        digest = new byte[0];
+    }
+
+    public EntryNameDigestAndSource(
+            final String name,
+            final String digest,
+            final String source) {
+        this(name, MessageDigests.parseValue(digest), source);
+    }
+
+    /**
+     * Constructs an entry name, digest and source with the given message
+     * digest value.
+     * The message digest value does not get copied, so it must not get
+     * modified anymore.
+     */
+    public EntryNameDigestAndSource(
+            final String name,
+            final byte[] digest,
+            final String source) {
+        this.name = requireNonNull(name);
+        this.digest = requireNonNull(digest);
+        this.source = requireNonNull(source);
+    }
+
+    /** Returns the entry name. */
+    public String name() { return name; }
+
+    /** Returns the value of the message digest in canonical string notation. */
+    public String digest() { return MessageDigests.valueOf(digest); }
+
+    /** Returns the message digest value, which must not get modified. */
+    byte[] digestValue() { return digest; }
+
+    /**
+     * Returns the name of the entry in the first archive with the same
+     * contents.
+     */
+    public String source() { return source; }
+
+    /** Returns the ZIP entry name and digest value. */
+    public EntryNameAndDigest entryNameAndDigest() {
+        return new EntryNameAndDigest(name(), digest, null);
+    }
+
+    @Override public boolean equals(final Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof EntryNameDigestAndSource)) return false;
+        final EntryNameDigestAndSource that = (EntryNameDigestAndSource) obj;
+        return  this.name().equals(that.name()) &&
+                MessageDigests.equals(this.digest, that.digest) &&
+                this.source().equals(that.source());
+    }
+
+    @Override public int hashCode() {
+        int hash = 17;
+        hash = 31 * hash + name().hashCode();
+        hash = 31 * hash + MessageDigests.hashCode(digest);
+        hash = 31 * hash + source().hashCode();
+        return hash;
+    }
+}
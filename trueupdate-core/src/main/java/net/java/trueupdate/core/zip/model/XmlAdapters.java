@@ -10,8 +10,39 @@ import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.adapters.XmlAdapter;
+import net.java.trueupdate.core.io.MessageDigests;
 import static net.java.trueupdate.core.zip.model.DeltaModel.*;
 
+/**
+ * Adapts a message digest value to a hexadecimal string notation without
+ * leading zeros, so that the value is kept as a compact byte array outside of
+ * XML.
+ * Unlike the canonical string notation of
+ * {@link MessageDigests#valueOf(byte[])}, this notation equals
+ * {@code new BigInteger(1, value).toString(16)}, which is what TrueUpdate
+ * 0.8.x uses to verify the message digests of the entries.
+ * Otherwise, these versions would reject about one in sixteen entries with a
+ * {@link net.java.trueupdate.core.zip.patch.WrongMessageDigestException}.
+ * When unmarshalling, both notations are accepted.
+ * The binary encoding of the delta model is not affected by this because it
+ * didn't exist in 0.8.x and stores the values as fixed-length byte arrays.
+ */
+@Immutable
+final class DigestValueAdapter extends XmlAdapter<String, byte[]> {
+
+    @Override public @Nullable byte[] unmarshal(@CheckForNull String value) {
+        return null == value ? null : MessageDigests.parseValue(value);
+    }
+
+    @Override public @Nullable String marshal(@CheckForNull byte[] value) {
+        if (null == value) return null;
+        final String string = MessageDigests.valueOf(value);
+        int i = 0;
+        while (i < string.length() - 1 && '0' == string.charAt(i)) i++;
+        return string.substring(i);
+    }
+}
+
 @Immutable
 final class EntryNameAndDigestMapAdapter
 extends XmlAdapter<EntryNameAndDigestCollectionDto,
@@ -61,3 +92,28 @@ final class EntryNameAndTwoDigestsCollectionDto {
     @XmlElement(name = "entry")
     public Collection<EntryNameAndTwoDigests> entries;
 }
+
+@Immutable
+final class EntryNameDigestAndSourceMapAdapter
+extends XmlAdapter<EntryNameDigestAndSourceCollectionDto,
+                   Map<String, EntryNameDigestAndSource>> {
+
+    @Override public @Nullable Map<String, EntryNameDigestAndSource> unmarshal(
+            @CheckForNull EntryNameDigestAndSourceCollectionDto dto) {
+        return null == dto ? null : copiedMap(dto.entries);
+    }
+
+    @Override public @Nullable EntryNameDigestAndSourceCollectionDto marshal(
+            final @CheckForNull Map<String, EntryNameDigestAndSource> map) {
+        if (null == map || map.isEmpty()) return null;
+        final EntryNameDigestAndSourceCollectionDto
+                dto = new EntryNameDigestAndSourceCollectionDto();
+        dto.entries = map.values();
+        return dto;
+    }
+}
+
+final class EntryNameDigestAndSourceCollectionDto {
+    @XmlElement(name = "entry")
+    public Collection<EntryNameDigestAndSource> entries;
+}
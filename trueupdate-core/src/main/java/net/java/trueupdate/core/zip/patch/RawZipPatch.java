@@ -7,13 +7,12 @@ package net.java.trueupdate.core.zip.patch;
 import java.io.*;
 import java.security.*;
 import java.util.jar.JarEntry;
+import java.util.regex.Pattern;
 import java.util.zip.*;
 import javax.annotation.*;
 import javax.annotation.concurrent.ThreadSafe;
 import net.java.trueupdate.core.io.*;
-import net.java.trueupdate.core.zip.io.ZipEntrySource;
-import net.java.trueupdate.core.zip.io.ZipInput;
-import net.java.trueupdate.core.zip.io.ZipOutput;
+import net.java.trueupdate.core.zip.io.*;
 import net.java.trueupdate.core.zip.model.*;
 
 /**
@@ -26,7 +25,12 @@ import net.java.trueupdate.core.zip.model.*;
 @ThreadSafe
 public abstract class RawZipPatch {
 
+    private static final Pattern JAR_FILE_EXTENSIONS = Pattern.compile(
+            ".*\\.(ear|jar|war)", Pattern.CASE_INSENSITIVE);
+
     private volatile DeltaModel model;
+    private volatile String algorithm;
+    private volatile boolean checked;
 
     /** Returns the input archive. */
     protected abstract @WillNotClose
@@ -35,10 +39,111 @@ public abstract class RawZipPatch {
     /** Returns the delta ZIP archive. */
     protected abstract @WillNotClose ZipInput delta();
 
+    /**
+     * Returns the number of worker threads for deflating the entries of the
+     * output archive.
+     * If this is greater than one and the output archive is a
+     * {@link RawZipOutput}, then the entries get deflated concurrently by a
+     * {@link ParallelZipOutput}.
+     * The default value is one, which deflates all entries on the current
+     * thread.
+     */
+    protected int parallelism() { return 1; }
+
+    /**
+     * Returns {@code true} if the input archive shall get checked against
+     * the input fingerprint in the delta model.
+     * The fingerprint covers all file entries of the first archive used to
+     * generate the delta ZIP archive, so the check rejects an input archive
+     * with any additional, missing or changed file entries, even if they are
+     * not subject to the patch, e.g. files which have been added to an
+     * exploded deployment.
+     * Without the check, such an input archive gets patched as long as the
+     * unchanged and changed entries in the delta model match, and any
+     * additional file entries get dropped from the output archive.
+     * The default value is {@code true}.
+     */
+    protected boolean checkFingerprint() { return true; }
+
+    /**
+     * Returns {@code true} if the raw contents of unchanged entries shall
+     * get inflated on the fly when copying them, so that their message
+     * digests get verified just like when copying them through the inflater
+     * and deflater.
+     * Otherwise, a raw copy relies on the CRC-32 value of the entry in the
+     * delta model, which gets checked against the central directory of the
+     * input archive, and on the compressed size of the entry, which gets
+     * checked against the number of raw bytes copied.
+     * This is much faster because unchanged entries are usually the vast
+     * majority of the archive, but it doesn't detect corrupted contents with
+     * intact meta data.
+     * The default value is {@code false}.
+     */
+    protected boolean verifyRawContents() { return false; }
+
+    /**
+     * Checks the input archive against the input fingerprint in the delta
+     * model, if present and {@linkplain #checkFingerprint enabled}.
+     * This reads only the central directory of the input archive, so it
+     * takes milliseconds.
+     * {@link #output} calls this method anyway, but calling it first allows
+     * to fail before creating the output archive.
+     *
+     * @throws WrongInputZipFile if the input archive doesn't match the first
+     *         archive used to generate the delta ZIP archive.
+     */
+    public void checkInput() throws IOException {
+        if (checked || !checkFingerprint()) return;
+        final String expected, algorithm;
+        final DeltaModelReader reader = openBinaryModel();
+        if (null != reader) {
+            try {
+                expected = reader.inputFingerprint();
+                algorithm = reader.digestAlgorithmName();
+            } finally {
+                reader.close();
+            }
+        } else {
+            final DeltaModel model = model();
+            expected = model.inputFingerprint();
+            algorithm = model.digestAlgorithmName();
+        }
+        // The XML notation has no leading zeros, so compare the values.
+        if (null != expected && !MessageDigests.equals(
+                MessageDigests.parseValue(expected),
+                ZipFingerprints.compute(input(),
+                    MessageDigests.create(algorithm))))
+            throw new WrongInputZipFile(new WrongMessageDigestException(
+                    "Input archive fingerprint"));
+        checked = true;
+    }
+
     /**
      * Applies the configured delta ZIP archive.
+     *
+     * @throws WrongInputZipFile if the input archive doesn't match the first
+     *         archive used to generate the delta ZIP archive.
      */
     public void output(final @WillNotClose ZipOutput output)
+    throws IOException {
+        checkInput();
+        final int parallelism = parallelism();
+        if (0 >= parallelism) throw new IllegalArgumentException();
+        if (1 < parallelism && output instanceof RawZipOutput) {
+            final ParallelZipOutput parallel = new ParallelZipOutput(
+                    (RawZipOutput) output, parallelism);
+            try {
+                apply(parallel);
+                parallel.finish();
+            } finally {
+                parallel.cancel();
+            }
+        } else {
+            apply(output);
+        }
+    }
+
+    private void apply(final @WillNotClose ZipOutput output)
     throws IOException {
         for (EntryNameFilter filter : passFilters(output))
             output(output, new NoDirectoryEntryNameFilter(filter));
@@ -82,36 +187,64 @@ public abstract class RawZipPatch {
         class ZipEntrySink implements Sink {
 
             final EntryNameAndDigest entryNameAndDigest;
+            final @CheckForNull ZipEntry template;
+            final long time;
 
-            ZipEntrySink(final EntryNameAndDigest entryNameAndDigest) {
+            /**
+             * @param template the entry with the same contents in the input
+             *        or delta archive for carrying over its compression
+             *        method, or {@code null} if unknown.
+             *        Note that an unchanged entry inherits the compression
+             *        method of the input archive, which is not necessarily
+             *        the compression method of the second archive.
+             * @param time the last modification time to carry over or -1 if
+             *        unknown.
+             *        The diff writes the time of the entry in the second
+             *        archive to the delta archive, so that patching a nested
+             *        archive is reproducible.
+             */
+            ZipEntrySink(
+                    final EntryNameAndDigest entryNameAndDigest,
+                    final @CheckForNull ZipEntry template,
+                    final long time) {
                 assert null != entryNameAndDigest;
                 this.entryNameAndDigest = entryNameAndDigest;
+                this.template = template;
+                this.time = time;
             }
 
             @Override public OutputStream output() throws IOException {
                 final ZipEntry entry = entry(entryNameAndDigest.name());
+                if (-1 != time) entry.setTime(time);
                 if (entry.isDirectory()) {
                     entry.setMethod(ZipOutputStream.STORED);
                     entry.setSize(0);
                     entry.setCompressedSize(0);
                     entry.setCrc(0);
+                } else if (null != template
+                        && ZipOutputStream.STORED == template.getMethod()
+                        && 0 <= template.getSize()
+                        && -1 != template.getCrc()) {
+                    // Carry over the STORED method of the template entry.
+                    // The diff stores an entry in the delta archive if and
+                    // only if it's stored in the second archive.
+                    entry.setMethod(ZipOutputStream.STORED);
+                    entry.setSize(template.getSize());
+                    entry.setCompressedSize(template.getSize());
+                    entry.setCrc(template.getCrc());
                 }
-                final MessageDigest digest = digest();
-                digest.reset();
-                return new DigestOutputStream(stream(entry), digest) {
-
-                    @Override public void close() throws IOException {
-                        super.close();
-                        if (!valueOfDigest().equals(
-                                entryNameAndDigest.digest()))
-                            throw new WrongMessageDigestException(
-                                    entryNameAndDigest.name());
-                    }
+                return stream(entry);
+            }
 
-                    String valueOfDigest() {
-                        return MessageDigests.valueOf(digest);
-                    }
-                };
+            /**
+             * Checks the given message digest of the contents written to
+             * this sink.
+             */
+            void check(final MessageDigest digest)
+            throws WrongMessageDigestException {
+                if (!entryNameAndDigest.matches(digest.digest()))
+                    throw new WrongMessageDigestException(
+                            entryNameAndDigest.name());
             }
 
             OutputStream stream(ZipEntry entry) throws IOException {
@@ -131,24 +264,66 @@ public abstract class RawZipPatch {
                     final Transformation<T> transformation,
                     final Iterable<T> iterable)
             throws IOException {
-                for (final T item : iterable) {
-                    final EntryNameAndDigest
-                            entryNameAndDigest = transformation.apply(item);
-                    final String name = entryNameAndDigest.name();
-                    if (!filter.accept(name)) continue;
-                    final ZipEntry entry = archive().entry(name);
-                    if (null == entry)
-                        throw ioException(new MissingZipEntryException(name));
-                    try {
-                        Copy.copy(
-                                new ZipEntrySource(entry, archive()),
-                                new ZipEntrySink(entryNameAndDigest));
-                    } catch (WrongMessageDigestException ex) {
-                        throw ioException(ex);
-                    }
-                }
+                for (final T item : iterable)
+                    apply(transformation.apply(item));
                 return this;
             }
+
+            final void apply(final EntryNameAndDigest entryNameAndDigest)
+            throws IOException {
+                final String name = entryNameAndDigest.name();
+                if (!filter.accept(name)) return;
+                final ZipEntry entry = entry(name);
+                try {
+                    copy(entry, entryNameAndDigest);
+                } catch (WrongMessageDigestException ex) {
+                    throw ioException(ex);
+                }
+            }
+
+            /**
+             * Copies the given entry to the output archive and verifies its
+             * message digest while copying.
+             */
+            void copy(
+                    final ZipEntry entry,
+                    final EntryNameAndDigest entryNameAndDigest)
+            throws IOException {
+                final ZipEntrySink sink = sink(entry, entryNameAndDigest);
+                final MessageDigest digest = digest();
+                Copy.copy(source(entry), sink, digest);
+                sink.check(digest);
+            }
+
+            /**
+             * Looks up the entry in the archive which provides the contents
+             * for the output entry with the given name.
+             */
+            ZipEntry entry(final String name) throws IOException {
+                final ZipEntry entry = archive().entry(name);
+                if (null == entry)
+                    throw ioException(new MissingZipEntryException(name));
+                return entry;
+            }
+
+            /** Returns a source for the contents of the given entry. */
+            Source source(ZipEntry entry) throws IOException {
+                return new ZipEntrySource(entry, archive());
+            }
+
+            /**
+             * Returns a sink for the output entry with the given name and
+             * digest.
+             * The output entry inherits the compression method of the given
+             * entry in the archive.
+             */
+            ZipEntrySink sink(
+                    ZipEntry entry,
+                    EntryNameAndDigest entryNameAndDigest)
+            throws IOException {
+                return new ZipEntrySink(entryNameAndDigest, entry,
+                        entry.getTime());
+            }
         } // PatchSet
 
         class InputArchivePatchSet extends PatchSet {
@@ -158,8 +333,83 @@ public abstract class RawZipPatch {
             @Override IOException ioException(Throwable cause) {
                 return new WrongInputZipFile(cause);
             }
+
+            /**
+             * Copies the raw contents of the given entry if the input and
+             * output archive support it and the delta model provides the
+             * CRC-32 value of the entry.
+             * This skips inflating and deflating the entry.
+             * The entry gets verified by its CRC-32 value and compressed size
+             * unless {@link #verifyRawContents} is {@code true}, in which
+             * case its message digest gets verified, too.
+             */
+            @Override void copy(
+                    final ZipEntry entry,
+                    final EntryNameAndDigest entryNameAndDigest)
+            throws IOException {
+                final ZipInput input = input();
+                final Long crc = entryNameAndDigest.crc();
+                if (!(input instanceof RawZipInput)
+                        || !(output instanceof RawZipOutput)
+                        || null == crc
+                        || entry.isDirectory()) {
+                    super.copy(entry, entryNameAndDigest);
+                    return;
+                }
+                if (crc != entry.getCrc() || -1 == entry.getSize()
+                        || -1 == entry.getCompressedSize())
+                    throw new WrongMessageDigestException(entry.getName());
+                final ZipEntry out = output.entry(entryNameAndDigest.name());
+                out.setMethod(entry.getMethod());
+                out.setCrc(entry.getCrc());
+                out.setSize(entry.getSize());
+                out.setCompressedSize(entry.getCompressedSize());
+                out.setTime(entry.getTime());
+                out.setExtra(entry.getExtra());
+                out.setComment(entry.getComment());
+                final MessageDigest digest =
+                        verifyRawContents() ? digest() : null;
+
+                class RawSink implements Sink {
+                    @CheckForNull VerifyingOutputStream stream;
+
+                    @Override public OutputStream output() throws IOException {
+                        return stream = new VerifyingOutputStream(
+                                ((RawZipOutput) output).rawStream(out),
+                                entry.getMethod(), digest);
+                    }
+                } // RawSink
+
+                final RawSink sink = new RawSink();
+                Copy.copy(
+                        new Source() {
+                            @Override public InputStream input() throws IOException {
+                                return ((RawZipInput) input).rawStream(entry);
+                            }
+                        },
+                        sink);
+                if (sink.stream.count != entry.getCompressedSize()
+                        || null != digest
+                        && !entryNameAndDigest.matches(digest.digest()))
+                    throw new WrongMessageDigestException(entry.getName());
+            }
         } // InputArchivePatchSet
 
+        class CopiedEntriesPatchSet extends InputArchivePatchSet {
+
+            @CheckForNull EntryNameDigestAndSource copied;
+
+            void apply(final EntryNameDigestAndSource copied)
+            throws IOException {
+                this.copied = copied;
+                apply(copied.entryNameAndDigest());
+            }
+
+            @Override ZipEntry entry(String name) throws IOException {
+                return super.entry(copied.source());
+            }
+        } // CopiedEntriesPatchSet
+
         class PatchArchivePatchSet extends PatchSet {
 
             @Override ZipInput archive() { return delta(); }
@@ -169,20 +419,256 @@ public abstract class RawZipPatch {
             }
         } // PatchArchivePatchSet
 
+        class ChangedEntriesPatchSet extends PatchArchivePatchSet {
+
+            @CheckForNull EntryNameAndTwoDigests changed;
+
+            void apply(final EntryNameAndTwoDigests changed)
+            throws IOException {
+                this.changed = changed;
+                apply(changed.entryNameAndDigest2());
+            }
+
+            /**
+             * Decodes the contents of the given entry if it's encoded as a
+             * binary delta or a nested delta ZIP file.
+             */
+            @Override Source source(final ZipEntry entry) throws IOException {
+                final Source delta = super.source(entry);
+                final EntryNameAndTwoDigests changed = this.changed;
+                final EntryEncoding encoding = changed.encoding();
+                if (null == encoding) return delta;
+                final String name = changed.name();
+                final ZipEntry entry1 = input().entry(name);
+                if (null == entry1)
+                    throw new WrongInputZipFile(
+                            new MissingZipEntryException(name));
+                final Source source1 = new ZipEntrySource(entry1, input());
+                switch (encoding) {
+                    case BINARY:
+                        return new Source() {
+                            @Override public InputStream input() throws IOException {
+                                final byte[] source = BinaryDelta.load(
+                                        source1, entry1.getSize());
+                                final MessageDigest digest = digest();
+                                digest.update(source);
+                                check(digest, changed);
+                                return BinaryDelta.decode(source, delta.input());
+                            }
+                        };
+                    case ZIP:
+                        return new Source() {
+                            @Override public InputStream input() throws IOException {
+                                return patchNested(source1, delta, changed);
+                            }
+                        };
+                    default:
+                        throw new AssertionError();
+                }
+            }
+
+            /**
+             * The compression method of an encoded entry is unknown.
+             */
+            @Override ZipEntrySink sink(
+                    final ZipEntry entry,
+                    final EntryNameAndDigest entryNameAndDigest)
+            throws IOException {
+                return new ZipEntrySink(entryNameAndDigest,
+                        null == changed.encoding() ? entry : null,
+                        entry.getTime());
+            }
+        } // ChangedEntriesPatchSet
+
         // Order is important here!
-        new InputArchivePatchSet().apply(
-                new IdentityTransformation(),
-                model().unchangedEntries());
-        new PatchArchivePatchSet().apply(
-                new EntryNameAndDigest2Transformation(),
-                model().changedEntries());
-        new PatchArchivePatchSet().apply(
-                new IdentityTransformation(),
-                model().addedEntries());
+        final PatchSet unchanged = new InputArchivePatchSet();
+        final ChangedEntriesPatchSet changed = new ChangedEntriesPatchSet();
+        final PatchSet added = new PatchArchivePatchSet();
+        final CopiedEntriesPatchSet copied = new CopiedEntriesPatchSet();
+        final DeltaModelReader reader = openBinaryModel();
+        if (null != reader) {
+            // Apply the entries while decoding the delta model, so that it
+            // never gets held in memory.
+            try {
+                for (EntryNameAndDigest entry;
+                        null != (entry = reader.nextUnchanged()); )
+                    unchanged.apply(entry);
+                for (EntryNameAndTwoDigests entry;
+                        null != (entry = reader.nextChanged()); )
+                    changed.apply(entry);
+                for (EntryNameAndDigest entry;
+                        null != (entry = reader.nextAdded()); )
+                    added.apply(entry);
+                for (EntryNameDigestAndSource entry;
+                        null != (entry = reader.nextCopied()); )
+                    copied.apply(entry);
+            } finally {
+                reader.close();
+            }
+        } else {
+            final DeltaModel model = model();
+            unchanged.apply(new IdentityTransformation(),
+                    model.unchangedEntries());
+            for (EntryNameAndTwoDigests entry : model.changedEntries())
+                changed.apply(entry);
+            added.apply(new IdentityTransformation(), model.addedEntries());
+            for (EntryNameDigestAndSource entry : model.copiedEntries())
+                copied.apply(entry);
+        }
+    }
+
+    /**
+     * Writes the raw contents of an entry to another output stream and counts
+     * them.
+     * If a message digest is given, then it gets updated with the inflated
+     * contents.
+     */
+    private static final class VerifyingOutputStream
+    extends FilterOutputStream {
+
+        private final @CheckForNull Inflater inflater;
+        private final @CheckForNull OutputStream digest;
+
+        /** The number of raw bytes written. */
+        long count;
+
+        VerifyingOutputStream(
+                final @WillCloseWhenClosed OutputStream out,
+                final int method,
+                final @CheckForNull MessageDigest digest) {
+            super(out);
+            if (null == digest) {
+                this.inflater = null;
+                this.digest = null;
+                return;
+            }
+            final OutputStream sink = new DigestOutputStream(
+                    new OutputStream() {
+                        @Override public void write(int b) { }
+                        @Override public void write(byte[] b, int off, int len) { }
+                    }, digest);
+            if (ZipEntry.STORED == method) {
+                this.inflater = null;
+                this.digest = sink;
+            } else {
+                this.inflater = new Inflater(true);
+                this.digest = new InflaterOutputStream(sink, inflater);
+            }
+        }
+
+        @Override public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override public void write(final byte[] b, final int off, final int len)
+        throws IOException {
+            out.write(b, off, len);
+            count += len;
+            if (null != digest) digest.write(b, off, len);
+        }
+
+        @Override public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                try {
+                    if (null != digest) digest.close();
+                } finally {
+                    if (null != inflater) inflater.end();
+                }
+            }
+        }
+    } // VerifyingOutputStream
+
+    /**
+     * Rebuilds the nested archive from the given sources and returns an
+     * input stream for reading it.
+     * The diff encodes a nested archive as a nested delta ZIP file only if
+     * this reproduces it byte by byte, so its message digest gets verified
+     * just like for any other entry.
+     */
+    private InputStream patchNested(
+            final Source source1,
+            final Source delta,
+            final EntryNameAndTwoDigests changed)
+    throws IOException {
+        final File input = temp(), patch = temp(), output = temp();
+        boolean ok = false;
+        try {
+            final MessageDigest digest = digest();
+            Copy.copy(source1, new FileStore(input), digest);
+            check(digest, changed);
+            Copy.copy(delta, new FileStore(patch));
+            ZipPatch.builder()
+                    .input(input)
+                    .delta(patch)
+                    .checkFingerprint(checkFingerprint())
+                    .verifyRawContents(verifyRawContents())
+                    .build()
+                    .output(JAR_FILE_EXTENSIONS.matcher(changed.name()).matches()
+                            ? new JarFileStore(output)
+                            : new ZipFileStore(output));
+            final InputStream in = new FileInputStream(output) {
+                @Override public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        delete(output);
+                    }
+                }
+            };
+            ok = true;
+            return in;
+        } finally {
+            delete(input);
+            delete(patch);
+            if (!ok) delete(output);
+        }
+    }
+
+    /**
+     * Checks that the given message digest of an entry in the input archive
+     * matches the first message digest of the given changed entry.
+     */
+    private static void check(
+            final MessageDigest digest,
+            final EntryNameAndTwoDigests changed)
+    throws WrongInputZipFile {
+        if (!changed.matchesFirst(digest.digest()))
+            throw new WrongInputZipFile(
+                    new WrongMessageDigestException(changed.name()));
+    }
+
+    private static File temp() throws IOException {
+        return File.createTempFile("tud", null);
+    }
+
+    private static void delete(final File file) {
+        if (!file.delete()) file.deleteOnExit();
     }
 
     private MessageDigest digest() throws IOException {
-        return MessageDigests.create(model().digestAlgorithmName());
+        final String algorithm = this.algorithm;
+        return MessageDigests.create(null != algorithm
+                ? algorithm
+                : model().digestAlgorithmName());
+    }
+
+    /**
+     * Returns a new reader for the delta model in its binary encoding if the
+     * delta ZIP file contains the entry {@link DeltaModel#BINARY_ENTRY_NAME},
+     * or {@code null} otherwise.
+     * The reader gets opened once per pass, which is cheap compared to
+     * holding the delta model in memory for huge archives.
+     */
+    private @CheckForNull DeltaModelReader openBinaryModel()
+    throws IOException {
+        final ZipEntry entry = delta().entry(DeltaModel.BINARY_ENTRY_NAME);
+        if (null == entry) return null;
+        final DeltaModelReader reader = new DeltaModelReader(
+                new ZipEntrySource(entry, delta()).input());
+        this.algorithm = reader.digestAlgorithmName();
+        return reader;
     }
 
     private DeltaModel model() throws IOException {
@@ -192,6 +678,10 @@ public abstract class RawZipPatch {
 
     private DeltaModel loadModel() throws IOException {
         try {
+            final ZipEntry entry = delta().entry(DeltaModel.BINARY_ENTRY_NAME);
+            if (null != entry)
+                return DeltaModel.decodeFromBinary(
+                        new ZipEntrySource(entry, delta()));
             return DeltaModel.decodeFromXml(
                     new ZipEntrySource(modelZipEntry(), delta()));
         } catch (RuntimeException ex) {
@@ -5,7 +5,6 @@
 package net.java.trueupdate.core.zip.patch;
 
 import net.java.trueupdate.core.zip.model.EntryNameAndDigest;
-import net.java.trueupdate.core.zip.model.EntryNameAndTwoDigests;
 
 /**
  * Transforms an object into an
@@ -32,18 +31,3 @@ implements Transformation<EntryNameAndDigest> {
         return entryNameAndDigest;
     }
 }
-
-/**
- * Selects the second entry name and digest from the given entry name and
- * two digests.
- *
- * @author Christian Schlichtherle
- */
-final class EntryNameAndDigest2Transformation
-implements Transformation<EntryNameAndTwoDigests> {
-
-    @Override public EntryNameAndDigest apply(
-            EntryNameAndTwoDigests entryNameAndTwoDigests) {
-        return entryNameAndTwoDigests.entryNameAndDigest2();
-    }
-}
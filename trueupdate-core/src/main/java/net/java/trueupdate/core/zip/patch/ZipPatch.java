@@ -34,6 +34,8 @@ public abstract class ZipPatch {
     public static class Builder {
 
         private @CheckForNull ZipSource input, delta;
+        private @CheckForNull Integer parallelism;
+        private @CheckForNull Boolean checkFingerprint, verifyRawContents;
 
         Builder() { }
 
@@ -55,13 +57,63 @@ public abstract class ZipPatch {
             return this;
         }
 
-        public ZipPatch build() { return create(input, delta); }
+        /**
+         * Sets the number of worker threads for deflating the entries of the
+         * output archive.
+         * The default value is one.
+         */
+        public Builder parallelism(final @Nullable Integer parallelism) {
+            this.parallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * Sets whether the input archive shall get checked against the
+         * input fingerprint in the delta ZIP file before patching.
+         * This rejects an input archive with any additional, missing or
+         * changed file entries, even if the patch would apply otherwise.
+         * The default value is {@code true}.
+         *
+         * @see RawZipPatch#checkFingerprint()
+         */
+        public Builder checkFingerprint(
+                final @Nullable Boolean checkFingerprint) {
+            this.checkFingerprint = checkFingerprint;
+            return this;
+        }
+
+        /**
+         * Sets whether the raw contents of unchanged entries shall get
+         * inflated when copying them in order to verify their message
+         * digests.
+         * This is slower, but detects corrupted entry contents even if the
+         * meta data of the entries is intact.
+         * The default value is {@code false}.
+         *
+         * @see RawZipPatch#verifyRawContents()
+         */
+        public Builder verifyRawContents(
+                final @Nullable Boolean verifyRawContents) {
+            this.verifyRawContents = verifyRawContents;
+            return this;
+        }
+
+        public ZipPatch build() {
+            return create(input, delta, parallelism,
+                    !Boolean.FALSE.equals(checkFingerprint),
+                    Boolean.TRUE.equals(verifyRawContents));
+        }
 
         private static ZipPatch create(
                 final ZipSource input,
-                final ZipSource delta) {
+                final ZipSource delta,
+                final @Nullable Integer parallelism,
+                final boolean checkFingerprint,
+                final boolean verifyRawContents) {
             requireNonNull(input);
             requireNonNull(delta);
+            if (null != parallelism && 0 >= parallelism)
+                throw new IllegalArgumentException();
 
             return new ZipPatch() {
 
@@ -76,12 +128,18 @@ public abstract class ZipPatch {
                         public Void execute(final @WillNotClose ZipInput input) throws IOException {
                             class DeltaTask implements ZipInputTask<Void, IOException> {
                                 public Void execute(final @WillNotClose ZipInput delta) throws IOException {
+                                    final RawZipPatch patch = new RawZipPatch() {
+                                        protected ZipInput input() { return input; }
+                                        protected ZipInput delta() { return delta; }
+                                        protected int parallelism() { return null != parallelism ? parallelism : 1; }
+                                        protected boolean checkFingerprint() { return checkFingerprint; }
+                                        protected boolean verifyRawContents() { return verifyRawContents; }
+                                    };
+                                    // Fail fast before creating the output.
+                                    patch.checkInput();
                                     class OutputTask implements ZipOutputTask<Void, IOException> {
                                         public Void execute(final @WillNotClose ZipOutput output) throws IOException {
-                                            new RawZipPatch() {
-                                                protected ZipInput input() { return input; }
-                                                protected ZipInput delta() { return delta; }
-                                            }.output(output);
+                                            patch.output(output);
                                             return null;
                                         }
                                     } // OutputTask
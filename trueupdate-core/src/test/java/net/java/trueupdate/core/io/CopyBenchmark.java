@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.core.io;
+
+import java.io.*;
+import java.util.Random;
+
+/**
+ * Measures the time for copying streams of different sizes with
+ * {@link Copy#copy(Source, Sink)} in order to find the crossover point
+ * between copying on the current thread and copying with a background reader
+ * thread.
+ * Run this class once with the default settings and once with the system
+ * property {@code net.java.trueupdate.core.io.Copy.inlineThreshold} set to
+ * zero and compare the results.
+ * Likewise, the system properties
+ * {@code net.java.trueupdate.core.io.Copy.bufferSize} and
+ * {@code net.java.trueupdate.core.io.Copy.fifoSize} tune the throughput for
+ * large streams and the system property
+ * {@code net.java.trueupdate.core.io.Copy.bufferPool} selects another
+ * {@link BufferPool} implementation.
+ *
+ * @author Christian Schlichtherle
+ */
+public final class CopyBenchmark {
+
+    private static final int[] SIZES = {
+        1024, 4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024,
+        16 * 1024 * 1024
+    };
+
+    private static final long TOTAL = 256L * 1024 * 1024;
+
+    public static void main(String[] args) throws IOException {
+        System.out.printf("Inline threshold: %d bytes, buffer pool: %s%n",
+                Copy.INLINE_THRESHOLD, Copy.bufferPool());
+        for (int round = 0; round < 2; round++) {
+            System.out.println(0 == round ? "Warming up..." : "Measuring...");
+            for (final int size : SIZES) {
+                final byte[] data = new byte[size];
+                new Random(size).nextBytes(data);
+                final long count = Math.max(TOTAL / size, 16);
+                final long start = System.nanoTime();
+                for (long i = 0; i < count; i++) copy(data);
+                final long time = System.nanoTime() - start;
+                if (0 < round)
+                    System.out.printf("%10d bytes: %10.2f us/copy, %8.1f MB/s%n",
+                            size, time / 1e3 / count,
+                            (double) size * count / time * 1e9 / 1024 / 1024);
+            }
+        }
+        System.out.println(Copy.bufferPool());
+    }
+
+    private static void copy(final byte[] data) throws IOException {
+        Copy.copy(
+                new Source() {
+                    @Override public InputStream input() {
+                        return new ByteArrayInputStream(data);
+                    }
+                },
+                new Sink() {
+                    @Override public OutputStream output() {
+                        return new OutputStream() {
+                            @Override public void write(int b) { }
+                            @Override public void write(byte[] b, int off, int len) { }
+                        };
+                    }
+                });
+    }
+
+    private CopyBenchmark() { }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.core.zip.io;
+
+import java.io.*;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Measures the time for reading all entries of a ZIP file with a
+ * {@link MappedZipFile} compared to a {@link ZipFileAdapter}.
+ * For each kind of ZIP input, the benchmark measures the time for inflating
+ * the contents of all entries and for reading the raw contents of all
+ * entries.
+ * The ZIP file can get passed as the first argument.
+ * Otherwise, a temporary ZIP file with 70,000 small entries of compressible
+ * data gets generated.
+ *
+ * @author Christian Schlichtherle
+ */
+public final class MappedZipFileBenchmark {
+
+    private static final int ENTRIES = 70000, ROUNDS = 5;
+
+    public static void main(final String[] args) throws IOException {
+        final File file;
+        if (0 < args.length) {
+            file = new File(args[0]);
+        } else {
+            file = File.createTempFile("benchmark", ".zip");
+            file.deleteOnExit();
+            generate(file);
+        }
+        System.out.printf("ZIP file: %s, %d bytes%n", file, file.length());
+        for (int round = 0; round < ROUNDS; round++) {
+            System.out.println(0 == round ? "Warming up..." : "Measuring...");
+            measure(round, "ZipFileAdapter", new Factory() {
+                @Override public RawZipInput input() throws IOException {
+                    return new ZipFileAdapter(new ZipFile(file));
+                }
+            });
+            measure(round, "MappedZipFile", new Factory() {
+                @Override public RawZipInput input() throws IOException {
+                    return new MappedZipFile(file);
+                }
+            });
+        }
+    }
+
+    private static void generate(final File file) throws IOException {
+        final Random random = new Random(0);
+        final byte[] data = new byte[4 * 1024];
+        final ZipWriter out = new ZipWriter(new FileOutputStream(file));
+        try {
+            for (int i = 0; i < ENTRIES; i++) {
+                // Compressible data of varying size.
+                final int size = random.nextInt(data.length);
+                for (int j = 0; j < size; j++)
+                    data[j] = (byte) ('a' + random.nextInt(4));
+                final OutputStream entry = out.stream(
+                        out.entry("entry" + i + ".txt"));
+                try {
+                    entry.write(data, 0, size);
+                } finally {
+                    entry.close();
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void measure(
+            final int round,
+            final String name,
+            final Factory factory)
+    throws IOException {
+        final long inflate = time(factory, false);
+        final long raw = time(factory, true);
+        if (0 < round)
+            System.out.printf("%-15s inflating: %8.1f ms, raw reading: %8.1f ms%n",
+                    name, inflate / 1e6, raw / 1e6);
+    }
+
+    /**
+     * Returns the time in nanoseconds for opening the ZIP input and reading
+     * all of its entries.
+     */
+    private static long time(final Factory factory, final boolean raw)
+    throws IOException {
+        final byte[] buf = new byte[8 * 1024];
+        final long start = System.nanoTime();
+        final RawZipInput input = factory.input();
+        try {
+            for (final ZipEntry entry : input) {
+                final InputStream in = raw
+                        ? input.rawStream(entry)
+                        : input.stream(entry);
+                try {
+                    while (0 <= in.read(buf)) { }
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            input.close();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private interface Factory {
+        RawZipInput input() throws IOException;
+    }
+
+    private MappedZipFileBenchmark() { }
+}
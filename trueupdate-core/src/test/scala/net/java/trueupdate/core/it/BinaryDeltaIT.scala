@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.core.it
+
+import java.io._
+import java.util.Random
+import net.java.trueupdate.core.io._
+import org.junit.runner.RunWith
+import org.scalatest.WordSpec
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers._
+import org.scalatest.prop.PropertyChecks._
+
+/**
+ * @author Christian Schlichtherle
+ */
+@RunWith(classOf[JUnitRunner])
+class BinaryDeltaIT extends WordSpec {
+
+  def random(length: Int) = {
+    val b = new Array[Byte](length)
+    new Random(length).nextBytes(b)
+    b
+  }
+
+  def encode(source: Array[Byte], target: Array[Byte]) = {
+    val out = new ByteArrayOutputStream
+    BinaryDelta encode (source, target, out)
+    out.toByteArray
+  }
+
+  def decode(source: Array[Byte], delta: Array[Byte]) = {
+    val in = BinaryDelta decode (source, new ByteArrayInputStream(delta))
+    val out = new ByteArrayOutputStream
+    val buffer = new Array[Byte](Store.BUFSIZE)
+    var read = 0
+    while ({ read = in read buffer; 0 <= read })
+      out write (buffer, 0, read)
+    out.toByteArray
+  }
+
+  "A binary delta" should {
+    "reconstitute the target from the source" in {
+      val data = random(100000)
+      val table = Table(
+        ("source", "target"),
+        (Array.empty[Byte], Array.empty[Byte]),
+        (Array.empty[Byte], data),
+        (data, Array.empty[Byte]),
+        (data, data),
+        (data, data.take(50000) ++ "inserted".getBytes ++ data.drop(50000)),
+        (data, data.take(30000) ++ data.drop(70000)),
+        (data, random(1000) ++ data.drop(1000))
+      )
+      forAll(table) { (source, target) =>
+        decode(source, encode(source, target)) should equal (target)
+      }
+    }
+
+    "be small for a small edit" in {
+      val data = random(100000)
+      val target = data.take(50000) ++ "inserted".getBytes ++ data.drop(50000)
+      encode(data, target).length should be < (100)
+    }
+  }
+}
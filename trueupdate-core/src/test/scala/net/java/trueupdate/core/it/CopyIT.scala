@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.core.it
+
+import java.io._
+import java.util.Random
+import net.java.trueupdate.core.io._
+import org.junit.runner.RunWith
+import org.scalatest.WordSpec
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers._
+import org.scalatest.prop.PropertyChecks._
+
+/**
+ * @author Christian Schlichtherle
+ */
+@RunWith(classOf[JUnitRunner])
+class CopyIT extends WordSpec {
+
+  /** Returns some pseudo-random data of the given length. */
+  def data(length: Int) = {
+    val data = new Array[Byte](length)
+    new Random(length) nextBytes data
+    data
+  }
+
+  def loanTempFile[A](fun: File => A) = {
+    val file = File createTempFile ("tmp", null)
+    try {
+      fun(file)
+    } finally {
+      file delete ()
+    }
+  }
+
+  def write(file: File, data: Array[Byte]) {
+    val out = new FileOutputStream(file)
+    try {
+      out write data
+    } finally {
+      out close ()
+    }
+  }
+
+  def read(file: File) = {
+    val store = new MemoryStore
+    Copy copy (new FileStore(file), store)
+    store.data
+  }
+
+  /**
+   * A file store which only supports file channels, so that copying fails
+   * unless the data gets transferred between file channels.
+   */
+  class ChannelStore(file: File)
+  extends Store with ChannelSource with ChannelSink {
+
+    val store = new FileStore(file)
+
+    override def input(): InputStream = fail("input() called")
+    override def output(): OutputStream = fail("output() called")
+    override def inputChannel() = store.inputChannel ()
+    override def outputChannel() = store.outputChannel ()
+    override def delete() { store delete () }
+    override def exists = store.exists
+  }
+
+  val lengths = Table("length", 0, 1, 100 * 1000, 1000 * 1000)
+
+  "Copying data" when {
+    "copying a channel source to a channel sink" should {
+      "transfer the data between their file channels" in {
+        forAll(lengths) { length =>
+          val expected = data(length)
+          loanTempFile { input =>
+            loanTempFile { output =>
+              write(input, expected)
+              write(output, data(10))
+              Copy copy (new ChannelStore(input), new ChannelStore(output))
+              read(output) should equal (expected)
+            }
+          }
+        }
+      }
+    }
+
+    "using a custom buffer pool" should {
+      "allocate and release a FIFO of the pool for each copy" in {
+        class CountingBufferPool extends BufferPool {
+          var allocated, released = 0
+          override def allocate() = {
+            allocated += 1
+            Array.ofDim[Byte](2, 100)
+          }
+          override def release(fifo: Array[Array[Byte]]) { released += 1 }
+        }
+        val pool = new CountingBufferPool
+        val original = Copy.bufferPool ()
+        Copy bufferPool pool
+        try {
+          forAll(lengths) { length =>
+            val expected = data(length)
+            val sink = new MemoryStore
+            Copy copy (new Source {
+              def input() = new ByteArrayInputStream(expected)
+            }, sink)
+            sink.data should equal (expected)
+          }
+        } finally {
+          Copy bufferPool original
+        }
+        pool.allocated should be (lengths.size)
+        pool.released should be (lengths.size)
+      }
+    }
+
+    "updating a message digest" should {
+      "yield the correct value" in {
+        val digest = MessageDigests.sha1
+        val source = new Source {
+          def input() = classOf[CopyIT] getResourceAsStream "helloWorld"
+        }
+        val sink = new MemoryStore
+        Copy copy (source, sink, digest)
+        MessageDigests valueOf digest should
+          equal ("47a013e660d408619d894b20806b1d5086aab03b")
+        val check = MessageDigests.sha1
+        check update sink.data
+        MessageDigests valueOf check should
+          equal ("47a013e660d408619d894b20806b1d5086aab03b")
+      }
+
+      "update all message digests with all data, even from a channel source" in {
+        forAll(lengths) { length =>
+          val expected = data(length)
+          val reference = MessageDigests.sha1
+          reference update expected
+          val referenceValue = MessageDigests valueOf reference
+          loanTempFile { input =>
+            write(input, expected)
+            val digest1 = MessageDigests.sha1
+            val digest2 = MessageDigests.sha1
+            val sink = new MemoryStore
+            Copy copy (new FileStore(input), sink, digest1, digest2)
+            sink.data should equal (expected)
+            MessageDigests valueOf digest1 should equal (referenceValue)
+            MessageDigests valueOf digest2 should equal (referenceValue)
+          }
+        }
+      }
+    }
+  }
+}
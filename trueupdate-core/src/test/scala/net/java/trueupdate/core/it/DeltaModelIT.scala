@@ -7,8 +7,11 @@ package net.java.trueupdate.core.it
 import org.junit.runner.RunWith
 import org.scalatest.WordSpec
 import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers._
 import net.java.trueupdate.core.io.MessageDigests.sha1
-import net.java.trueupdate.core.zip.model.DeltaModel
+import java.math.BigInteger
+import net.java.trueupdate.core.zip.model.{DeltaModelReader, DeltaModel, EntryNameAndDigest}
+import scala.collection.JavaConverters._
 
 /** @author Christian Schlichtherle */
 @RunWith(classOf[JUnitRunner])
@@ -19,12 +22,81 @@ class DeltaModelIT extends WordSpec with ZipITContext {
       "be round-trip XML-serializable" in {
         assertRoundTripXmlSerializable(DeltaModel.builder.messageDigest(sha1).build)
       }
+
+      "be round-trip binary-encodable" in {
+        assertRoundTripBinaryEncodable(DeltaModel.builder.messageDigest(sha1).build)
+      }
+    }
+
+    "constructed with message digest values with leading zeros" should {
+      "omit the leading zeros in its XML encoding like version 0.8.x" in {
+        val value = Array[Byte](0, 1, 0xab.toByte)
+        val model = DeltaModel.builder
+          .messageDigest(sha1)
+          .inputFingerprint(value)
+          .unchangedEntries(List(new EntryNameAndDigest("entry", value, null)).asJava)
+          .build
+        val store = memoryStore
+        model encodeToXml store
+        val xml = utf8String(store)
+        xml should include ("\"" + new BigInteger(1, value).toString(16) + "\"")
+        xml should not include ("\"0001ab\"")
+        val clone = DeltaModel decodeFromXml store
+        clone should equal (model)
+        clone.unchangedEntries.asScala.head matches value should be (true)
+      }
     }
 
     "computed from a ZIP diff" should {
       "be round-trip XML-serializable" in {
         assertRoundTripXmlSerializable(loanRawZipDiff(_ model ()))
       }
+
+      "be round-trip binary-encodable" in {
+        assertRoundTripBinaryEncodable(loanRawZipDiff(_ model ()))
+      }
+
+      "have version 1 and the input fingerprint in the header of its binary encoding" in {
+        val model = loanRawZipDiff(_ model ())
+        model.inputFingerprint should not be (null)
+        val store = memoryStore
+        model encodeToBinary store
+        val data = store.data
+        // The version number follows the magic number.
+        data(4) should be (1)
+        val reader = new DeltaModelReader(store.input)
+        try {
+          reader.inputFingerprint should equal (model.inputFingerprint)
+        } finally {
+          reader close ()
+        }
+      }
+
+      "be readable one entry at a time" in {
+        val model = loanRawZipDiff(_ model ())
+        val store = memoryStore
+        model encodeToBinary store
+        val reader = new DeltaModelReader(store.input)
+        try {
+          def entries[A](next: => A) =
+            Iterator.continually(next).takeWhile(null != _).toList
+          entries(reader.nextUnchanged) should equal (model.unchangedEntries.asScala.toList)
+          entries(reader.nextChanged) should equal (model.changedEntries.asScala.toList)
+          entries(reader.nextAdded) should equal (model.addedEntries.asScala.toList)
+          entries(reader.nextRemoved) should equal (model.removedEntries.asScala.toList)
+          entries(reader.nextCopied) should equal (model.copiedEntries.asScala.toList)
+        } finally {
+          reader close ()
+        }
+      }
     }
   }
+
+  private def assertRoundTripBinaryEncodable(original: DeltaModel) {
+    val store = memoryStore
+    original encodeToBinary store
+    val clone = DeltaModel decodeFromBinary store
+    clone should equal (original)
+    clone should not be theSameInstanceAs (original)
+  }
 }
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.core.it
+
+import java.io._
+import java.util.zip.ZipEntry
+import net.java.trueupdate.core.zip.diff.DigestIndex
+import org.junit.runner.RunWith
+import org.scalatest.WordSpec
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers._
+
+/**
+ * @author Christian Schlichtherle
+ */
+@RunWith(classOf[JUnitRunner])
+class DigestIndexIT extends WordSpec {
+
+  val algorithm = "SHA-1"
+
+  def loanDirectory[A](fun: File => A) = {
+    val directory = File createTempFile ("dir", null)
+    directory delete ()
+    directory mkdir ()
+    try {
+      fun(directory)
+    } finally {
+      def delete(file: File) {
+        val files = file.listFiles
+        if (null != files) files foreach delete
+        file delete ()
+      }
+      delete(directory)
+    }
+  }
+
+  /** Creates a fake archive file with the given contents. */
+  def archive(directory: File, contents: String = "archive") = {
+    val file = new File(directory, "archive.jar")
+    val out = new FileOutputStream(file)
+    try {
+      out write (contents getBytes "UTF-8")
+    } finally {
+      out close ()
+    }
+    // Use a fixed time with a full second, which all file systems support.
+    file setLastModified 1000000000000L
+    file
+  }
+
+  def entry(name: String, crc: Long, size: Long) = {
+    val entry = new ZipEntry(name)
+    entry setCrc crc
+    entry setSize size
+    entry
+  }
+
+  val value1 = Array[Byte](1, 2, 3)
+  val value2 = Array[Byte](4, 5, 6)
+
+  /** Puts two entries into a new index for the given archive and saves it. */
+  def save(archive: File, cache: File = null) {
+    val index = DigestIndex load (archive, algorithm, cache)
+    index put (entry("one", 1, 10), value1)
+    index put (entry("two", 2, 20), value2)
+    index save ()
+  }
+
+  "A digest index" should {
+    "be empty if it hasn't been saved before" in {
+      loanDirectory { directory =>
+        val index = DigestIndex load (archive(directory), algorithm, null)
+        index lookup entry("one", 1, 10) should be (null)
+      }
+    }
+
+    "be saved next to the archive file by default" in {
+      loanDirectory { directory =>
+        val file = archive(directory)
+        save(file)
+        val index = DigestIndex load (file, algorithm, null)
+        index.file.getParentFile should equal (directory)
+        index.file.isFile should be (true)
+        index lookup entry("one", 1, 10) should equal (value1)
+        index lookup entry("two", 2, 20) should equal (value2)
+      }
+    }
+
+    "be saved in the given cache directory" in {
+      loanDirectory { directory =>
+        val file = archive(directory)
+        val cache = new File(directory, "cache")
+        save(file, cache)
+        directory.list.toSet should equal (Set("archive.jar", "cache"))
+        cache.list should have length (1)
+        val index = DigestIndex load (file, algorithm, cache)
+        index.file.getParentFile should equal (cache)
+        index lookup entry("one", 1, 10) should equal (value1)
+        index lookup entry("two", 2, 20) should equal (value2)
+      }
+    }
+
+    "key the message digests by the name, CRC-32 value and size of the entries" in {
+      loanDirectory { directory =>
+        val file = archive(directory)
+        save(file)
+        val index = DigestIndex load (file, algorithm, null)
+        index lookup entry("one", 1, 10) should equal (value1)
+        index lookup entry("one", 2, 10) should be (null)
+        index lookup entry("one", 1, 11) should be (null)
+        index lookup entry("three", 1, 10) should be (null)
+      }
+    }
+
+    "not index an entry with an unknown CRC-32 value or size" in {
+      loanDirectory { directory =>
+        val index = DigestIndex load (archive(directory), algorithm, null)
+        index put (new ZipEntry("unknown"), value1)
+        index lookup new ZipEntry("unknown") should be (null)
+        index save ()
+        index.file.exists should be (false)
+      }
+    }
+
+    "be invalid when the size of the archive file has changed" in {
+      loanDirectory { directory =>
+        save(archive(directory))
+        val file = archive(directory, "modified archive")
+        val index = DigestIndex load (file, algorithm, null)
+        index lookup entry("one", 1, 10) should be (null)
+      }
+    }
+
+    "be invalid when the last modification time of the archive file has changed" in {
+      loanDirectory { directory =>
+        val file = archive(directory)
+        save(file)
+        file setLastModified 1000000002000L
+        val index = DigestIndex load (file, algorithm, null)
+        index lookup entry("one", 1, 10) should be (null)
+      }
+    }
+
+    "be separate for each message digest algorithm" in {
+      loanDirectory { directory =>
+        val file = archive(directory)
+        save(file)
+        val index = DigestIndex load (file, "MD5", null)
+        index.file should not equal (
+          (DigestIndex load (file, algorithm, null)).file)
+        index lookup entry("one", 1, 10) should be (null)
+      }
+    }
+
+    "start over if the index file is corrupted" in {
+      loanDirectory { directory =>
+        val file = archive(directory)
+        save(file)
+        val indexFile = (DigestIndex load (file, algorithm, null)).file
+        val out = new RandomAccessFile(indexFile, "rw")
+        try {
+          out setLength (indexFile.length - 1)
+        } finally {
+          out close ()
+        }
+        val index = DigestIndex load (file, algorithm, null)
+        index lookup entry("one", 1, 10) should be (null)
+        index put (entry("one", 1, 10), value1)
+        index save ()
+        (DigestIndex load (file, algorithm, null)) lookup
+          entry("one", 1, 10) should equal (value1)
+      }
+    }
+  }
+}
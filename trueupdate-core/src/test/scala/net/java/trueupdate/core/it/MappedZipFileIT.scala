@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.core.it
+
+import java.io._
+import java.util.zip._
+import net.java.trueupdate.core.zip.io._
+import org.junit.runner.RunWith
+import org.scalatest.WordSpec
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers._
+import scala.collection.JavaConverters._
+
+/**
+ * @author Christian Schlichtherle
+ */
+@RunWith(classOf[JUnitRunner])
+class MappedZipFileIT extends WordSpec with ZipITContext {
+
+  val hello = "Hello world!" getBytes "UTF-8"
+  val lorem = ("Lorem ipsum dolor sit amet. " * 1000) getBytes "UTF-8"
+
+  def loanTempFile[A](fun: File => A) = {
+    val file = File createTempFile ("tmp", null)
+    try {
+      fun(file)
+    } finally {
+      file delete ()
+    }
+  }
+
+  def loanMappedZipFile[A](file: File)(fun: MappedZipFile => A) = {
+    val zip = new MappedZipFile(file)
+    try {
+      fun(zip)
+    } finally {
+      zip close ()
+    }
+  }
+
+  def loanZipFileAdapter[A](file: File)(fun: ZipFileAdapter => A) = {
+    val zip = new ZipFileAdapter(new ZipFile(file))
+    try {
+      fun(zip)
+    } finally {
+      zip close ()
+    }
+  }
+
+  def read(in: InputStream) = {
+    try {
+      val out = new ByteArrayOutputStream
+      val buf = new Array[Byte](8 * 1024)
+      Iterator continually (in read buf) takeWhile (-1 !=) foreach
+        (out write (buf, 0, _))
+      out.toByteArray
+    } finally {
+      in close ()
+    }
+  }
+
+  def write(out: OutputStream)(fun: ZipWriter => Unit) {
+    val zip = new ZipWriter(out)
+    try {
+      fun(zip)
+    } finally {
+      zip close ()
+    }
+  }
+
+  def put(zip: ZipOutput, entry: ZipEntry, data: Array[Byte]) {
+    val out = zip stream entry
+    try {
+      out write data
+    } finally {
+      out close ()
+    }
+  }
+
+  def stored(name: String, data: Array[Byte]) = {
+    val entry = new ZipEntry(name)
+    entry setMethod ZipEntry.STORED
+    entry setSize data.length
+    val crc = new CRC32
+    crc update data
+    entry setCrc crc.getValue
+    entry
+  }
+
+  /** Writes a ZIP file with different kinds of entries. */
+  def sample(out: OutputStream) {
+    write(out) { zip =>
+      put(zip, stored("stored", hello), hello)
+      put(zip, zip entry "deflated", lorem)
+      put(zip, zip entry "dir/", new Array[Byte](0))
+      val entry = zip entry "\u00e4\u00f6\u00fc\u20ac"
+      entry setComment "\u00df comment"
+      entry setExtra Array[Byte](0x34, 0x12, 2, 0, 1, 2)
+      put(zip, entry, lorem)
+    }
+  }
+
+  /**
+   * Asserts that the given mapped ZIP file has the same entries as the given
+   * ZIP file adapter.
+   */
+  def assertSameEntries(mapped: MappedZipFile, adapter: ZipFileAdapter) {
+    val expected = adapter.iterator.asScala.toList
+    val actual = mapped.iterator.asScala.toList
+    mapped.size should be (expected.size)
+    actual map (_.getName) should equal (expected map (_.getName))
+    for ((entry, original) <- actual zip expected) {
+      entry.getMethod should be (original.getMethod)
+      entry.getTime should be (original.getTime)
+      entry.getCrc should be (original.getCrc)
+      entry.getSize should be (original.getSize)
+      entry.getCompressedSize should be (original.getCompressedSize)
+      entry.getExtra should equal (original.getExtra)
+      entry.getComment should equal (original.getComment)
+      read(mapped stream entry) should equal (read(adapter stream original))
+      read(mapped rawStream entry) should
+        equal (read(adapter rawStream original))
+      // Look up the entry by its name.
+      (mapped entry entry.getName).getName should equal (entry.getName)
+      read(mapped stream (mapped entry entry.getName)) should
+        equal (read(adapter stream original))
+    }
+  }
+
+  "A mapped ZIP file" should {
+    "read the same entries as a ZipFile" in {
+      for (file <- List(testJar1(), testJar2()))
+        loanMappedZipFile(file) { mapped =>
+          loanZipFileAdapter(file) { adapter =>
+            assertSameEntries(mapped, adapter)
+          }
+        }
+    }
+
+    "read STORED and DEFLATED entries with UTF-8 names, comments and extra fields" in {
+      loanTempFile { file =>
+        sample(new FileOutputStream(file))
+        loanMappedZipFile(file) { mapped =>
+          loanZipFileAdapter(file) { adapter =>
+            assertSameEntries(mapped, adapter)
+          }
+          read(mapped stream (mapped entry "stored")) should equal (hello)
+          read(mapped stream (mapped entry "deflated")) should equal (lorem)
+          (mapped entry "\u00e4\u00f6\u00fc\u20ac").getComment should
+            equal ("\u00df comment")
+        }
+      }
+    }
+
+    "look up directory entries with or without a trailing slash" in {
+      loanTempFile { file =>
+        sample(new FileOutputStream(file))
+        loanMappedZipFile(file) { mapped =>
+          (mapped entry "dir").getName should equal ("dir/")
+          (mapped entry "dir/").getName should equal ("dir/")
+          mapped entry "missing" should be (null)
+          mapped entry "stored/" should be (null)
+        }
+      }
+    }
+
+    "read a ZIP file with prepended data" in {
+      loanTempFile { file =>
+        val out = new FileOutputStream(file)
+        out write (Array.fill[Byte](1000)(42))
+        sample(out)
+        loanMappedZipFile(file) { mapped =>
+          loanZipFileAdapter(file) { adapter =>
+            assertSameEntries(mapped, adapter)
+          }
+        }
+      }
+    }
+
+    "read a ZIP64 file with more than 65535 entries" in {
+      val count = 70000
+      loanTempFile { file =>
+        write(new FileOutputStream(file)) { zip =>
+          for (i <- 0 until count) put(zip, stored("entry" + i, hello), hello)
+        }
+        loanMappedZipFile(file) { mapped =>
+          mapped.size should be (count)
+          mapped.iterator.asScala.size should be (count)
+          for (i <- List(0, 65535, 65536, count - 1))
+            read(mapped stream (mapped entry ("entry" + i))) should
+              equal (hello)
+        }
+      }
+    }
+
+    "provide read-only slices which stay valid after closing" in {
+      loanTempFile { file =>
+        sample(new FileOutputStream(file))
+        val mapped = new MappedZipFile(file)
+        val entry = mapped entry "stored"
+        val slice = mapped slice entry
+        slice.isReadOnly should be (true)
+        slice.remaining should be (hello.length)
+        mapped close ()
+        val data = new Array[Byte](slice.remaining)
+        slice get data
+        data should equal (hello)
+        intercept[IOException] { mapped slice entry }
+        intercept[IllegalStateException] { mapped entry "stored" }
+      }
+    }
+
+    "reject a file which is not a ZIP file" in {
+      loanTempFile { file =>
+        val out = new FileOutputStream(file)
+        try {
+          out write lorem
+        } finally {
+          out close ()
+        }
+        intercept[ZipException] { new MappedZipFile(file) }
+      }
+    }
+  }
+
+  "A mapped ZIP file store" should {
+    "read the ZIP file with a mapped ZIP file" in {
+      val input = new MappedZipFileStore(testJar1()).input
+      try {
+        input.isInstanceOf[MappedZipFile] should be (true)
+      } finally {
+        input close ()
+      }
+    }
+  }
+}
@@ -37,4 +37,34 @@ class MessageDigestsIT extends WordSpec {
       }
     }
   }
+
+  "Conversion of digest values" should {
+    "keep leading zeros and accept values without them" in {
+      import MessageDigests._
+      val value = Array[Byte](0, 1, 0xab.toByte)
+      valueOf(value) should equal ("0001ab")
+      parseValue("0001ab") should equal (value)
+      MessageDigests.equals(parseValue("1ab"), value) should be (true)
+      MessageDigests.hashCode(parseValue("1ab")) should equal (MessageDigests.hashCode(value))
+      MessageDigests.equals(parseValue("1ac"), value) should be (false)
+    }
+  }
+
+  "Computation of fingerprints" should {
+    "yield correct values" in {
+      val table = Table(
+        ("algorithm", "input", "reference value"),
+        ("CRC32", "123456789", "cbf43926"),
+        ("CRC32C", "123456789", "e3069283"),
+        ("XXHASH64", "abc", "44bc2cf5ad770999"),
+        ("XXHASH64", "Nobody inspects the spammish repetition", "fbcea83c8a378bf1")
+      )
+      forAll(table) { (algorithm, input, referenceValue) =>
+        import MessageDigests._
+        val digest = create(algorithm)
+        digest update input.getBytes("UTF-8")
+        valueOf(digest) should equal (referenceValue)
+      }
+    }
+  }
 }
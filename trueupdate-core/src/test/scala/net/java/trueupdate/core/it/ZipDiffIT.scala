@@ -4,13 +4,18 @@
  */
 package net.java.trueupdate.core.it
 
+import java.io._
+import java.util.zip.ZipFile
 import org.junit.runner.RunWith
 import org.scalatest.WordSpec
 import org.scalatest.junit.JUnitRunner
 import org.scalatest.matchers.ShouldMatchers._
-import net.java.trueupdate.core.zip.diff.RawZipDiff
-import net.java.trueupdate.core.io.MessageDigests
+import org.scalatest.prop.PropertyChecks._
+import net.java.trueupdate.core.zip.diff.{ZipDiff, RawZipDiff}
+import net.java.trueupdate.core.zip.model.{DeltaModel, EntryEncoding}
+import net.java.trueupdate.core.io.{MessageDigests, Source}
 import net.java.trueupdate.core.zip.io.JarFileStore
+import scala.collection.JavaConverters._
 
 /**
  * @author Christian Schlichtherle
@@ -18,6 +23,50 @@ import net.java.trueupdate.core.zip.io.JarFileStore
 @RunWith(classOf[JUnitRunner])
 class ZipDiffIT extends WordSpec with ZipITContext {
 
+  /**
+   * Returns the names and contents of the entries in the delta ZIP file of
+   * the given test JAR files in the order of the central directory.
+   */
+  def deltaEntries(builder: ZipDiff.Builder,
+                   jar1: File = testJar1(),
+                   jar2: File = testJar2()) = {
+    val file = File createTempFile ("delta", null)
+    try {
+      builder.input1(jar1).input2(jar2).build output file
+      val zip = new ZipFile(file)
+      try {
+        zip.entries.asScala.toList map { entry =>
+          val in = zip getInputStream entry
+          try {
+            val out = new ByteArrayOutputStream
+            val buf = new Array[Byte](8 * 1024)
+            Iterator continually (in read buf) takeWhile (-1 !=) foreach
+              (out write (buf, 0, _))
+            entry.getName -> out.toByteArray.toSeq
+          } finally {
+            in close ()
+          }
+        }
+      } finally {
+        zip close ()
+      }
+    } finally {
+      file delete ()
+    }
+  }
+
+  /** Decodes the delta model from the given delta ZIP file entries. */
+  def deltaModel(entries: List[(String, Seq[Byte])]) = {
+    val data = entries.toMap
+    def source(name: String) = new Source {
+      def input() = new ByteArrayInputStream(data(name).toArray)
+    }
+    if (data contains DeltaModel.BINARY_ENTRY_NAME)
+      DeltaModel decodeFromBinary source(DeltaModel.BINARY_ENTRY_NAME)
+    else
+      DeltaModel decodeFromXml source(DeltaModel.ENTRY_NAME)
+  }
+
   "A JAR diff" when {
     "computing  the test JAR files" should {
       "partition the entry names and digests correctly" in {
@@ -34,5 +83,73 @@ class ZipDiffIT extends WordSpec with ZipITContext {
           equal (List("differentEntrySize"))
       }
     }
+
+    "computing the test JAR files in parallel" should {
+      "yield the same model as computing them sequentially" in {
+        val sequential = loanRawZipDiff(_ model ())
+        val parallel = loanTestJars { (archive1, archive2) =>
+          new RawZipDiff {
+            override def input1 = archive1
+            override def input2 = archive2
+            override def digest = ZipDiffIT.this.digest
+            override def parallelism = 4
+          } model ()
+        }
+        parallel should equal (sequential)
+      }
+    }
+
+    "computing the test JAR files in streaming mode" should {
+      "write the same entries as in non-streaming mode, but the delta model last" in {
+        val options = Table[ZipDiff.Builder => ZipDiff.Builder]("options",
+          identity,
+          _ binaryDeltas true,
+          _ detectCopies true,
+          _ binaryModel true)
+        val modelEntryNames =
+          Set(DeltaModel.ENTRY_NAME, DeltaModel.BINARY_ENTRY_NAME)
+        forAll(options) { options =>
+          val nonStreaming = deltaEntries(options(ZipDiff.builder) streaming false)
+          val streaming = deltaEntries(options(ZipDiff.builder) streaming true)
+          streaming.toMap should equal (nonStreaming.toMap)
+          streaming should have length (nonStreaming.size)
+          modelEntryNames should contain (nonStreaming.head._1)
+          streaming.last._1 should equal (nonStreaming.head._1)
+        }
+      }
+    }
+
+    "computing the third and fourth test JAR files in streaming mode" should {
+      "encode the same entries as in non-streaming mode" in {
+        val options = Table[ZipDiff.Builder => ZipDiff.Builder, DeltaModel => Unit](
+          ("options", "check"),
+          (_ binaryDeltas true, { model =>
+            (model changed "largeEntry").encoding should
+              be (EntryEncoding.BINARY)
+          }),
+          (_ recursive true, { model =>
+            (model changed "lib/nested.jar").encoding should
+              be (EntryEncoding.ZIP)
+          }),
+          (_ detectCopies true, { model =>
+            (model copied "renamedEntry").source should equal ("originalEntry")
+          }))
+        forAll(options) { (options, check) =>
+          val nonStreaming = deltaEntries(options(ZipDiff.builder) streaming false,
+                                          testJar3(), testJar4())
+          val streaming = deltaEntries(options(ZipDiff.builder) streaming true,
+                                       testJar3(), testJar4())
+          check(deltaModel(nonStreaming))
+          check(deltaModel(streaming))
+          // The delta model entry of a nested delta ZIP file has the current
+          // time, so compare the names of the nested delta ZIP files only.
+          val nested = (deltaModel(streaming).changedEntries.asScala
+            filter (EntryEncoding.ZIP == _.encoding) map (_.name)).toSet
+          streaming.toMap -- nested should equal (nonStreaming.toMap -- nested)
+          (streaming map (_._1)).toSet should
+            equal ((nonStreaming map (_._1)).toSet)
+        }
+      }
+    }
   }
 }
@@ -7,6 +7,7 @@ package net.java.trueupdate.core.it
 import edu.umd.cs.findbugs.annotations.CreatesObligation
 import java.io.File
 import java.util.jar.JarFile
+import java.util.zip.ZipFile
 import javax.annotation.WillNotClose
 import net.java.trueupdate.core.TestContext
 import net.java.trueupdate.core.io._
@@ -14,7 +15,7 @@ import net.java.trueupdate.core.zip._
 import net.java.trueupdate.core.zip.diff.RawZipDiff
 import net.java.trueupdate.core.zip.model.DeltaModel
 import net.java.trueupdate.core.zip.patch._
-import net.java.trueupdate.core.zip.io.{ZipSources, ZipInputTask, ZipInput}
+import net.java.trueupdate.core.zip.io.{ZipEntrySource, ZipFileAdapter, ZipSources, ZipInputTask, ZipInput}
 
 /**
  * @author Christian Schlichtherle
@@ -49,6 +50,33 @@ trait ZipITContext extends TestContext {
   @CreatesObligation final def testJar1() = file("test1.jar")
   @CreatesObligation final def testJar2() = file("test2.jar")
 
+  /**
+   * Returns the third test JAR file.
+   * Compared to the third test JAR file, the fourth test JAR file has a
+   * large entry with a changed line, a nested JAR file with a changed class
+   * file and a renamed entry.
+   * The nested JAR file in the fourth test JAR file is the result of a patch,
+   * so that a recursive patch reproduces it byte by byte.
+   */
+  @CreatesObligation final def testJar3() = file("test3.jar")
+  @CreatesObligation final def testJar4() = file("test4.jar")
+
+  /** Decodes the delta model in the given delta ZIP file. */
+  def deltaModel(deltaZip: File) = {
+    val zip = new ZipFile(deltaZip)
+    try {
+      val input = new ZipFileAdapter(zip)
+      val binary = zip getEntry DeltaModel.BINARY_ENTRY_NAME
+      if (null != binary)
+        DeltaModel decodeFromBinary (new ZipEntrySource(binary, input))
+      else
+        DeltaModel decodeFromXml (new ZipEntrySource(
+          zip getEntry DeltaModel.ENTRY_NAME, input))
+    } finally {
+      zip close ()
+    }
+  }
+
   private def file(resourceName: String) =
     new File((classOf[ZipITContext] getResource resourceName).toURI)
 
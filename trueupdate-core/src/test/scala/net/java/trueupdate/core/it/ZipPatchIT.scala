@@ -9,12 +9,14 @@ import org.scalatest.junit.JUnitRunner
 import org.scalatest.WordSpec
 import org.scalatest.matchers.ShouldMatchers._
 import java.io._
+import java.util.zip._
 import scala.collection.JavaConverters._
 import net.java.trueupdate.core.io._
 import net.java.trueupdate.core.zip._
 import net.java.trueupdate.core.zip.diff._
+import net.java.trueupdate.core.zip.model._
 import net.java.trueupdate.core.zip.patch._
-import net.java.trueupdate.core.zip.io.{ZipSources, ZipInputTask, ZipInput}
+import net.java.trueupdate.core.zip.io.{JarFileStore, ZipSources, ZipInputTask, ZipInput, ZipWriter}
 
 /**
  * @author Christian Schlichtherle
@@ -27,48 +29,410 @@ class ZipPatchIT extends WordSpec with ZipITContext {
   def fileEntryNames(zip: ZipInput) = List.empty[String] ++
     zip.iterator.asScala.filter(!_.isDirectory).map(_.getName)
 
+  /**
+   * Generates the delta ZIP file for the given archives, checks its delta
+   * model and applies it to the first archive.
+   * Then checks that the patched archive is equal to the second archive.
+   */
+  def reconstitute(diff: ZipDiff.Builder,
+                   patch: ZipPatch.Builder = ZipPatch.builder,
+                   jar1: File = testJar1(),
+                   jar2: File = testJar2(),
+                   check: DeltaModel => Unit = _ => ()) {
+    val deltaZip = tempFile()
+    try {
+      val patched = tempFile()
+      try {
+        diff.input1(jar1).input2(jar2).build.output(deltaZip)
+        check(deltaModel(deltaZip))
+        patch.input(jar1).delta(deltaZip).build.output(new JarFileStore(patched))
+
+        class ComputeReferenceAndDiffTask extends ZipInputTask[Unit, Exception] {
+          override def execute(archive1: ZipInput) {
+            val unchangedReference = fileEntryNames(archive1)
+
+            class DiffTask extends ZipInputTask[Unit, Exception] {
+              override def execute(archive2: ZipInput) {
+                val model = new RawZipDiff {
+                  val _digest = MessageDigests.sha1
+
+                  override def digest = _digest
+                  override def input1 = archive1
+                  override def input2 = archive2
+                } model ()
+                model.addedEntries.isEmpty should be (true)
+                model.removedEntries.isEmpty should be (true)
+                model.unchangedEntries.asScala map (_.name) should
+                  equal (unchangedReference)
+                model.changedEntries.isEmpty should be (true)
+              }
+            }
+
+            ZipSources execute new DiffTask on patched
+          }
+        }
+
+        ZipSources execute new ComputeReferenceAndDiffTask on jar2
+      } finally {
+        patched delete ()
+      }
+    } finally {
+      deltaZip delete ()
+    }
+  }
+
   "A ZIP patch" when {
     "generating and applying the ZIP patch file to the first test JAR file" should {
       "reconstitute the second test JAR file" in {
+        reconstitute(ZipDiff.builder)
+      }
+    }
+
+    "generating and applying the ZIP patch file with binary deltas to the first test JAR file" should {
+      "reconstitute the second test JAR file" in {
+        reconstitute(ZipDiff.builder.binaryDeltas(true))
+      }
+    }
 
-        val deltaZip = tempFile()
+    "generating and applying the ZIP patch file with binary deltas to the third test JAR file" should {
+      "encode the large changed entry as a binary delta and reconstitute the fourth test JAR file" in {
+        reconstitute(ZipDiff.builder.binaryDeltas(true),
+                     jar1 = testJar3(), jar2 = testJar4(),
+                     check = { model =>
+                       (model changed "largeEntry").encoding should
+                         be (EntryEncoding.BINARY)
+                     })
+      }
+    }
+
+    "generating and applying the ZIP patch file recursively to the first test JAR file" should {
+      "reconstitute the second test JAR file" in {
+        reconstitute(ZipDiff.builder.recursive(true).binaryDeltas(true))
+      }
+    }
+
+    "generating and applying the ZIP patch file recursively to the third test JAR file" should {
+      "encode the nested JAR file as a nested delta ZIP file and reconstitute the fourth test JAR file" in {
+        reconstitute(ZipDiff.builder.recursive(true),
+                     jar1 = testJar3(), jar2 = testJar4(),
+                     check = { model =>
+                       (model changed "lib/nested.jar").encoding should
+                         be (EntryEncoding.ZIP)
+                     })
+      }
+    }
+
+    "generating and applying the ZIP patch file recursively for a nested archive which the patch doesn't reproduce" should {
+      "encode the nested archive like any other changed entry" in {
+        def zip(entries: (String, Array[Byte])*) = {
+          val file = tempFile()
+          val out = new ZipOutputStream(new FileOutputStream(file))
+          try {
+            for ((name, data) <- entries) {
+              out putNextEntry new ZipEntry(name)
+              out write data
+              out closeEntry ()
+            }
+          } finally {
+            out close ()
+          }
+          file
+        }
+        def data(file: File) = {
+          val store = new MemoryStore
+          Copy copy (new FileStore(file), store)
+          store.data
+        }
+        def random(seed: Int) = {
+          val data = new Array[Byte](2048)
+          new java.util.Random(seed) nextBytes data
+          data
+        }
+
+        val nested1 = zip("equal.class" -> random(1), "changed.class" -> random(2))
+        val nested2 = zip("equal.class" -> random(1), "changed.class" -> random(3))
+        val archive1 = zip("nested.jar" -> data(nested1))
+        val archive2 = zip("nested.jar" -> data(nested2))
         try {
-          val patched = tempFile()
+          reconstitute(ZipDiff.builder.recursive(true),
+                       jar1 = archive1, jar2 = archive2,
+                       check = { model =>
+                         (model changed "nested.jar").encoding should
+                           not be (EntryEncoding.ZIP)
+                       })
+        } finally {
+          archive2 delete ()
+          archive1 delete ()
+          nested2 delete ()
+          nested1 delete ()
+        }
+      }
+    }
+
+    "generating and applying the ZIP patch file to the first test JAR file in parallel" should {
+      "reconstitute the second test JAR file" in {
+        reconstitute(ZipDiff.builder, ZipPatch.builder.parallelism(4))
+      }
+    }
+
+    "generating and applying the ZIP patch file with copy detection to the first test JAR file" should {
+      "reconstitute the second test JAR file" in {
+        reconstitute(ZipDiff.builder.detectCopies(true))
+      }
+    }
+
+    "generating and applying the ZIP patch file with copy detection to the third test JAR file" should {
+      "record the renamed entry as a copy and reconstitute the fourth test JAR file" in {
+        reconstitute(ZipDiff.builder.detectCopies(true),
+                     jar1 = testJar3(), jar2 = testJar4(),
+                     check = { model =>
+                       model.copiedEntries.asScala map
+                         (entry => entry.name -> entry.source) should
+                         equal (List("renamedEntry" -> "originalEntry"))
+                       model.addedEntries.isEmpty should be (true)
+                     })
+      }
+    }
+
+    "generating and applying the ZIP patch file with a fast fingerprint to the first test JAR file" should {
+      "reconstitute the second test JAR file" in {
+        reconstitute(ZipDiff.builder.digest("XXHASH64"))
+      }
+    }
+
+    "generating and applying the ZIP patch file with verification of raw contents to the first test JAR file" should {
+      "reconstitute the second test JAR file" in {
+        reconstitute(ZipDiff.builder, ZipPatch.builder.verifyRawContents(true))
+      }
+    }
+
+    "generating and applying the ZIP patch file with a binary delta model to the first test JAR file" should {
+      "reconstitute the second test JAR file" in {
+        reconstitute(ZipDiff.builder.binaryModel(true))
+      }
+    }
+
+    "generating and applying the ZIP patch file for archives with STORED and DEFLATED entries" should {
+      "preserve the compression method of each entry in the second archive" in {
+        def zip(entries: (String, Int, String)*) = {
+          val file = tempFile()
+          val out = new ZipOutputStream(new FileOutputStream(file))
           try {
-            ZipDiff.builder.input1(testJar1).input2(testJar2).build.output(deltaZip)
-            ZipPatch.builder.input(testJar1).delta(deltaZip).build.output(patched)
-
-            class ComputeReferenceAndDiffTask extends ZipInputTask[Unit, Exception] {
-              override def execute(archive1: ZipInput) {
-                val unchangedReference = fileEntryNames(archive1)
-
-                class DiffTask extends ZipInputTask[Unit, Exception] {
-                  override def execute(archive2: ZipInput) {
-                    val model = new RawZipDiff {
-                      val _digest = MessageDigests.sha1
-
-                      override def digest = _digest
-                      override def input1 = archive1
-                      override def input2 = archive2
-                    } model ()
-                    model.addedEntries.isEmpty should be (true)
-                    model.removedEntries.isEmpty should be (true)
-                    model.unchangedEntries.asScala map (_.name) should
-                      equal (unchangedReference)
-                    model.changedEntries.isEmpty should be (true)
-                  }
-                }
+            for ((name, method, content) <- entries) {
+              val data = content getBytes "UTF-8"
+              val entry = new ZipEntry(name)
+              entry setMethod method
+              if (ZipEntry.STORED == method) {
+                val crc = new CRC32
+                crc update data
+                entry setSize data.length
+                entry setCrc crc.getValue
+              }
+              out putNextEntry entry
+              out write data
+              out closeEntry ()
+            }
+          } finally {
+            out close ()
+          }
+          file
+        }
 
-                ZipSources execute new DiffTask on patched
+        import ZipEntry.{DEFLATED, STORED}
+        val archive1 = zip(
+          ("equal.txt", DEFLATED, "equal"),
+          ("image.png", STORED, "image 1"))
+        val archive2 = zip(
+          ("equal.txt", DEFLATED, "equal"),
+          ("image.png", DEFLATED, "image 2"),
+          ("added.png", STORED, "added"),
+          ("added.txt", DEFLATED, "added"))
+        try {
+          for (binaryModel <- List(false, true)) {
+            val deltaZip = tempFile()
+            val patched = tempFile()
+            try {
+              ZipDiff.builder.input1(archive1).input2(archive2)
+                .binaryModel(binaryModel).build.output(deltaZip)
+              ZipPatch.builder.input(archive1).delta(deltaZip).build
+                .output(patched)
+              val zip2 = new ZipFile(archive2)
+              try {
+                val zip = new ZipFile(patched)
+                try {
+                  for (entry <- zip2.entries.asScala)
+                    (zip getEntry entry.getName).getMethod should
+                      be (entry.getMethod)
+                } finally {
+                  zip close ()
+                }
+              } finally {
+                zip2 close ()
               }
+            } finally {
+              patched delete ()
+              deltaZip delete ()
             }
+          }
+        } finally {
+          archive2 delete ()
+          archive1 delete ()
+        }
+      }
+    }
 
-            ZipSources execute new ComputeReferenceAndDiffTask on testJar2
+    "applying a ZIP patch file to an input archive with tampered entry contents but genuine CRC-32 values" should {
+      "detect the tampered entry only if verifying the raw contents" in {
+        def zip(content: String, crc: Long, method: Int) = {
+          val file = tempFile()
+          val data = content getBytes "UTF-8"
+          val raw = if (ZipEntry.DEFLATED == method) {
+            val deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true)
+            deflater setInput data
+            deflater finish ()
+            val buf = new Array[Byte](1024)
+            val length = deflater deflate buf
+            deflater end ()
+            buf take length
+          } else {
+            data
+          }
+          val writer = new ZipWriter(new FileOutputStream(file))
+          try {
+            val entry = writer entry "entry"
+            entry setMethod method
+            entry setSize data.length
+            entry setCompressedSize raw.length
+            entry setCrc crc
+            val out = writer rawStream entry
+            try {
+              out write raw
+            } finally {
+              out close ()
+            }
+          } finally {
+            writer close ()
+          }
+          file
+        }
+        def crc(content: String) = {
+          val crc = new CRC32
+          crc update (content getBytes "UTF-8")
+          crc.getValue
+        }
+
+        for (method <- List(ZipEntry.STORED, ZipEntry.DEFLATED)) {
+          val genuine = zip("Hello world!", crc("Hello world!"), method)
+          val tampered = zip("Hello w0rld!", crc("Hello world!"), method)
+          val deltaZip = tempFile()
+          val patched = tempFile()
+          try {
+            ZipDiff.builder.input1(genuine).input2(genuine)
+              .binaryModel(true).build.output(deltaZip)
+            ZipPatch.builder.input(genuine).delta(deltaZip)
+              .verifyRawContents(true).build.output(patched)
+            // By default, a raw copy relies on the CRC-32 value and the
+            // compressed size.
+            ZipPatch.builder.input(tampered).delta(deltaZip).build
+              .output(patched)
+            intercept[WrongInputZipFile] {
+              ZipPatch.builder.input(tampered).delta(deltaZip)
+                .verifyRawContents(true).build.output(patched)
+            }
           } finally {
             patched delete ()
+            deltaZip delete ()
+            tampered delete ()
+            genuine delete ()
+          }
+        }
+      }
+    }
+
+    "applying a ZIP patch file to an input archive with an additional file entry" should {
+      "fail unless the fingerprint check is disabled" in {
+        val extended = tempFile()
+        try {
+          val writer = new ZipWriter(new FileOutputStream(extended))
+          try {
+            class CopyTask extends ZipInputTask[Unit, IOException] {
+              override def execute(input: ZipInput) {
+                for (entry <- input.iterator.asScala) {
+                  val out = writer stream new ZipEntry(entry.getName)
+                  try {
+                    val in = input stream entry
+                    try {
+                      val buf = new Array[Byte](8 * 1024)
+                      Iterator continually (in read buf) takeWhile (-1 !=) foreach
+                        (out write (buf, 0, _))
+                    } finally {
+                      in close ()
+                    }
+                  } finally {
+                    out close ()
+                  }
+                }
+              }
+            }
+            ZipSources execute new CopyTask on testJar1
+            val out = writer stream (writer entry "extra.txt")
+            try {
+              out write 42
+            } finally {
+              out close ()
+            }
+          } finally {
+            writer close ()
+          }
+          for (binaryModel <- List(false, true)) {
+            val deltaZip = tempFile()
+            val patched = tempFile()
+            try {
+              ZipDiff.builder.input1(testJar1).input2(testJar2)
+                .binaryModel(binaryModel).build.output(deltaZip)
+              intercept[WrongInputZipFile] {
+                ZipPatch.builder.input(extended).delta(deltaZip).build
+                  .output(patched)
+              }
+              ZipPatch.builder.input(extended).delta(deltaZip)
+                .checkFingerprint(false).build.output(patched)
+              // The additional file entry gets dropped.
+              def names(file: File) = {
+                class NamesTask extends ZipInputTask[List[String], Exception] {
+                  override def execute(input: ZipInput) =
+                    fileEntryNames(input).sorted
+                }
+                ZipSources execute new NamesTask on file
+              }
+              names(patched) should equal (names(testJar2))
+            } finally {
+              patched delete ()
+              deltaZip delete ()
+            }
           }
         } finally {
-          deltaZip delete ()
+          extended delete ()
+        }
+      }
+    }
+
+    "generating and applying the ZIP patch file to the second test JAR file" should {
+      "fail fast without creating the output file" in {
+        for (binaryModel <- List(false, true)) {
+          val deltaZip = tempFile()
+          try {
+            val patched = tempFile()
+            patched delete ()
+            ZipDiff.builder.input1(testJar1).input2(testJar2)
+              .binaryModel(binaryModel).build.output(deltaZip)
+            intercept[WrongInputZipFile] {
+              ZipPatch.builder.input(testJar2).delta(deltaZip).build
+                .output(patched)
+            }
+            patched.exists should be (false)
+          } finally {
+            deltaZip delete ()
+          }
         }
       }
     }
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.core.it
+
+import java.io._
+import java.util.zip._
+import org.junit.runner.RunWith
+import org.scalatest.WordSpec
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers._
+import scala.collection.JavaConverters._
+import net.java.trueupdate.core.zip.io._
+
+/**
+ * @author Christian Schlichtherle
+ */
+@RunWith(classOf[JUnitRunner])
+class ZipWriterIT extends WordSpec {
+
+  val utf8 = "UTF-8"
+
+  def tempFile() = File.createTempFile("tmp", null)
+
+  def loanTempFile[A](fun: File => A) = {
+    val file = tempFile()
+    try {
+      fun(file)
+    } finally {
+      file delete ()
+    }
+  }
+
+  def write(file: File, writer: OutputStream => ZipWriter = new ZipWriter(_))
+           (fun: ZipWriter => Unit) {
+    val zip = writer(new FileOutputStream(file))
+    try {
+      fun(zip)
+    } finally {
+      zip close ()
+    }
+  }
+
+  def put(zip: ZipOutput, entry: ZipEntry, data: Array[Byte]) {
+    val out = zip stream entry
+    try {
+      out write data
+    } finally {
+      out close ()
+    }
+  }
+
+  def stored(name: String, data: Array[Byte]) = {
+    val entry = new ZipEntry(name)
+    entry setMethod ZipEntry.STORED
+    entry setSize data.length
+    val crc = new CRC32
+    crc update data
+    entry setCrc crc.getValue
+    entry
+  }
+
+  def read(zip: ZipFile, name: String) = {
+    val entry = zip getEntry name
+    entry should not be (null)
+    val in = zip getInputStream entry
+    try {
+      val out = new ByteArrayOutputStream
+      val buf = new Array[Byte](8 * 1024)
+      Iterator continually (in read buf) takeWhile (-1 !=) foreach
+        (out write (buf, 0, _))
+      out.toByteArray
+    } finally {
+      in close ()
+    }
+  }
+
+  def loanZipFile[A](file: File)(fun: ZipFile => A) = {
+    val zip = new ZipFile(file)
+    try {
+      fun(zip)
+    } finally {
+      zip close ()
+    }
+  }
+
+  val hello = "Hello world!" getBytes utf8
+  val lorem = ("Lorem ipsum dolor sit amet. " * 1000) getBytes utf8
+
+  "A ZIP writer" when {
+    "writing STORED and DEFLATED entries" should {
+      "produce a ZIP file which can get read by the ZipFile class" in {
+        loanTempFile { file =>
+          write(file) { zip =>
+            put(zip, stored("stored", hello), hello)
+            put(zip, zip entry "deflated", lorem)
+          }
+          loanZipFile(file) { zip =>
+            (zip getEntry "stored").getMethod should be (ZipEntry.STORED)
+            (zip getEntry "deflated").getMethod should be (ZipEntry.DEFLATED)
+            (zip getEntry "deflated").getCompressedSize should
+              be < (lorem.length.toLong)
+            read(zip, "stored") should equal (hello)
+            read(zip, "deflated") should equal (lorem)
+          }
+        }
+      }
+
+      "write zero sizes to the local file header of a DEFLATED entry" in {
+        loanTempFile { file =>
+          write(file) { zip => put(zip, zip entry "deflated", lorem) }
+          val in = new DataInputStream(new FileInputStream(file))
+          try {
+            val header = new Array[Byte](30)
+            in readFully header
+            // general purpose flags, bit 3: data descriptor
+            (header(6) & 8) should be (8)
+            // CRC-32 value, compressed size and size
+            header.slice(14, 26) forall (0 ==) should be (true)
+          } finally {
+            in close ()
+          }
+          val in2 = new ZipInputStream(new FileInputStream(file))
+          try {
+            in2.getNextEntry.getName should equal ("deflated")
+          } finally {
+            in2 close ()
+          }
+        }
+      }
+    }
+
+    "writing an entry with a non-ASCII name and a comment" should {
+      "encode them in UTF-8" in {
+        val name = "\u00e4\u00f6\u00fc\u20ac"
+        val comment = "\u00df comment"
+        loanTempFile { file =>
+          write(file) { zip =>
+            val entry = zip entry name
+            entry setComment comment
+            put(zip, entry, hello)
+          }
+          loanZipFile(file) { zip =>
+            val entry = zip getEntry name
+            entry should not be (null)
+            entry.getComment should equal (comment)
+            read(zip, name) should equal (hello)
+          }
+        }
+      }
+    }
+
+    "writing a duplicate entry" should {
+      "fail" in {
+        loanTempFile { file =>
+          write(file) { zip =>
+            put(zip, zip entry "entry", hello)
+            intercept[ZipException] {
+              put(zip, zip entry "entry", hello)
+            }
+          }
+          loanZipFile(file) { zip =>
+            zip.size should be (1)
+            read(zip, "entry") should equal (hello)
+          }
+        }
+      }
+    }
+
+    "writing more than 65535 entries" should {
+      "use the ZIP64 end of central directory record" in {
+        val count = 70000
+        loanTempFile { file =>
+          write(file) { zip =>
+            for (i <- 0 until count) put(zip, stored("entry" + i, hello), hello)
+          }
+          loanZipFile(file) { zip =>
+            zip.size should be (count)
+            read(zip, "entry" + (count - 1)) should equal (hello)
+          }
+        }
+      }
+    }
+
+    "copying raw entries from a ZIP file" should {
+      "reproduce the entries without recompressing them" in {
+        loanTempFile { file1 =>
+          write(file1) { zip =>
+            put(zip, stored("stored", hello), hello)
+            put(zip, zip entry "deflated", lorem)
+            val entry = zip entry "\u00e4\u00f6\u00fc"
+            entry setComment "comment"
+            put(zip, entry, lorem)
+          }
+          loanTempFile { file2 =>
+            val input = new ZipFileAdapter(new ZipFile(file1))
+            try {
+              write(file2) { output =>
+                for (entry <- input.iterator.asScala) {
+                  val out = output rawStream new ZipEntry(entry)
+                  try {
+                    val in = input rawStream entry
+                    try {
+                      val buf = new Array[Byte](8 * 1024)
+                      Iterator continually (in read buf) takeWhile (-1 !=) foreach
+                        (out write (buf, 0, _))
+                    } finally {
+                      in close ()
+                    }
+                  } finally {
+                    out close ()
+                  }
+                }
+              }
+            } finally {
+              input close ()
+            }
+            loanZipFile(file2) { zip =>
+              zip.size should be (3)
+              for (entry <- zip.entries.asScala) {
+                val original = loanZipFile(file1)(_ getEntry entry.getName)
+                entry.getMethod should be (original.getMethod)
+                entry.getCompressedSize should be (original.getCompressedSize)
+                entry.getComment should equal (original.getComment)
+              }
+              read(zip, "stored") should equal (hello)
+              read(zip, "deflated") should equal (lorem)
+              read(zip, "\u00e4\u00f6\u00fc") should equal (lorem)
+            }
+          }
+        }
+      }
+    }
+  }
+
+  "A JAR writer" should {
+    "add the JAR magic extra field to the first entry only" in {
+      loanTempFile { file =>
+        write(file, new JarWriter(_)) { zip =>
+          put(zip, zip entry "META-INF/MANIFEST.MF", hello)
+          put(zip, zip entry "entry", hello)
+        }
+        loanZipFile(file) { zip =>
+          (zip getEntry "META-INF/MANIFEST.MF").getExtra should
+            equal (Array[Byte](0xfe.toByte, 0xca.toByte, 0, 0))
+          (zip getEntry "entry").getExtra should be (null)
+        }
+      }
+    }
+  }
+}
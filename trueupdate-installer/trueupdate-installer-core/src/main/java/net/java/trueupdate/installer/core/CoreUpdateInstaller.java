@@ -55,6 +55,7 @@ public abstract class CoreUpdateInstaller implements UpdateInstaller {
                         .builder()
                         .input(currentZip)
                         .delta(uc.deltaZip())
+                        .parallelism(Runtime.getRuntime().availableProcessors())
                         .build();
             }
 
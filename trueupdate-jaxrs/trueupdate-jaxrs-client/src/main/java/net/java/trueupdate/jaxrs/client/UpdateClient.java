@@ -5,20 +5,25 @@
 package net.java.trueupdate.jaxrs.client;
 
 import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientHandlerException;
 import com.sun.jersey.api.client.ClientResponse;
-import com.sun.jersey.api.client.ClientResponse.Status;
 import com.sun.jersey.api.client.UniformInterfaceException;
 import com.sun.jersey.api.client.WebResource;
 import net.java.trueupdate.artifact.spec.ArtifactDescriptor;
+import net.java.trueupdate.core.io.Copy;
+import net.java.trueupdate.core.io.Sink;
 import net.java.trueupdate.core.io.Source;
 import net.java.trueupdate.jaxrs.util.UpdateServiceException;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nullable;
-import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
 import javax.ws.rs.core.MediaType;
-import java.io.IOException;
-import java.io.InputStream;
+import javax.ws.rs.core.MultivaluedMap;
+import java.io.*;
 import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import static java.util.Objects.requireNonNull;
 import static javax.ws.rs.core.MediaType.APPLICATION_OCTET_STREAM_TYPE;
@@ -30,12 +35,38 @@ import static net.java.trueupdate.jaxrs.client.ArtifactDescriptors.queryParamete
  *
  * @author Christian Schlichtherle
  */
-@Immutable
+@ThreadSafe
 public final class UpdateClient {
 
+    private static final String RANGE = "Range", IF_RANGE = "If-Range",
+            ACCEPT_RANGES = "Accept-Ranges", CONTENT_RANGE = "Content-Range",
+            ETAG = "ETag", BYTES = "bytes";
+
+    private static final String IF_NONE_MATCH = "If-None-Match";
+
+    private static final int OK = 200, PARTIAL_CONTENT = 206,
+            NOT_MODIFIED = 304, REQUESTED_RANGE_NOT_SATISFIABLE = 416;
+
+    /**
+     * The maximum number of consecutive attempts to download a delta ZIP file
+     * which make no progress.
+     */
+    private static final int MAX_FAILURES = 3;
+
+    /**
+     * The time to wait before the first retry of a failed attempt to download
+     * a delta ZIP file in milliseconds.
+     * This gets doubled for each subsequent failure.
+     */
+    static final long INITIAL_BACKOFF_MILLIS = 500;
+
     private final URI uri;
     private final Client client;
 
+    /** Maps artifact descriptors and media types to validated versions. */
+    private final ConcurrentMap<String, Validated>
+            validated = new ConcurrentHashMap<>();
+
     /**
      * Constructs an update client.
      *
@@ -72,13 +103,40 @@ public final class UpdateClient {
         return version(descriptor, null);
     }
 
-    public String version(ArtifactDescriptor descriptor,
-                          @Nullable MediaType mediaType)
+    /**
+     * Returns the update version for the described artifact in the given
+     * media type.
+     * The entity tag of the response gets kept in a validator cache, so that
+     * subsequent calls for the same artifact and media type make conditional
+     * requests and the web service can respond without a body as long as the
+     * update version doesn't change.
+     *
+     * @param descriptor the artifact descriptor.
+     * @param mediaType the media type or {@code null} for plain text.
+     * @return the update version for the described artifact.
+     * @throws IOException on any I/O error, e.g. if the web service is not
+     *         available.
+     */
+    public String version(final ArtifactDescriptor descriptor,
+                          final @Nullable MediaType mediaType)
     throws IOException {
-        return get(path("artifact/version")
+        final MediaType mt = null != mediaType ? mediaType : TEXT_PLAIN_TYPE;
+        final String key = descriptor + " " + mt;
+        final Validated cached = validated.get(key);
+        WebResource.Builder builder = path("artifact/version")
                 .queryParams(queryParameters(descriptor))
-                .accept(null != mediaType ? mediaType : TEXT_PLAIN_TYPE)
-        ).getEntity(String.class);
+                .accept(mt);
+        if (null != cached) builder = builder.header(IF_NONE_MATCH, cached.tag);
+        final ClientResponse response = builder.get(ClientResponse.class);
+        if (null != cached && NOT_MODIFIED == response.getStatus()) {
+            response.close();
+            return cached.value;
+        }
+        final String value = checked(response).getEntity(String.class);
+        final String tag = response.getHeaders().getFirst(ETAG);
+        if (null != tag) validated.put(key, new Validated(tag, value));
+        else if (null != cached) validated.remove(key);
+        return value;
     }
 
     /**
@@ -96,15 +154,125 @@ public final class UpdateClient {
                        final String updateVersion) {
         return new Source() {
             @Override public InputStream input() throws IOException {
-                return get(path("artifact/diff")
-                        .queryParams(queryParameters(descriptor))
-                        .queryParam("update-version", updateVersion)
-                        .accept(APPLICATION_OCTET_STREAM_TYPE)
-                ).getEntityInputStream();
+                return get(diff(descriptor, updateVersion, 0, null))
+                        .getEntityInputStream();
             }
         };
     }
 
+    /**
+     * Downloads the delta ZIP file for the described artifact and its update
+     * version to the given file.
+     * If the transfer fails and the web service supports range requests for
+     * the delta ZIP file, then the download gets resumed at the current
+     * length of the file instead of starting over.
+     * The range requests are conditional on the entity tag of the first
+     * response, so that the file never mixes different contents.
+     * If the web service is not reachable, then the request gets retried.
+     * Before each retry, this method waits for an exponentially growing
+     * period of time.
+     *
+     * @param descriptor the artifact descriptor.
+     * @param updateVersion the update version.
+     * @param file the file to write the delta ZIP file to.
+     *        Any existing contents get overwritten.
+     * @throws IOException on any I/O error, e.g. if the web service is not
+     *         available or the download failed repeatedly without making
+     *         progress.
+     */
+    public void download(final ArtifactDescriptor descriptor,
+                         final String updateVersion,
+                         final File file)
+    throws IOException {
+        @CheckForNull String tag = null;
+        for (int failures = 0; ; ) {
+            if (0 < failures) backoff(failures);
+            final long offset = null == tag ? 0 : file.length();
+            final ClientResponse response;
+            try {
+                response = diff(descriptor, updateVersion, offset, tag)
+                        .get(ClientResponse.class);
+            } catch (ClientHandlerException ex) {
+                // E.g. the connection got refused or reset.
+                if (MAX_FAILURES <= ++failures) throw new IOException(ex);
+                continue;
+            }
+            final int status = response.getStatus();
+            if (REQUESTED_RANGE_NOT_SATISFIABLE == status && 0 < offset) {
+                // The file is longer than the delta ZIP file, so start over.
+                if (MAX_FAILURES <= ++failures) checked(response);
+                response.close();
+                tag = null;
+                continue;
+            }
+            final boolean partial = PARTIAL_CONTENT == status
+                    && 0 < offset && startsAt(response, offset);
+            if (!partial) checked(response);
+            final MultivaluedMap<String, String>
+                    headers = response.getHeaders();
+            tag = BYTES.equals(headers.getFirst(ACCEPT_RANGES))
+                    ? headers.getFirst(ETAG)
+                    : null;
+            final long start = partial ? offset : 0;
+            try {
+                Copy.copy(
+                        new Source() {
+                            @Override public InputStream input() {
+                                return response.getEntityInputStream();
+                            }
+                        },
+                        new Sink() {
+                            @Override public OutputStream output()
+                            throws IOException {
+                                return new FileOutputStream(file, partial);
+                            }
+                        });
+                return;
+            } catch (IOException ex) {
+                if (file.length() > start) failures = 0;
+                if (null == tag || MAX_FAILURES <= ++failures) throw ex;
+            }
+        }
+    }
+
+    /**
+     * Waits before the next attempt to download a delta ZIP file after the
+     * given number of consecutive failures.
+     */
+    private static void backoff(final int failures)
+    throws InterruptedIOException {
+        try {
+            Thread.sleep(INITIAL_BACKOFF_MILLIS << (failures - 1));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw (InterruptedIOException)
+                    new InterruptedIOException().initCause(ex);
+        }
+    }
+
+    private WebResource.Builder diff(
+            final ArtifactDescriptor descriptor,
+            final String updateVersion,
+            final long offset,
+            final @CheckForNull String tag) {
+        final WebResource.Builder builder = path("artifact/diff")
+                .queryParams(queryParameters(descriptor))
+                .queryParam("update-version", updateVersion)
+                .accept(APPLICATION_OCTET_STREAM_TYPE);
+        return 0 < offset && null != tag
+                ? builder.header(RANGE, BYTES + '=' + offset + '-')
+                         .header(IF_RANGE, tag)
+                : builder;
+    }
+
+    private static boolean startsAt(
+            final ClientResponse response,
+            final long offset) {
+        final String range = response.getHeaders().getFirst(CONTENT_RANGE);
+        return null != range
+                && range.startsWith(BYTES + ' ' + offset + '-');
+    }
+
     private WebResource path(String path) { return resource().path(path); }
 
     private WebResource resource() { return client.resource(uri()); }
@@ -116,10 +284,21 @@ public final class UpdateClient {
 
     private static ClientResponse checked(final ClientResponse response)
     throws UpdateServiceException {
-        final Status status = response.getClientResponseStatus();
-        if (status != Status.OK)
-            throw new UpdateServiceException(status.getStatusCode(),
+        final int status = response.getStatus();
+        if (OK != status)
+            throw new UpdateServiceException(status,
                     new UniformInterfaceException(response));
         return response;
     }
+
+    /** An update version and its entity tag. */
+    private static final class Validated {
+
+        final String tag, value;
+
+        Validated(final String tag, final String value) {
+            this.tag = tag;
+            this.value = value;
+        }
+    } // Validated
 }
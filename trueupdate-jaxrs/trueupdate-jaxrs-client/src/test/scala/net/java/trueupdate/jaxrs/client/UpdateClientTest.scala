@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.jaxrs.client
+
+import com.sun.jersey.api.client._
+import com.sun.jersey.core.header.InBoundHeaders
+import java.io._
+import java.net.URI
+import net.java.trueupdate.artifact.spec.ArtifactDescriptor
+import org.junit.runner.RunWith
+import org.scalatest.WordSpec
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers._
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * @author Christian Schlichtherle
+ */
+@RunWith(classOf[JUnitRunner])
+class UpdateClientTest extends WordSpec {
+
+  val descriptor = ArtifactDescriptor
+    .builder
+    .groupId("net.java.trueupdate")
+    .artifactId("trueupdate-core")
+    .version("1")
+    .build
+
+  val data1 = Array.tabulate[Byte](1000)(_.toByte)
+  val data2 = Array.tabulate[Byte](800)(i => (i * 7).toByte)
+
+  /**
+   * A fake web service which responds to the n-th request by calling the
+   * n-th function.
+   */
+  class FakeService(responses: (ClientRequest => ClientResponse)*)
+  extends ClientHandler {
+    val requests = new ArrayBuffer[ClientRequest]
+
+    override def handle(request: ClientRequest) = {
+      requests += request
+      responses(requests.size - 1)(request)
+    }
+  }
+
+  def header(request: ClientRequest, name: String) =
+    Option(request.getHeaders getFirst name) map (_.toString)
+
+  def response(status: Int, body: InputStream, headers: (String, String)*) = {
+    val map = new InBoundHeaders
+    for ((name, value) <- headers) map add (name, value)
+    new ClientResponse(status, map, body, null)
+  }
+
+  /** Returns an input stream which fails after reading the given data. */
+  def broken(data: Array[Byte]) = new InputStream {
+    var position = 0
+
+    override def read() = {
+      if (position >= data.length) throw new IOException("Connection reset!")
+      position += 1
+      data(position - 1) & 0xff
+    }
+  }
+
+  def ok(data: InputStream, tag: String) =
+    response(200, data, "ETag" -> tag, "Accept-Ranges" -> "bytes")
+
+  def ok(data: Array[Byte], tag: String): ClientResponse =
+    ok(new ByteArrayInputStream(data), tag)
+
+  def empty = new ByteArrayInputStream(new Array[Byte](0))
+
+  def download(service: FakeService) = {
+    val client = new UpdateClient(new URI("http://localhost/"),
+      new Client(service))
+    val file = File createTempFile ("delta", ".zip")
+    try {
+      client download (descriptor, "2", file)
+      val in = new DataInputStream(new FileInputStream(file))
+      try {
+        val data = new Array[Byte](file.length.toInt)
+        in readFully data
+        data
+      } finally {
+        in close ()
+      }
+    } finally {
+      file delete ()
+    }
+  }
+
+  "An update client" when {
+    "downloading a delta ZIP file" should {
+      "resume an interrupted download with a conditional range request" in {
+        val service = new FakeService(
+          _ => ok(broken(data1 take 400), "\"1\""),
+          request => {
+            header(request, "Range") should equal (Some("bytes=400-"))
+            header(request, "If-Range") should equal (Some("\"1\""))
+            response(206, new ByteArrayInputStream(data1 drop 400),
+              "ETag" -> "\"1\"", "Accept-Ranges" -> "bytes",
+              "Content-Range" -> "bytes 400-999/1000")
+          })
+        download(service) should equal (data1)
+        service.requests should have size (2)
+      }
+
+      "start over if the delta ZIP file has changed meanwhile" in {
+        val service = new FakeService(
+          _ => ok(broken(data1 take 400), "\"1\""),
+          request => {
+            header(request, "If-Range") should equal (Some("\"1\""))
+            // The entity tag doesn't match anymore, so the service ignores
+            // the range.
+            ok(data2, "\"2\"")
+          })
+        download(service) should equal (data2)
+        service.requests should have size (2)
+      }
+
+      "start over if the requested range is not satisfiable" in {
+        val service = new FakeService(
+          _ => ok(broken(data1 take 400), "\"1\""),
+          request => {
+            header(request, "Range") should equal (Some("bytes=400-"))
+            response(416, empty, "Content-Range" -> "bytes */300")
+          },
+          request => {
+            header(request, "Range") should equal (None)
+            header(request, "If-Range") should equal (None)
+            ok(data2, "\"2\"")
+          })
+        download(service) should equal (data2)
+        service.requests should have size (3)
+      }
+
+      "retry after the web service was not reachable" in {
+        val service = new FakeService(
+          _ => throw new ClientHandlerException(
+            new IOException("Connection refused!")),
+          _ => ok(data1, "\"1\""))
+        download(service) should equal (data1)
+        service.requests should have size (2)
+      }
+
+      "give up after the web service was repeatedly not reachable" in {
+        val refused: ClientRequest => ClientResponse =
+          _ => throw new ClientHandlerException(
+            new IOException("Connection refused!"))
+        val service = new FakeService(refused, refused, refused)
+        val start = System.currentTimeMillis
+        intercept[IOException] { download(service) }
+        service.requests should have size (3)
+        // The client has backed off before each retry.
+        System.currentTimeMillis - start should be >=
+          (3 * UpdateClient.INITIAL_BACKOFF_MILLIS)
+      }
+
+      "not retry an interrupted download if the web service doesn't support ranges" in {
+        val service = new FakeService(
+          _ => response(200, broken(data1 take 400), "ETag" -> "\"1\""))
+        intercept[IOException] { download(service) }
+        service.requests should have size (1)
+      }
+    }
+  }
+}
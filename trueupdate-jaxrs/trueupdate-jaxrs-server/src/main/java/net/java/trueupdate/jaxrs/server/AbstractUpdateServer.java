@@ -5,6 +5,7 @@
 package net.java.trueupdate.jaxrs.server;
 
 import java.util.concurrent.Callable;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
 import javax.ws.rs.*;
 import net.java.trueupdate.artifact.spec.*;
@@ -22,6 +23,37 @@ public abstract class AbstractUpdateServer {
     /** Returns the artifact resolver. */
     protected abstract ArtifactResolver artifactResolver();
 
+    /**
+     * Returns the cache for delta ZIP files or {@code null} if delta ZIP
+     * files shall not get cached.
+     * The implementation in the class {@link AbstractUpdateServer} returns
+     * {@code null}.
+     * If this method returns a delta cache, then it should return the same
+     * instance on each call.
+     */
+    protected @Nullable DeltaCache deltaCache() { return null; }
+
+    /**
+     * Returns the precomputer for delta ZIP files or {@code null} if delta
+     * ZIP files shall not get precomputed.
+     * The implementation in the class {@link AbstractUpdateServer} returns
+     * {@code null}.
+     * A delta precomputer is only effective in combination with a
+     * {@linkplain #deltaCache() delta cache}, and it should use the same
+     * delta cache.
+     */
+    protected @Nullable DeltaPrecomputer deltaPrecomputer() { return null; }
+
+    /**
+     * Returns the cache for update versions or {@code null} if update
+     * versions shall get resolved for each request.
+     * The implementation in the class {@link AbstractUpdateServer} returns
+     * {@code null}.
+     * If this method returns a version cache, then it should return the same
+     * instance on each call.
+     */
+    protected @Nullable VersionCache versionCache() { return null; }
+
     /** Returns a configured update server. */
     @Path("artifact")
     public ConfiguredUpdateServer artifact(
@@ -43,7 +75,10 @@ public abstract class AbstractUpdateServer {
                                 .version(version)
                                 .classifier(classifier)
                                 .packaging(packaging)
-                                .build());
+                                .build(),
+                        deltaCache(),
+                        deltaPrecomputer(),
+                        versionCache());
             }
         });
     }
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.jaxrs.server;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A single byte range of an entity with a known length as specified by the
+ * value of a HTTP {@code Range} request header.
+ *
+ * @see    <a href="http://tools.ietf.org/html/rfc2616#section-14.35">RFC 2616, section 14.35</a>
+ * @author Christian Schlichtherle
+ */
+@Immutable
+final class ByteRange {
+
+    private static final String BYTES = "bytes=";
+
+    /** The offset of the first byte and the last byte in the range. */
+    final long first, last;
+
+    /** The length of the entity. */
+    final long length;
+
+    private ByteRange(final long first, final long last, final long length) {
+        this.first = first;
+        this.last = last;
+        this.length = length;
+    }
+
+    /**
+     * Parses the given value of a HTTP {@code Range} request header for an
+     * entity with the given length.
+     * The last byte gets truncated to the length of the entity.
+     *
+     * @param value the value of the {@code Range} header.
+     * @param length the length of the entity.
+     * @return the parsed byte range or {@code null} if the value is not a
+     *         syntactically valid single byte range, in which case the
+     *         header should get ignored.
+     */
+    static @CheckForNull ByteRange parse(
+            final String value,
+            final long length) {
+        if (!value.startsWith(BYTES)) return null;
+        final String spec = value.substring(BYTES.length()).trim();
+        final int dash = spec.indexOf('-');
+        if (0 > dash || 0 <= spec.indexOf(',')) return null;
+        try {
+            final String start = spec.substring(0, dash).trim();
+            final String end = spec.substring(dash + 1).trim();
+            if (start.isEmpty()) {
+                // Suffix byte range, e.g. "bytes=-500".
+                final long suffix = Long.parseLong(end);
+                if (0 > suffix) return null;
+                return new ByteRange(Math.max(0, length - suffix),
+                                     length - 1, length);
+            }
+            final long first = Long.parseLong(start);
+            final long last = end.isEmpty()
+                    ? length - 1
+                    : Math.min(Long.parseLong(end), length - 1);
+            if (0 > first || !end.isEmpty() && Long.parseLong(end) < first)
+                return null;
+            return new ByteRange(first, last, length);
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns {@code true} if and only if this byte range overlaps with the
+     * entity.
+     * Otherwise, the server should respond with the status code 416.
+     */
+    boolean satisfiable() { return first <= last; }
+
+    /** Returns the number of bytes in this range. */
+    long count() { return last - first + 1; }
+
+    /**
+     * Returns the value of the HTTP {@code Content-Range} response header for
+     * this byte range.
+     */
+    String contentRange() {
+        return satisfiable()
+                ? "bytes " + first + '-' + last + '/' + length
+                : "bytes */" + length;
+    }
+}
@@ -5,17 +5,25 @@
 package net.java.trueupdate.jaxrs.server;
 
 import java.io.*;
+import java.nio.charset.Charset;
 import java.util.concurrent.Callable;
 import java.util.zip.ZipOutputStream;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import javax.annotation.WillClose;
 import javax.annotation.WillNotClose;
 import javax.annotation.concurrent.Immutable;
 import javax.ws.rs.*;
 import static javax.ws.rs.core.MediaType.*;
-import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.*;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.xml.bind.JAXBElement;
 import javax.xml.namespace.QName;
 import net.java.trueupdate.artifact.spec.ArtifactDescriptor;
 import net.java.trueupdate.artifact.spec.ArtifactResolver;
+import net.java.trueupdate.core.io.MessageDigests;
+import net.java.trueupdate.core.io.Store;
+import net.java.trueupdate.core.zip.io.MappedZipFileStore;
 import net.java.trueupdate.core.zip.io.ZipOutput;
 import net.java.trueupdate.core.zip.io.ZipOutputStreamAdapter;
 import net.java.trueupdate.core.zip.io.ZipSink;
@@ -36,39 +44,150 @@ public final class ConfiguredUpdateServer {
 
     private static final QName VERSION_NAME = new QName("version");
 
+    private static final String RANGE = "Range", IF_RANGE = "If-Range",
+            ACCEPT_RANGES = "Accept-Ranges", CONTENT_RANGE = "Content-Range",
+            BYTES = "bytes";
+
+    private static final int PARTIAL_CONTENT = 206,
+            REQUESTED_RANGE_NOT_SATISFIABLE = 416;
+
+    /**
+     * Clients may store the update version, but must revalidate it on each
+     * request.
+     */
+    private static final CacheControl VERSION_CACHE_CONTROL = cacheControl(-1);
+
+    /**
+     * Clients and proxies may store a delta ZIP file for one day.
+     * It must not get transformed because its contents are digested.
+     */
+    private static final CacheControl DIFF_CACHE_CONTROL = cacheControl(86400);
+
+    /** The name of the message digest algorithm for the delta ZIP files. */
+    static final String DIGEST = "SHA-1";
+
     private final ArtifactResolver resolver;
     private final ArtifactDescriptor currentDescriptor;
+    private final @CheckForNull DeltaCache cache;
+    private final @CheckForNull DeltaPrecomputer precomputer;
+    private final @CheckForNull VersionCache versions;
 
     ConfiguredUpdateServer(
             final ArtifactResolver resolver,
-            final ArtifactDescriptor currentDescriptor) {
+            final ArtifactDescriptor currentDescriptor,
+            final @Nullable DeltaCache cache,
+            final @Nullable DeltaPrecomputer precomputer,
+            final @Nullable VersionCache versions) {
         assert null != resolver;
         this.resolver = resolver;
         assert null != currentDescriptor;
         this.currentDescriptor = currentDescriptor;
+        this.cache = cache;
+        this.precomputer = precomputer;
+        this.versions = versions;
     }
 
+    /*
+     * The version resources have a strong entity tag, so that a client which
+     * polls for updates gets a 304 response without a body as long as the
+     * update version doesn't change.
+     * If a VersionCache is configured, then the update version doesn't get
+     * resolved again within its time to live, so that revalidating it is
+     * cheap for the server, too.
+     * Note that this is an incompatible API change: Up to version 0.8.1, the
+     * methods versionAsXml, versionAsJson and versionAsText had no
+     * parameters and returned the update version as a JAXBElement<String> or
+     * String.
+     * Now they take the request in order to evaluate its preconditions and
+     * return a Response.
+     * Subclasses of AbstractUpdateServer are not affected because they don't
+     * call these methods, but any other Java code which does needs to get
+     * adapted.
+     * The HTTP interface is compatible.
+     */
+
     @GET
     @Path("version")
     @Produces({ APPLICATION_XML, TEXT_XML })
-    public JAXBElement<String> versionAsXml() throws UpdateServiceException {
-        return new JAXBElement<String>(VERSION_NAME, String.class, versionAsText());
+    public Response versionAsXml(final @Context Request request)
+    throws UpdateServiceException {
+        final String version = updateVersion();
+        return version(request, "xml:" + version,
+                new GenericEntity<JAXBElement<String>>(
+                        new JAXBElement<String>(
+                                VERSION_NAME, String.class, version)) { });
     }
 
     @GET
     @Path("version")
     @Produces(APPLICATION_JSON)
-    public String versionAsJson() throws UpdateServiceException {
-        return '"' + versionAsText() + '"';
+    public Response versionAsJson(final @Context Request request)
+    throws UpdateServiceException {
+        final String version = updateVersion();
+        return version(request, "json:" + version, '"' + version + '"');
     }
 
     @GET
     @Path("version")
     @Produces(TEXT_PLAIN)
-    public String versionAsText() throws UpdateServiceException {
+    public Response versionAsText(final @Context Request request)
+    throws UpdateServiceException {
+        final String version = updateVersion();
+        return version(request, "text:" + version, version);
+    }
+
+    private static Response version(
+            final Request request,
+            final String representation,
+            final Object entity) {
+        final EntityTag tag = new EntityTag(tag(representation));
+        final ResponseBuilder rb = request.evaluatePreconditions(tag);
+        return (null != rb ? rb : Response.ok(entity))
+                .tag(tag)
+                .cacheControl(VERSION_CACHE_CONTROL)
+                .build();
+    }
+
+    private static String tag(final String representation) {
+        return MessageDigests.valueOf(MessageDigests.sha1().digest(
+                representation.getBytes(Charset.forName("UTF-8"))));
+    }
+
+    /**
+     * Returns a new cache control with the given maximum age in seconds or
+     * {@code no-cache} if it's negative.
+     * In any case, the cache control has the {@code no-transform} directive.
+     */
+    private static CacheControl cacheControl(final int maxAge) {
+        final CacheControl cc = new CacheControl();
+        cc.setNoTransform(true);
+        if (0 > maxAge) cc.setNoCache(true);
+        else cc.setMaxAge(maxAge);
+        return cc;
+    }
+
+    /**
+     * Returns the update version from the {@link VersionCache}, if any.
+     * Only if it needs to get resolved, the {@link DeltaPrecomputer}, if
+     * any, gets notified about the deployed version.
+     * This is sufficient because the precomputer remembers the deployed
+     * versions anyway.
+     */
+    String updateVersion() throws UpdateServiceException {
         return wrap(new Callable<String>() {
             @Override public String call() throws Exception {
-                return resolveUpdateVersion();
+                final Callable<String> resolve = new Callable<String>() {
+                    @Override public String call() throws Exception {
+                        final String updateVersion = resolveUpdateVersion();
+                        if (null != precomputer)
+                            precomputer.deployed(currentDescriptor,
+                                                 updateVersion);
+                        return updateVersion;
+                    }
+                };
+                return null == versions
+                        ? resolve.call()
+                        : versions.updateVersion(currentDescriptor, resolve);
             }
         });
     }
@@ -77,21 +196,82 @@ public final class ConfiguredUpdateServer {
         return resolver.resolveUpdateVersion(currentDescriptor);
     }
 
+    /**
+     * Returns the delta ZIP file for the update version.
+     * If a {@link DeltaCache} is configured and the delta ZIP file is cached
+     * already, then the response supports single byte range requests, so
+     * that clients can resume an interrupted download.
+     * The strong entity tag of the cached file can get used to make the
+     * range request conditional with an {@code If-Range} header or to
+     * revalidate a stored copy with an {@code If-None-Match} header.
+     * Otherwise, the delta ZIP file gets streamed while it gets computed and
+     * the response has a weak entity tag, which can only get used to
+     * revalidate a stored copy.
+     */
     @GET
     @Path("diff")
     @Produces(APPLICATION_OCTET_STREAM)
-    public StreamingOutput diff(
-            final @QueryParam("update-version") String updateVersion)
+    public Response diff(
+            final @Context Request request,
+            final @QueryParam("update-version") String updateVersion,
+            final @HeaderParam(RANGE) @Nullable String range,
+            final @HeaderParam(IF_RANGE) @Nullable String ifRange)
     throws UpdateServiceException {
-        return wrap(new Callable<StreamingOutput>() {
-            @Override public StreamingOutput call() throws Exception {
-                return diff(
-                        resolveArtifactFile(currentDescriptor),
-                        resolveArtifactFile(updateDescriptor(updateVersion)));
+        return wrap(new Callable<Response>() {
+            @Override public Response call() throws Exception {
+                if (null != cache) {
+                    final DeltaCache.CachedFile file =
+                            cache.open(currentDescriptor, updateVersion, DIGEST);
+                    if (null != file)
+                        return file(request, file, range, ifRange);
+                }
+                return delta(request, updateVersion);
             }
         });
     }
 
+    /**
+     * Returns a response for streaming the delta ZIP file to the given update
+     * version while it gets computed.
+     * If a {@link DeltaCache} is configured, then the delta ZIP file gets
+     * stored in the cache at the same time and concurrent requests for it
+     * get coalesced.
+     * The artifact files get resolved immediately, so that a failure results
+     * in an error status before the response gets committed.
+     * The delta ZIP file is not reproducible byte for byte, e.g. the time of
+     * its entries varies, and its digest is unknown until it's complete, so
+     * the response has a weak entity tag.
+     * It's computed from the paths, lengths and last modification times of
+     * the artifact files, so that a matching {@code If-None-Match} header
+     * results in the status code 304 without computing the delta ZIP file.
+     */
+    private Response delta(final Request request, final String updateVersion)
+    throws Exception {
+        final File input1 = resolveArtifactFile(currentDescriptor);
+        final File input2 = resolveArtifactFile(
+                updateDescriptor(updateVersion));
+        final EntityTag tag = new EntityTag(
+                tag("diff:" + file(input1) + '\0' + file(input2)), true);
+        final ResponseBuilder rb = request.evaluatePreconditions(tag);
+        if (null != rb)
+            return rb.tag(tag).cacheControl(DIFF_CACHE_CONTROL).build();
+        final StreamingOutput diff = diff(input1, input2,
+                null == cache ? null : cache.indexDirectory());
+        return Response
+                .ok(null == cache
+                        ? diff
+                        : cache.stream(currentDescriptor, updateVersion,
+                                       DIGEST, diff))
+                .tag(tag)
+                .cacheControl(DIFF_CACHE_CONTROL)
+                .build();
+    }
+
+    private static String file(File file) {
+        return file.getAbsolutePath() + '\0' + file.length() + '\0'
+                + file.lastModified();
+    }
+
     ArtifactDescriptor updateDescriptor(String updateVersion) {
         return currentDescriptor.version(updateVersion);
     }
@@ -100,7 +280,66 @@ public final class ConfiguredUpdateServer {
         return resolver.resolveArtifactFile(descriptor);
     }
 
-    static StreamingOutput diff(final File input1, final File input2) {
+    /**
+     * Returns a streaming output for the delta ZIP file from the artifact
+     * of the given descriptor to the given update version.
+     * Unlike {@link #delta(Request, String)}, the artifact files get
+     * resolved when the streaming output gets written, so that only the
+     * thread which computes a delta ZIP file for a {@link DeltaCache}
+     * resolves them.
+     * Any exception from the resolver gets wrapped in an I/O exception
+     * unless it's an I/O exception or a runtime exception already.
+     *
+     * @param indexDirectory the nullable directory for the digest indexes
+     *        of the artifact files.
+     */
+    static StreamingOutput delta(
+            final ArtifactResolver resolver,
+            final ArtifactDescriptor descriptor,
+            final String updateVersion,
+            final @Nullable File indexDirectory) {
+        return new StreamingOutput() {
+            @Override public void write(final @WillNotClose OutputStream out)
+            throws IOException {
+                final File input1, input2;
+                try {
+                    input1 = resolver.resolveArtifactFile(descriptor);
+                    input2 = resolver.resolveArtifactFile(
+                            descriptor.version(updateVersion));
+                } catch (IOException | RuntimeException ex) {
+                    throw ex;
+                } catch (Exception ex) {
+                    throw new IOException(ex);
+                }
+                diff(input1, input2, indexDirectory).write(out);
+            }
+        };
+    }
+
+    /**
+     * Returns a streaming output for the delta ZIP file of the given input
+     * archives.
+     * The changed and added entries get written while the comparison is
+     * still running, so that the time to the first byte doesn't grow with the
+     * size of the input archives.
+     * Consequently, the delta model is the last entry of the delta ZIP file.
+     * If an index directory is given, then the message digests of the
+     * entries are kept in a digest index for each artifact file in this
+     * directory, so that repeated diffs of a release artifact do not need to
+     * digest its entries again.
+     * Otherwise, no digest index is used at all because the index files must
+     * not get written next to the artifact files:
+     * The artifact repository is not owned by the server, e.g. it may be the
+     * local Maven repository.
+     * The input archives get mapped into memory, which makes reading their
+     * entries cheaper.
+     * This is fine because artifact files in a repository are only ever
+     * read, not deleted or overwritten by the server.
+     */
+    static StreamingOutput diff(
+            final File input1,
+            final File input2,
+            final @Nullable File indexDirectory) {
         return new StreamingOutput() {
             @Override public void write(final @WillNotClose OutputStream out)
             throws IOException {
@@ -116,11 +355,101 @@ public final class ConfiguredUpdateServer {
                 } // DiffSink
 
                 ZipDiff .builder()
-                        .input1(input1)
-                        .input2(input2)
+                        .input1(new MappedZipFileStore(input1))
+                        .input2(new MappedZipFileStore(input2))
+                        .digest(DIGEST)
+                        .streaming(true)
+                        .indexDirectory(indexDirectory)
                         .build()
                         .output(new DiffSink());
             }
         };
     }
+
+    /**
+     * Returns a response for the given delta ZIP file from a
+     * {@link DeltaCache}.
+     * If the given range is a single byte range and the given if-range is
+     * {@code null} or matches the entity tag of the file, then the response
+     * contains the requested range only.
+     * If the request has a matching {@code If-None-Match} header, then the
+     * response has the status code 304 and no body.
+     * The file gets closed when the response body has been written or
+     * immediately if the response has no body.
+     */
+    static Response file(
+            final Request request,
+            final @WillClose DeltaCache.CachedFile file,
+            final @CheckForNull String range,
+            final @CheckForNull String ifRange)
+    throws IOException {
+        boolean body = false;
+        try {
+            final EntityTag tag = new EntityTag(file.tag());
+            final ResponseBuilder rb = request.evaluatePreconditions(tag);
+            if (null != rb)
+                return rb.tag(tag).cacheControl(DIFF_CACHE_CONTROL).build();
+            final long length = file.length();
+            final ByteRange br = null == range
+                    || null != ifRange && !ifRange.equals(quoted(tag))
+                    ? null
+                    : ByteRange.parse(range, length);
+            if (null != br && !br.satisfiable())
+                return Response
+                        .status(REQUESTED_RANGE_NOT_SATISFIABLE)
+                        .header(CONTENT_RANGE, br.contentRange())
+                        .build();
+            final ResponseBuilder ok = null == br
+                    ? Response
+                        .ok(file(file, 0, length))
+                        .header(HttpHeaders.CONTENT_LENGTH, length)
+                    : Response
+                        .status(PARTIAL_CONTENT)
+                        .entity(file(file, br.first, br.count()))
+                        .header(HttpHeaders.CONTENT_LENGTH, br.count())
+                        .header(CONTENT_RANGE, br.contentRange());
+            final Response response = ok
+                    .tag(tag)
+                    .cacheControl(DIFF_CACHE_CONTROL)
+                    .header(ACCEPT_RANGES, BYTES)
+                    .build();
+            body = true;
+            return response;
+        } finally {
+            if (!body) file.close();
+        }
+    }
+
+    private static String quoted(EntityTag tag) {
+        return '"' + tag.getValue() + '"';
+    }
+
+    /**
+     * Returns a streaming output for the given number of bytes at the given
+     * offset of the given file.
+     * The file gets closed when the streaming output has been written.
+     */
+    static StreamingOutput file(
+            final @WillClose DeltaCache.CachedFile file,
+            final long offset,
+            final long count) {
+        return new StreamingOutput() {
+            @Override public void write(final @WillNotClose OutputStream out)
+            throws IOException {
+                try {
+                    final InputStream in = file.input(offset);
+                    final byte[] buf = new byte[Store.BUFSIZE];
+                    for (long remaining = count; 0 < remaining; ) {
+                        final int read = in.read(buf, 0,
+                                (int) Math.min(buf.length, remaining));
+                        if (0 > read) throw new EOFException();
+                        out.write(buf, 0, read);
+                        remaining -= read;
+                    }
+                } finally {
+                    file.close();
+                }
+            }
+        };
+    }
 }
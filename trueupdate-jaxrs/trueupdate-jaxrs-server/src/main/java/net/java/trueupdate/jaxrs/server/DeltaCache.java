@@ -0,0 +1,665 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.jaxrs.server;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.*;
+import javax.annotation.CheckForNull;
+import javax.annotation.WillCloseWhenClosed;
+import javax.annotation.WillNotClose;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.ws.rs.core.StreamingOutput;
+import net.java.trueupdate.artifact.spec.ArtifactDescriptor;
+import net.java.trueupdate.core.io.MessageDigests;
+import net.java.trueupdate.core.io.Store;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A disk-backed cache for delta ZIP files with a size-bounded, least
+ * recently used eviction policy.
+ * Each delta ZIP file is keyed by the group ID, artifact ID, classifier and
+ * packaging of the artifact, its current and update version and the name of
+ * the message digest algorithm.
+ * Delta ZIP files get written to a temporary file first and then renamed,
+ * so that a cached file is always complete.
+ * The name of a cached file includes the SHA-1 digest of its contents, which
+ * serves as a strong entity tag for the file, even if it gets evicted and
+ * computed again later.
+ * The access order survives a restart because the last modification time of
+ * a cached file gets updated on each hit.
+ * <p>
+ * Concurrent requests for the same delta ZIP file get coalesced:
+ * The first request computes it while any subsequent requests wait for the
+ * result, so that each distinct delta ZIP file gets computed at most once at
+ * a time.
+ * With {@link #stream}, the requests don't need to wait for the complete
+ * result:
+ * The first request gets the bytes while they get written to the temporary
+ * file and any subsequent requests read the temporary file as it grows.
+ * If the computation fails, then all waiting requests fail with the same
+ * exception and the next request starts over.
+ * <p>
+ * A cached file gets opened while holding the lock which guards the
+ * eviction, and the open {@link CachedFile} gets returned to the caller.
+ * So even if the file gets evicted while the caller is still reading it,
+ * the caller can read it to the end.
+ * On Windows however, an open file cannot get deleted, so it stays in the
+ * directory until the cache gets initialized again.
+ *
+ * @author Christian Schlichtherle
+ */
+@ThreadSafe
+public final class DeltaCache {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String SUFFIX = ".zip", TEMP_SUFFIX = ".tmp";
+
+    private final File directory;
+    private final long maxSize;
+
+    /** Maps keys to entries in access order. */
+    private final LinkedHashMap<String, Entry>
+            entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** Maps keys to the computations in progress. */
+    private final Map<String, Computation> computations = new HashMap<>();
+
+    private long size;
+    private boolean initialized;
+
+    /**
+     * Constructs a delta cache.
+     * The directory gets created and scanned for existing delta ZIP files
+     * upon first use.
+     *
+     * @param directory the directory for storing the delta ZIP files.
+     * @param maxSize the maximum total size of the delta ZIP files in bytes.
+     *        The most recently stored delta ZIP file never gets evicted, even
+     *        if it's bigger than this.
+     */
+    public DeltaCache(final File directory, final long maxSize) {
+        this.directory = requireNonNull(directory);
+        if (0 > maxSize) throw new IllegalArgumentException();
+        this.maxSize = maxSize;
+    }
+
+    /** Returns the directory for storing the delta ZIP files. */
+    public File directory() { return directory; }
+
+    /**
+     * Returns the directory for storing the digest indexes of the artifact
+     * files.
+     * This is the subdirectory {@code index} of the directory for storing
+     * the delta ZIP files, which gets ignored when scanning for existing
+     * delta ZIP files.
+     */
+    public File indexDirectory() { return new File(directory, "index"); }
+
+    /** Returns the maximum total size of the delta ZIP files in bytes. */
+    public long maxSize() { return maxSize; }
+
+    /** Returns the current total size of the delta ZIP files in bytes. */
+    public synchronized long size() { return size; }
+
+    /**
+     * Opens the cached delta ZIP file for the given key or computes and
+     * stores it by calling the given delta output first.
+     * If another thread is computing the delta ZIP file for the same key
+     * already, then this method waits for its result instead.
+     * If the computation fails, then this method throws the same exception
+     * in all waiting threads.
+     *
+     * @param descriptor the artifact descriptor for the current version.
+     * @param updateVersion the update version.
+     * @param digest the name of the message digest algorithm.
+     * @param delta the output for writing the delta ZIP file if it's not
+     *        cached yet.
+     *        This gets called by at most one thread at a time.
+     * @return the opened cached delta ZIP file.
+     *         The caller needs to close it.
+     */
+    public CachedFile file(
+            final ArtifactDescriptor descriptor,
+            final String updateVersion,
+            final String digest,
+            final StreamingOutput delta)
+    throws IOException {
+        final String key = key(descriptor, updateVersion, digest);
+        while (true) {
+            final Computation computation;
+            final boolean owner;
+            synchronized (this) {
+                final CachedFile file = open(key);
+                if (null != file) return file;
+                final Computation running = computations.get(key);
+                owner = null == running;
+                computation = owner ? start(key) : running;
+            }
+            // In the unlikely event that the delta ZIP file gets evicted
+            // before it gets opened, it gets computed again.
+            if (owner) compute(key, computation, delta, null);
+            else computation.join();
+        }
+    }
+
+    /**
+     * Opens the cached delta ZIP file for the given key or returns
+     * {@code null} if it's not cached.
+     *
+     * @param descriptor the artifact descriptor for the current version.
+     * @param updateVersion the update version.
+     * @param digest the name of the message digest algorithm.
+     * @return the opened cached delta ZIP file or {@code null}.
+     *         The caller needs to close it.
+     */
+    public @CheckForNull CachedFile open(
+            ArtifactDescriptor descriptor,
+            String updateVersion,
+            String digest)
+    throws IOException {
+        return open(key(descriptor, updateVersion, digest));
+    }
+
+    /**
+     * Returns a streaming output which writes the delta ZIP file for the
+     * given key while it gets computed and stored.
+     * Unlike {@link #file}, the streaming output doesn't wait until the
+     * delta ZIP file is complete:
+     * If the delta ZIP file is not cached yet, then the first thread which
+     * writes a streaming output for it calls the given delta output and
+     * writes its bytes to the cache and to its output at the same time.
+     * Any other thread which writes a streaming output for the same key
+     * meanwhile follows the temporary file as it grows.
+     * So the time to the first byte doesn't depend on the time for computing
+     * the delta ZIP file.
+     * If the output of the computing thread fails, e.g. because the client
+     * has disconnected, then the delta ZIP file still gets computed and
+     * stored for the other threads before the failure gets rethrown.
+     * If the computation fails, then all streaming outputs for the key fail
+     * with the same exception, but they may have written some bytes already.
+     *
+     * @param descriptor the artifact descriptor for the current version.
+     * @param updateVersion the update version.
+     * @param digest the name of the message digest algorithm.
+     * @param delta the output for writing the delta ZIP file if it's not
+     *        cached yet.
+     *        This gets called by at most one thread at a time.
+     */
+    public StreamingOutput stream(
+            final ArtifactDescriptor descriptor,
+            final String updateVersion,
+            final String digest,
+            final StreamingOutput delta) {
+        final String key = key(descriptor, updateVersion, digest);
+        return new StreamingOutput() {
+            @Override public void write(final @WillNotClose OutputStream out)
+            throws IOException {
+                final CachedFile file;
+                final Computation computation;
+                final boolean owner;
+                final FileInputStream in;
+                synchronized (DeltaCache.this) {
+                    file = open(key);
+                    final Computation running = null != file
+                            ? null
+                            : computations.get(key);
+                    owner = null == file && null == running;
+                    computation = owner ? start(key) : running;
+                    // Open the temporary file while it's guaranteed to exist.
+                    in = null == running
+                            ? null
+                            : new FileInputStream(running.temp);
+                }
+                if (null != file) {
+                    try {
+                        copy(file.input(0), out, file.length());
+                    } finally {
+                        file.close();
+                    }
+                } else if (owner) {
+                    compute(key, computation, delta, out);
+                } else {
+                    try {
+                        for (long position = 0; ; ) {
+                            final long length = computation.await(position);
+                            if (length == position) break;
+                            copy(in, out, length - position);
+                            position = length;
+                        }
+                    } finally {
+                        in.close();
+                    }
+                }
+            }
+        };
+    }
+
+    /** Copies the given number of bytes from the given input stream. */
+    private static void copy(
+            final @WillNotClose InputStream in,
+            final @WillNotClose OutputStream out,
+            final long count)
+    throws IOException {
+        final byte[] buf = new byte[Store.BUFSIZE];
+        for (long remaining = count; 0 < remaining; ) {
+            final int read = in.read(buf, 0,
+                    (int) Math.min(buf.length, remaining));
+            if (0 > read) throw new EOFException();
+            out.write(buf, 0, read);
+            remaining -= read;
+        }
+    }
+
+    /**
+     * Starts a computation for the given key by creating its temporary file.
+     * This must get called while holding the lock.
+     */
+    private Computation start(final String key) throws IOException {
+        assert Thread.holdsLock(this);
+        final Computation computation = new Computation(
+                File.createTempFile("delta", TEMP_SUFFIX, directory));
+        computations.put(key, computation);
+        return computation;
+    }
+
+    /**
+     * Returns {@code true} if and only if the delta ZIP file for the given
+     * key is cached.
+     *
+     * @param descriptor the artifact descriptor for the current version.
+     * @param updateVersion the update version.
+     * @param digest the name of the message digest algorithm.
+     */
+    public synchronized boolean contains(
+            ArtifactDescriptor descriptor,
+            String updateVersion,
+            String digest)
+    throws IOException {
+        init();
+        final String key = key(descriptor, updateVersion, digest);
+        final Entry entry = entries.get(key);
+        if (null == entry) return false;
+        if (new File(directory, entry.name).isFile()) return true;
+        remove(key);
+        return false;
+    }
+
+    /**
+     * Opens the cached delta ZIP file for the given key or returns
+     * {@code null} if it's not cached.
+     */
+    private synchronized @CheckForNull CachedFile open(final String key)
+    throws IOException {
+        init();
+        final Entry entry = entries.get(key);
+        if (null == entry) return null;
+        final File file = new File(directory, entry.name);
+        final FileInputStream in;
+        try {
+            in = new FileInputStream(file);
+        } catch (FileNotFoundException ex) {
+            remove(key);
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return new CachedFile(in, tag(entry.name));
+    }
+
+    private void remove(final String key) {
+        final Entry entry = entries.remove(key);
+        if (null != entry) size -= entry.length;
+    }
+
+    /**
+     * Returns the strong entity tag for the cached file with the given name.
+     * This is the SHA-1 digest of its contents in canonical string notation.
+     */
+    private static String tag(final String name) {
+        return name.substring(name.indexOf('-') + 1,
+                              name.length() - SUFFIX.length());
+    }
+
+    /**
+     * Computes the delta ZIP file for the given key into the temporary file
+     * of the given computation and stores it.
+     * The temporary file gets removed from the computations in the same
+     * critical section in which it gets stored or upon failure, so that any
+     * thread which finds the computation can open its temporary file.
+     *
+     * @param response the nullable output for the owner of the computation.
+     */
+    private void compute(
+            final String key,
+            final Computation computation,
+            final StreamingOutput delta,
+            final @CheckForNull @WillNotClose OutputStream response)
+    throws IOException {
+        final File temp = computation.temp;
+        final Sink sink;
+        try {
+            sink = new Sink(new FileOutputStream(temp), computation, response);
+            try {
+                delta.write(sink);
+            } finally {
+                sink.close();
+            }
+            store(key, sink.tag(), temp);
+        } catch (final Throwable ex) {
+            synchronized (this) { computations.remove(key); }
+            temp.delete();
+            computation.done(ex);
+            throw ex;
+        }
+        computation.done(null);
+        // The temporary file may still exist if it couldn't get renamed.
+        temp.delete();
+        sink.check();
+    }
+
+    private synchronized void store(
+            final String key,
+            final String tag,
+            final File temp)
+    throws IOException {
+        computations.remove(key);
+        final File file = new File(directory, key + '-' + tag + SUFFIX);
+        if (!temp.renameTo(file)) {
+            file.delete();
+            // On Windows, the temporary file cannot get renamed while other
+            // threads are following it, so it gets copied instead.
+            if (!temp.renameTo(file))
+                Files.copy(temp.toPath(), file.toPath(),
+                           StandardCopyOption.REPLACE_EXISTING);
+        }
+        put(key, new Entry(file.getName(), file.length()));
+        evict(key);
+    }
+
+    private void init() throws IOException {
+        if (initialized) return;
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException(String.format(
+                    "Cannot create directory %s .", directory));
+        final File[] files = directory.listFiles();
+        if (null == files)
+            throw new IOException(String.format(
+                    "Cannot list directory %s .", directory));
+        final List<File> cached = new ArrayList<>(files.length);
+        for (final File file : files) {
+            final String name = file.getName();
+            if (name.endsWith(TEMP_SUFFIX)) file.delete();
+            else if (name.endsWith(SUFFIX) && 0 < name.indexOf('-')
+                    && file.isFile()) cached.add(file);
+        }
+        Collections.sort(cached, new Comparator<File>() {
+            @Override public int compare(File file1, File file2) {
+                final long time1 = file1.lastModified();
+                final long time2 = file2.lastModified();
+                return time1 < time2 ? -1 : time1 == time2 ? 0 : 1;
+            }
+        });
+        for (final File file : cached) {
+            final String name = file.getName();
+            put(name.substring(0, name.indexOf('-')),
+                    new Entry(name, file.length()));
+        }
+        evict(null);
+        initialized = true;
+    }
+
+    private void put(final String key, final Entry entry) {
+        final Entry old = entries.put(key, entry);
+        if (null != old) {
+            size -= old.length;
+            if (!old.name.equals(entry.name))
+                new File(directory, old.name).delete();
+        }
+        size += entry.length;
+    }
+
+    private void evict(final @CheckForNull String keep) {
+        for (final Iterator<Map.Entry<String, Entry>>
+                     it = entries.entrySet().iterator();
+                maxSize < size && it.hasNext(); ) {
+            final Map.Entry<String, Entry> mapping = it.next();
+            if (mapping.getKey().equals(keep)) continue;
+            final Entry entry = mapping.getValue();
+            new File(directory, entry.name).delete();
+            size -= entry.length;
+            it.remove();
+        }
+    }
+
+    private static String key(
+            final ArtifactDescriptor descriptor,
+            final String updateVersion,
+            final String digest) {
+        final MessageDigest md = MessageDigests.sha1();
+        for (final String part : new String[] {
+                descriptor.groupId(),
+                descriptor.artifactId(),
+                descriptor.classifier(),
+                descriptor.packaging(),
+                descriptor.version(),
+                requireNonNull(updateVersion),
+                requireNonNull(digest) }) {
+            md.update(part.getBytes(UTF8));
+            md.update((byte) 0);
+        }
+        return MessageDigests.valueOf(md.digest());
+    }
+
+    /**
+     * A delta ZIP file which is being computed into a temporary file.
+     * Other threads can follow the temporary file as it grows.
+     */
+    @ThreadSafe
+    private static final class Computation {
+
+        final File temp;
+        private long length;
+        private boolean done;
+        private @CheckForNull Throwable failure;
+
+        Computation(final File temp) { this.temp = temp; }
+
+        /** Publishes the current length of the temporary file. */
+        synchronized void written(final long length) {
+            this.length = length;
+            notifyAll();
+        }
+
+        /** Publishes the result of the computation. */
+        synchronized void done(final @CheckForNull Throwable failure) {
+            this.done = true;
+            this.failure = failure;
+            notifyAll();
+        }
+
+        /**
+         * Waits until the temporary file is longer than the given position
+         * or the computation is done and returns the length of the temporary
+         * file.
+         * If the computation has failed, then its exception gets rethrown.
+         */
+        synchronized long await(final long position) throws IOException {
+            try {
+                while (!done && length <= position) wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw (IOException) new InterruptedIOException().initCause(ex);
+            }
+            if (failure instanceof IOException) throw (IOException) failure;
+            if (failure instanceof RuntimeException)
+                throw (RuntimeException) failure;
+            if (failure instanceof Error) throw (Error) failure;
+            if (null != failure) throw new IOException(failure);
+            return length;
+        }
+
+        /** Waits until the computation is done. */
+        void join() throws IOException { await(Long.MAX_VALUE); }
+    } // Computation
+
+    /**
+     * Writes a delta ZIP file to the temporary file of a computation and the
+     * nullable output of the thread which owns it.
+     * The length of the temporary file gets published whenever the buffer
+     * gets written to it.
+     * A failure of the output gets remembered for {@link #check} and the
+     * output gets ignored from then on, so that the computation can get
+     * completed for the cache.
+     */
+    @NotThreadSafe
+    private static final class Sink extends OutputStream {
+
+        private final FileOutputStream file;
+        private final Computation computation;
+        private @CheckForNull OutputStream response;
+        private @CheckForNull IOException failure;
+        private final MessageDigest digest = MessageDigests.sha1();
+        private final byte[] buffer = new byte[Store.BUFSIZE];
+        private int count;
+        private long length;
+
+        Sink(final @WillCloseWhenClosed FileOutputStream file,
+             final Computation computation,
+             final @CheckForNull @WillNotClose OutputStream response) {
+            this.file = file;
+            this.computation = computation;
+            this.response = response;
+        }
+
+        @Override public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override public void write(final byte[] b, final int off, final int len)
+        throws IOException {
+            if (len >= buffer.length) {
+                flushBuffer();
+                writeFile(b, off, len);
+            } else {
+                if (count + len > buffer.length) flushBuffer();
+                System.arraycopy(b, off, buffer, count, len);
+                count += len;
+            }
+            if (null != response) {
+                try {
+                    response.write(b, off, len);
+                } catch (IOException ex) {
+                    fail(ex);
+                }
+            }
+        }
+
+        @Override public void flush() throws IOException {
+            flushBuffer();
+            if (null != response) {
+                try {
+                    response.flush();
+                } catch (IOException ex) {
+                    fail(ex);
+                }
+            }
+        }
+
+        private void fail(final IOException ex) {
+            failure = ex;
+            response = null;
+        }
+
+        private void flushBuffer() throws IOException {
+            if (0 == count) return;
+            writeFile(buffer, 0, count);
+            count = 0;
+        }
+
+        private void writeFile(final byte[] b, final int off, final int len)
+        throws IOException {
+            file.write(b, off, len);
+            digest.update(b, off, len);
+            computation.written(length += len);
+        }
+
+        /** Flushes the buffer and closes the file, but not the output. */
+        @Override public void close() throws IOException {
+            try {
+                flushBuffer();
+            } finally {
+                file.close();
+            }
+        }
+
+        /** Returns the SHA-1 digest of the written data. */
+        String tag() { return MessageDigests.valueOf(digest.digest()); }
+
+        /** Rethrows the failure of the output, if any. */
+        void check() throws IOException {
+            if (null != failure) throw failure;
+        }
+    } // Sink
+
+    /** The file name and length of a cached delta ZIP file. */
+    private static final class Entry {
+
+        final String name;
+        final long length;
+
+        Entry(final String name, final long length) {
+            this.name = name;
+            this.length = length;
+        }
+    } // Entry
+
+    /**
+     * An open delta ZIP file from a {@link DeltaCache}.
+     * The file can get read to the end even if it gets evicted from the
+     * cache meanwhile.
+     */
+    @NotThreadSafe
+    public static final class CachedFile implements Closeable {
+
+        private final FileInputStream in;
+        private final String tag;
+        private final long length;
+
+        CachedFile(final @WillCloseWhenClosed FileInputStream in,
+                   final String tag)
+        throws IOException {
+            this.in = in;
+            this.tag = tag;
+            this.length = in.getChannel().size();
+        }
+
+        /**
+         * Returns the strong entity tag of this file.
+         * This is the SHA-1 digest of its contents in canonical string
+         * notation.
+         */
+        public String tag() { return tag; }
+
+        /** Returns the length of this file in bytes. */
+        public long length() { return length; }
+
+        /**
+         * Returns an input stream for reading this file from the given
+         * offset.
+         * Closing the input stream closes this file.
+         */
+        public InputStream input(final long offset) throws IOException {
+            in.getChannel().position(offset);
+            return in;
+        }
+
+        @Override public void close() throws IOException { in.close(); }
+    } // CachedFile
+}
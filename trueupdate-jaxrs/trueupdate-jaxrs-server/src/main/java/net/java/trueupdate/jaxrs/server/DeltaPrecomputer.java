@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.jaxrs.server;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.concurrent.ThreadSafe;
+import net.java.trueupdate.artifact.spec.ArtifactDescriptor;
+import net.java.trueupdate.artifact.spec.ArtifactResolver;
+import net.java.trueupdate.core.io.ThreadGroups;
+
+import static java.util.Objects.requireNonNull;
+import static net.java.trueupdate.jaxrs.server.ConfiguredUpdateServer.DIGEST;
+
+/**
+ * Computes delta ZIP files in the background when a new version of an
+ * artifact gets published, so that the first clients which ask for it get
+ * served from the {@link DeltaCache}.
+ * The precomputer remembers the most recently deployed versions of each
+ * artifact, i.e. the versions which clients have been checking for updates.
+ * Whenever the update version for any of these resolves to a version which
+ * isn't cached yet, the delta ZIP file gets computed by a bounded number of
+ * background threads.
+ * Besides being triggered by client requests, the precomputer periodically
+ * resolves the update versions on its own.
+ * The background threads get started upon the first deployed version.
+ *
+ * @author Christian Schlichtherle
+ */
+@ThreadSafe
+public final class DeltaPrecomputer implements Closeable {
+
+    private static final Logger
+            logger = Logger.getLogger(DeltaPrecomputer.class.getName());
+
+    private final ArtifactResolver resolver;
+    private final DeltaCache cache;
+    private final int versions, threads;
+    private final long period;
+    private final TimeUnit unit;
+
+    /** The deployed versions of all artifacts in access order. */
+    private final LinkedHashMap<ArtifactDescriptor, Boolean>
+            deployed = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The deployed versions and update versions with a delta computation in
+     * progress.
+     */
+    private final Set<Map.Entry<ArtifactDescriptor, String>>
+            pending = new HashSet<>();
+
+    private ExecutorService executor;
+    private ScheduledExecutorService timer;
+    private boolean closed;
+
+    /**
+     * Constructs a delta precomputer.
+     *
+     * @param resolver the artifact resolver.
+     * @param cache the delta cache.
+     * @param versions the maximum number of deployed versions to remember
+     *        for each artifact.
+     * @param threads the maximum number of delta ZIP files to compute
+     *        concurrently.
+     * @param period the period for resolving the update versions or zero
+     *        if the update versions shall get resolved upon client requests
+     *        only.
+     * @param unit the time unit of the period.
+     */
+    public DeltaPrecomputer(
+            final ArtifactResolver resolver,
+            final DeltaCache cache,
+            final int versions,
+            final int threads,
+            final long period,
+            final TimeUnit unit) {
+        this.resolver = requireNonNull(resolver);
+        this.cache = requireNonNull(cache);
+        if (0 >= (this.versions = versions))
+            throw new IllegalArgumentException();
+        if (0 >= (this.threads = threads))
+            throw new IllegalArgumentException();
+        if (0 > (this.period = period)) throw new IllegalArgumentException();
+        this.unit = requireNonNull(unit);
+    }
+
+    /**
+     * Records the given deployed version of an artifact and schedules the
+     * computation of the delta ZIP file to the given update version if it's
+     * not cached yet.
+     *
+     * @param descriptor the artifact descriptor for the deployed version.
+     * @param updateVersion the resolved update version.
+     */
+    public void deployed(
+            final ArtifactDescriptor descriptor,
+            final String updateVersion) {
+        synchronized (this) {
+            if (closed) return;
+            start();
+            if (null == deployed.put(descriptor, Boolean.TRUE))
+                evict(descriptor);
+        }
+        schedule(descriptor, updateVersion);
+    }
+
+    /**
+     * Resolves the update versions of all deployed versions and schedules the
+     * computation of any delta ZIP files which are not cached yet.
+     * This method gets called periodically by a background thread.
+     */
+    public void poll() {
+        final List<ArtifactDescriptor> descriptors;
+        synchronized (this) {
+            descriptors = new ArrayList<>(deployed.keySet());
+        }
+        for (final ArtifactDescriptor descriptor : descriptors) {
+            try {
+                schedule(descriptor,
+                        resolver.resolveUpdateVersion(descriptor));
+            } catch (Exception ex) {
+                logger.log(Level.WARNING, String.format(
+                        "Failed to resolve the update version of %s .",
+                        descriptor), ex);
+            }
+        }
+    }
+
+    private void start() {
+        if (null != executor) return;
+        executor = Executors.newFixedThreadPool(threads,
+                threadFactory("TrueUpdate JAX-RS Server / Delta Precomputer"));
+        if (0 == period) return;
+        timer = Executors.newSingleThreadScheduledExecutor(threadFactory(
+                "TrueUpdate JAX-RS Server / Delta Precomputer Timer"));
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override public void run() { poll(); }
+        }, period, period, unit);
+    }
+
+    /**
+     * Returns a factory for daemon threads with the given name in the
+     * {@linkplain ThreadGroups#getServerThreadGroup() server thread group},
+     * because they serve all client requests rather than the one which
+     * happens to start them.
+     */
+    private static ThreadFactory threadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(
+                        ThreadGroups.getServerThreadGroup(), r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Removes the least recently deployed versions of the artifact of the
+     * given descriptor until no more than the configured number of versions
+     * remain.
+     */
+    private void evict(final ArtifactDescriptor descriptor) {
+        int count = 0;
+        for (final ArtifactDescriptor other : deployed.keySet())
+            if (sameArtifact(descriptor, other)) count++;
+        for (final Iterator<ArtifactDescriptor>
+                     it = deployed.keySet().iterator();
+                versions < count && it.hasNext(); ) {
+            if (sameArtifact(descriptor, it.next())) {
+                it.remove();
+                count--;
+            }
+        }
+    }
+
+    private static boolean sameArtifact(
+            final ArtifactDescriptor one,
+            final ArtifactDescriptor two) {
+        return  one.groupId().equals(two.groupId()) &&
+                one.artifactId().equals(two.artifactId()) &&
+                one.classifier().equals(two.classifier()) &&
+                one.packaging().equals(two.packaging());
+    }
+
+    private void schedule(
+            final ArtifactDescriptor descriptor,
+            final String updateVersion) {
+        if (updateVersion.equals(descriptor.version())) return;
+        try {
+            if (cache.contains(descriptor, updateVersion, DIGEST)) return;
+        } catch (Exception ex) {
+            logger.log(Level.WARNING, "Failed to look up the delta cache.",
+                    ex);
+            return;
+        }
+        final Map.Entry<ArtifactDescriptor, String> key =
+                new AbstractMap.SimpleImmutableEntry<>(descriptor, updateVersion);
+        final ExecutorService executor;
+        synchronized (this) {
+            if (closed || !pending.add(key)) return;
+            executor = this.executor;
+        }
+
+        class Precomputation implements Runnable {
+            @Override public void run() {
+                try {
+                    cache.file(descriptor, updateVersion, DIGEST,
+                            ConfiguredUpdateServer.delta(resolver,
+                                    descriptor, updateVersion,
+                                    cache.indexDirectory()))
+                            .close();
+                    logger.log(Level.FINE,
+                            "Precomputed the delta from {0} to version {1}.",
+                            new Object[] { descriptor, updateVersion });
+                } catch (Exception ex) {
+                    logger.log(Level.WARNING, String.format(
+                            "Failed to precompute the delta from %s to version %s .",
+                            descriptor, updateVersion), ex);
+                } finally {
+                    synchronized (DeltaPrecomputer.this) {
+                        pending.remove(key);
+                    }
+                }
+            }
+        } // Precomputation
+
+        try {
+            executor.execute(new Precomputation());
+        } catch (RejectedExecutionException ex) {
+            synchronized (this) { pending.remove(key); }
+        }
+    }
+
+    /**
+     * Stops the background threads.
+     * Any scheduled delta computations get cancelled and any delta
+     * computations in progress get interrupted.
+     * This method needs to get called when the application gets stopped,
+     * e.g. when it gets redeployed.
+     */
+    @Override public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        if (null != timer) timer.shutdownNow();
+        if (null != executor) executor.shutdownNow();
+    }
+}
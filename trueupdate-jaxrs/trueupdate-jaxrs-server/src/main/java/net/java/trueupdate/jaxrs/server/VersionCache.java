@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.jaxrs.server;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.concurrent.ThreadSafe;
+import net.java.trueupdate.artifact.spec.ArtifactDescriptor;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A memory cache for the update versions of artifacts with a time to live.
+ * Resolving an update version may be expensive, e.g. resolving a version
+ * range with Maven may read the metadata of remote repositories.
+ * Clients which poll for updates would make the server resolve the same
+ * update version over and over again, even if they revalidate it with an
+ * {@code If-None-Match} header.
+ * With this cache, an update version gets resolved at most once per time to
+ * live for each artifact descriptor.
+ * Consequently, it may take up to the time to live until clients get
+ * notified about a newly published version.
+ * <p>
+ * A failure to resolve an update version doesn't get cached.
+ * The number of artifact descriptors is bounded because they are supplied by
+ * clients:
+ * When the bound gets exceeded, the least recently used entry gets evicted.
+ *
+ * @author Christian Schlichtherle
+ */
+@ThreadSafe
+public final class VersionCache {
+
+    private final long ttl;
+    private final int maxEntries;
+
+    /** Maps artifact descriptors to entries in access order. */
+    private final LinkedHashMap<ArtifactDescriptor, Resolved> entries;
+
+    /**
+     * Constructs a version cache.
+     *
+     * @param ttl the time to live for the cached update versions.
+     * @param unit the time unit of the time to live.
+     * @param maxEntries the maximum number of artifact descriptors to cache
+     *        update versions for.
+     */
+    public VersionCache(
+            final long ttl,
+            final TimeUnit unit,
+            final int maxEntries) {
+        if (0 > ttl) throw new IllegalArgumentException();
+        this.ttl = unit.toNanos(ttl);
+        if (0 >= (this.maxEntries = maxEntries))
+            throw new IllegalArgumentException();
+        this.entries = new LinkedHashMap<ArtifactDescriptor, Resolved>(
+                16, 0.75f, true) {
+            private static final long serialVersionUID = 0L;
+
+            @Override protected boolean removeEldestEntry(
+                    Map.Entry<ArtifactDescriptor, Resolved> eldest) {
+                return VersionCache.this.maxEntries < size();
+            }
+        };
+    }
+
+    /** Returns the time to live in nanoseconds. */
+    public long ttl() { return ttl; }
+
+    /**
+     * Returns the maximum number of artifact descriptors to cache update
+     * versions for.
+     */
+    public int maxEntries() { return maxEntries; }
+
+    /**
+     * Returns the cached update version for the given artifact descriptor
+     * or calls the given resolver and caches its result if there is no
+     * cached update version or if it has expired.
+     * Concurrent calls for the same artifact descriptor are not coalesced:
+     * If the update version expires, then each thread may call its resolver.
+     * This is fine because the result is the same and it happens at most
+     * once per time to live.
+     *
+     * @param descriptor the artifact descriptor for the current version.
+     * @param resolver the resolver for the update version.
+     * @return the update version.
+     * @throws Exception any exception from the resolver.
+     */
+    public String updateVersion(
+            final ArtifactDescriptor descriptor,
+            final Callable<String> resolver)
+    throws Exception {
+        final long now = System.nanoTime();
+        synchronized (this) {
+            final Resolved resolved = entries.get(descriptor);
+            if (null != resolved && now - resolved.time < ttl)
+                return resolved.updateVersion;
+        }
+        final String updateVersion = requireNonNull(resolver.call());
+        synchronized (this) {
+            entries.put(descriptor, new Resolved(updateVersion, now));
+        }
+        return updateVersion;
+    }
+
+    /** Returns the number of cached update versions, including expired. */
+    public synchronized int size() { return entries.size(); }
+
+    /** A cached update version and the time when it was resolved. */
+    private static final class Resolved {
+
+        final String updateVersion;
+        final long time;
+
+        Resolved(final String updateVersion, final long time) {
+            this.updateVersion = updateVersion;
+            this.time = time;
+        }
+    } // Resolved
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.jaxrs.server
+
+import org.junit.runner.RunWith
+import org.scalatest.WordSpec
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers._
+import org.scalatest.prop.PropertyChecks._
+
+/**
+ * @author Christian Schlichtherle
+ */
+@RunWith(classOf[JUnitRunner])
+class ByteRangeTest extends WordSpec {
+
+  val length = 1000L
+
+  "The parse function" should {
+    "return single byte ranges truncated to the length of the entity" in {
+      val table = Table(
+        ("value", "first", "last", "contentRange"),
+        ("bytes=0-499", 0L, 499L, "bytes 0-499/1000"),
+        ("bytes=500-999", 500L, 999L, "bytes 500-999/1000"),
+        ("bytes=500-1999", 500L, 999L, "bytes 500-999/1000"),
+        ("bytes= 500 - 599 ", 500L, 599L, "bytes 500-599/1000"),
+        // open-ended byte ranges
+        ("bytes=0-", 0L, 999L, "bytes 0-999/1000"),
+        ("bytes=900-", 900L, 999L, "bytes 900-999/1000"),
+        // suffix byte ranges
+        ("bytes=-100", 900L, 999L, "bytes 900-999/1000"),
+        ("bytes=-2000", 0L, 999L, "bytes 0-999/1000")
+      )
+      forAll(table) { (value, first, last, contentRange) =>
+        val range = ByteRange parse (value, length)
+        range should not be (null)
+        range.first should be (first)
+        range.last should be (last)
+        range.length should be (length)
+        range.satisfiable should be (true)
+        range.count should be (last - first + 1)
+        range.contentRange should equal (contentRange)
+      }
+    }
+
+    "return unsatisfiable byte ranges which start beyond the end of the entity" in {
+      val table = Table(
+        "value",
+        "bytes=1000-",
+        "bytes=1000-1999",
+        "bytes=-0"
+      )
+      forAll(table) { value =>
+        val range = ByteRange parse (value, length)
+        range should not be (null)
+        range.satisfiable should be (false)
+        range.contentRange should equal ("bytes */1000")
+      }
+    }
+
+    "return null for multiple or syntactically invalid byte ranges" in {
+      val table = Table(
+        "value",
+        "bytes=0-99,200-299",
+        "bytes=0-99, -100",
+        "items=0-99",
+        "bytes=",
+        "bytes=-",
+        "bytes=100",
+        "bytes=abc-",
+        "bytes=0-abc",
+        "bytes=-abc",
+        "bytes=200-100",
+        "bytes=--100"
+      )
+      forAll(table) { value =>
+        ByteRange parse (value, length) should be (null)
+      }
+    }
+  }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.jaxrs.server.it
+
+import java.io._
+import java.util.concurrent._
+import java.util.concurrent.atomic.AtomicInteger
+import javax.ws.rs.core.StreamingOutput
+import net.java.trueupdate.artifact.spec.ArtifactDescriptor
+import net.java.trueupdate.core.io.MessageDigests
+import net.java.trueupdate.jaxrs.server.DeltaCache
+import org.junit.runner.RunWith
+import org.scalatest.WordSpec
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers._
+
+/**
+ * @author Christian Schlichtherle
+ */
+@RunWith(classOf[JUnitRunner])
+class DeltaCacheIT extends WordSpec {
+
+  val descriptor = ArtifactDescriptor
+    .builder
+    .groupId("net.java.trueupdate")
+    .artifactId("trueupdate-core")
+    .version("1")
+    .build
+
+  val digest = "SHA-1"
+
+  def loanDirectory[A](fun: File => A) = {
+    val directory = File createTempFile ("cache", null)
+    directory delete ()
+    try {
+      fun(directory)
+    } finally {
+      def delete(file: File) {
+        val files = file.listFiles
+        if (null != files) files foreach delete
+        file delete ()
+      }
+      delete(directory)
+    }
+  }
+
+  /** Returns the contents of a delta ZIP file for the given version. */
+  def contents(updateVersion: String) =
+    Array.fill[Byte](100)(updateVersion.toByte)
+
+  class CountingDelta(updateVersion: String) extends StreamingOutput {
+    var count = 0
+
+    override def write(out: OutputStream) {
+      count += 1
+      out write contents(updateVersion)
+    }
+  }
+
+  def read(file: DeltaCache.CachedFile, offset: Long = 0) = {
+    try {
+      val in = file input offset
+      val out = new ByteArrayOutputStream
+      Iterator continually (in read ()) takeWhile (-1 !=) foreach
+        (out write _)
+      out.toByteArray
+    } finally {
+      file close ()
+    }
+  }
+
+  def file(cache: DeltaCache, updateVersion: String,
+           delta: StreamingOutput = null) =
+    cache file (descriptor, updateVersion, digest,
+      if (null != delta) delta else new CountingDelta(updateVersion))
+
+  def contains(cache: DeltaCache, updateVersion: String) =
+    cache contains (descriptor, updateVersion, digest)
+
+  "A delta cache" should {
+    "compute a delta ZIP file once and serve it from the cache afterwards" in {
+      loanDirectory { directory =>
+        val cache = new DeltaCache(directory, 1000)
+        contains(cache, "2") should be (false)
+        val delta = new CountingDelta("2")
+        for (_ <- 1 to 3) {
+          val cached = file(cache, "2", delta)
+          cached.length should be (100)
+          cached.tag should
+            equal (MessageDigests.valueOf(MessageDigests.sha1.digest(contents("2"))))
+          read(cached) should equal (contents("2"))
+        }
+        delta.count should be (1)
+        contains(cache, "2") should be (true)
+        cache.size should be (100)
+      }
+    }
+
+    "read a cached file from an offset" in {
+      loanDirectory { directory =>
+        val cache = new DeltaCache(directory, 1000)
+        read(file(cache, "2"), 60) should equal (contents("2") drop 60)
+      }
+    }
+
+    "evict the least recently used delta ZIP files" in {
+      loanDirectory { directory =>
+        val cache = new DeltaCache(directory, 250)
+        read(file(cache, "2"))
+        read(file(cache, "3"))
+        read(file(cache, "2"))
+        read(file(cache, "4"))
+        contains(cache, "2") should be (true)
+        contains(cache, "3") should be (false)
+        contains(cache, "4") should be (true)
+        cache.size should be (200)
+        directory.list.length should be (2)
+      }
+    }
+
+    "keep serving an open file which gets evicted meanwhile" in {
+      loanDirectory { directory =>
+        val cache = new DeltaCache(directory, 150)
+        val open = file(cache, "2")
+        read(file(cache, "3"))
+        contains(cache, "2") should be (false)
+        read(open) should equal (contents("2"))
+      }
+    }
+
+    "restore the cached files and their access order upon restart" in {
+      loanDirectory { directory =>
+        val cache = new DeltaCache(directory, 1000)
+        read(file(cache, "2"))
+        read(file(cache, "3"))
+        def cachedFile(updateVersion: String) = {
+          val tag = MessageDigests.valueOf(
+            MessageDigests.sha1.digest(contents(updateVersion)))
+          (directory.listFiles find (_.getName endsWith ("-" + tag + ".zip"))).get
+        }
+        // The access order is restored from the last modification times.
+        cachedFile("3") setLastModified 1000000000000L
+        cachedFile("2") setLastModified 1000001000000L
+        new FileOutputStream(new File(directory, "delta1.tmp")) close ()
+
+        val restarted = new DeltaCache(directory, 150)
+        contains(restarted, "2") should be (true)
+        contains(restarted, "3") should be (false)
+        restarted.size should be (100)
+        directory.list.toList should have length (1)
+        val delta = new CountingDelta("2")
+        read(file(restarted, "2", delta)) should equal (contents("2"))
+        delta.count should be (0)
+      }
+    }
+
+    "keep the digest indexes in a subdirectory which gets ignored upon restart" in {
+      loanDirectory { directory =>
+        val cache = new DeltaCache(directory, 1000)
+        val index = cache.indexDirectory
+        index.getParentFile should equal (directory)
+        read(file(cache, "2"))
+        index mkdir ()
+        val indexFile = new File(index, "trueupdate-core-1.jar.SHA-1.idx")
+        new FileOutputStream(indexFile) close ()
+
+        val restarted = new DeltaCache(directory, 1000)
+        contains(restarted, "2") should be (true)
+        restarted.size should be (100)
+        indexFile.isFile should be (true)
+      }
+    }
+
+    "propagate a failure to compute a delta ZIP file and start over upon the next request" in {
+      loanDirectory { directory =>
+        val cache = new DeltaCache(directory, 1000)
+        val failing = new StreamingOutput {
+          override def write(out: OutputStream) {
+            out write 0
+            throw new IOException("Boom!")
+          }
+        }
+        intercept[IOException] { file(cache, "2", failing) }
+        contains(cache, "2") should be (false)
+        directory.list.length should be (0)
+        read(file(cache, "2")) should equal (contents("2"))
+      }
+    }
+
+    "coalesce concurrent requests for the same delta ZIP file" in {
+      loanDirectory { directory =>
+        val cache = new DeltaCache(directory, 1000)
+        val delta = new SlowDelta(fail = false)
+        val results = concurrently(8) { () => read(file(cache, "2", delta)) }
+        delta.count.get should be (1)
+        results foreach { _.right.get should equal (contents("2")) }
+      }
+    }
+
+    "propagate a failure to all waiting requests" in {
+      loanDirectory { directory =>
+        val cache = new DeltaCache(directory, 1000)
+        val delta = new SlowDelta(fail = true)
+        val results = concurrently(8) { () => read(file(cache, "2", delta)) }
+        delta.count.get should be (1)
+        results foreach { _.left.get.getMessage should equal ("Boom!") }
+        read(file(cache, "2")) should equal (contents("2"))
+      }
+    }
+
+    "stream a delta ZIP file before its computation is complete" in {
+      loanDirectory { directory =>
+        val cache = new DeltaCache(directory, 1000)
+        val delta = new BlockingDelta
+        val firstByte = new CountDownLatch(1)
+        val out = new ByteArrayOutputStream {
+          override def write(b: Array[Byte], off: Int, len: Int) {
+            super.write(b, off, len)
+            firstByte countDown ()
+          }
+        }
+        val executor = Executors newFixedThreadPool 2
+        try {
+          val owner = executor submit new Callable[Unit] {
+            override def call() {
+              stream(cache, "2", delta) write out
+            }
+          }
+          firstByte await (10, TimeUnit.SECONDS) should be (true)
+          delta.released.getCount should be (1)
+          val follower = new ByteArrayOutputStream
+          val following = executor submit new Callable[Unit] {
+            override def call() { stream(cache, "2", delta) write follower }
+          }
+          delta.released countDown ()
+          owner get ()
+          following get ()
+          out.toByteArray should equal (contents("2"))
+          follower.toByteArray should equal (contents("2"))
+        } finally {
+          executor shutdown ()
+        }
+        delta.count.get should be (1)
+        contains(cache, "2") should be (true)
+        read(file(cache, "2", delta)) should equal (contents("2"))
+      }
+    }
+
+    "let concurrent requests follow a delta ZIP file while it gets streamed" in {
+      loanDirectory { directory =>
+        val cache = new DeltaCache(directory, 1000)
+        val delta = new SlowDelta(fail = false)
+        val results = concurrently(8) { () =>
+          val out = new ByteArrayOutputStream
+          stream(cache, "2", delta) write out
+          out.toByteArray
+        }
+        delta.count.get should be (1)
+        results foreach { _.right.get should equal (contents("2")) }
+      }
+    }
+
+    "store a streamed delta ZIP file even if its output fails" in {
+      loanDirectory { directory =>
+        val cache = new DeltaCache(directory, 1000)
+        val broken = new OutputStream {
+          override def write(b: Int) { throw new IOException("Gone!") }
+        }
+        val delta = new CountingDelta("2")
+        intercept[IOException] {
+          stream(cache, "2", delta) write broken
+        }.getMessage should equal ("Gone!")
+        contains(cache, "2") should be (true)
+        read(file(cache, "2", delta)) should equal (contents("2"))
+        delta.count should be (1)
+      }
+    }
+  }
+
+  def stream(cache: DeltaCache, updateVersion: String,
+             delta: StreamingOutput) =
+    cache stream (descriptor, updateVersion, digest, delta)
+
+  /**
+   * Writes the first half of the contents of a delta ZIP file for version 2
+   * and then blocks until it gets released.
+   */
+  class BlockingDelta extends StreamingOutput {
+    val count = new AtomicInteger
+    val released = new CountDownLatch(1)
+
+    override def write(out: OutputStream) {
+      count incrementAndGet ()
+      val data = contents("2")
+      out write (data, 0, 50)
+      out flush ()
+      released await ()
+      out write (data, 50, 50)
+    }
+  }
+
+  /**
+   * Computes the contents of a delta ZIP file for version 2 slowly, so that
+   * concurrent requests for it need to wait.
+   */
+  class SlowDelta(fail: Boolean) extends StreamingOutput {
+    val count = new AtomicInteger
+
+    override def write(out: OutputStream) {
+      count incrementAndGet ()
+      Thread sleep 500
+      if (fail) throw new IOException("Boom!")
+      out write contents("2")
+    }
+  }
+
+  /**
+   * Calls the given function concurrently on the given number of threads
+   * and returns their results or exceptions.
+   */
+  def concurrently[A](threads: Int)(fun: () => A) = {
+    val executor = Executors newFixedThreadPool threads
+    try {
+      val start = new CountDownLatch(1)
+      val futures = for (_ <- 1 to threads) yield executor submit
+        new Callable[A] {
+          override def call() = {
+            start await ()
+            fun()
+          }
+        }
+      start countDown ()
+      for (future <- futures) yield {
+        try {
+          Right(future get ())
+        } catch {
+          case ex: ExecutionException => Left(ex.getCause)
+        }
+      }
+    } finally {
+      executor shutdown ()
+    }
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.jaxrs.server.it
+
+import java.io._
+import java.util.concurrent.{CountDownLatch, TimeUnit}
+import java.util.zip._
+import net.java.trueupdate.artifact.spec._
+import net.java.trueupdate.core.io.ThreadGroups
+import net.java.trueupdate.jaxrs.server._
+import org.junit.runner.RunWith
+import org.scalatest.WordSpec
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers._
+import scala.collection.JavaConverters._
+
+/**
+ * @author Christian Schlichtherle
+ */
+@RunWith(classOf[JUnitRunner])
+class DeltaPrecomputerIT extends WordSpec {
+
+  val descriptor = ArtifactDescriptor
+    .builder
+    .groupId("net.java.trueupdate")
+    .artifactId("trueupdate-core")
+    .version("1")
+    .build
+
+  val digest = "SHA-1"
+
+  val name = "TrueUpdate JAX-RS Server / Delta Precomputer"
+
+  def loanDirectory[A](fun: File => A) = {
+    val directory = File createTempFile ("dir", null)
+    directory delete ()
+    directory mkdir ()
+    try {
+      fun(directory)
+    } finally {
+      def delete(file: File) {
+        val files = file.listFiles
+        if (null != files) files foreach delete
+        file delete ()
+      }
+      delete(directory)
+    }
+  }
+
+  /** Writes a ZIP file with a single entry for the given version. */
+  def artifact(directory: File, version: String) = {
+    val file = new File(directory, "artifact-" + version + ".jar")
+    val out = new ZipOutputStream(new FileOutputStream(file))
+    try {
+      out putNextEntry new ZipEntry("version")
+      out write (version getBytes "UTF-8")
+    } finally {
+      out close ()
+    }
+    file
+  }
+
+  /** Resolves the given update version to artifacts in the given directory. */
+  class Resolver(directory: File, @volatile var updateVersion: String)
+  extends ArtifactResolver {
+    override def resolveArtifactFile(descriptor: ArtifactDescriptor) =
+      artifact(directory, descriptor.version)
+
+    override def resolveUpdateVersion(descriptor: ArtifactDescriptor) =
+      updateVersion
+  }
+
+  def threads = Thread.getAllStackTraces.keySet.asScala filter
+    (_.getName startsWith name)
+
+  def await(condition: => Boolean) = {
+    val deadline = System.currentTimeMillis + 10000
+    while (!condition && System.currentTimeMillis < deadline) Thread sleep 50
+    condition
+  }
+
+  def contains(cache: DeltaCache, updateVersion: String) =
+    cache contains (descriptor, updateVersion, digest)
+
+  "A delta precomputer" should {
+    "compute the delta ZIP file for a deployed version" in {
+      loanDirectory { directory =>
+        val cache = new DeltaCache(new File(directory, "cache"), 1000000)
+        val resolver = new Resolver(directory, "2")
+        val precomputer = new DeltaPrecomputer(resolver, cache, 1, 1, 0,
+          TimeUnit.SECONDS)
+        try {
+          precomputer deployed (descriptor, "2")
+          await(contains(cache, "2")) should be (true)
+        } finally {
+          precomputer close ()
+        }
+      }
+    }
+
+    "compute the delta ZIP file for a published version upon the next poll" in {
+      loanDirectory { directory =>
+        val cache = new DeltaCache(new File(directory, "cache"), 1000000)
+        val resolver = new Resolver(directory, "1")
+        val precomputer = new DeltaPrecomputer(resolver, cache, 1, 1, 100,
+          TimeUnit.MILLISECONDS)
+        try {
+          precomputer deployed (descriptor, "1")
+          resolver.updateVersion = "2"
+          await(contains(cache, "2")) should be (true)
+        } finally {
+          precomputer close ()
+        }
+      }
+    }
+
+    "compute the delta ZIP file for another update version while one is in progress" in {
+      loanDirectory { directory =>
+        val cache = new DeltaCache(new File(directory, "cache"), 1000000)
+        val started, released = new CountDownLatch(1)
+        val resolver = new Resolver(directory, "2") {
+          override def resolveArtifactFile(descriptor: ArtifactDescriptor) = {
+            if ("2" == descriptor.version) {
+              started countDown ()
+              released await ()
+            }
+            super.resolveArtifactFile(descriptor)
+          }
+        }
+        val precomputer = new DeltaPrecomputer(resolver, cache, 1, 1, 0,
+          TimeUnit.SECONDS)
+        try {
+          precomputer deployed (descriptor, "2")
+          started await ()
+          precomputer deployed (descriptor, "3")
+          released countDown ()
+          await(contains(cache, "2")) should be (true)
+          await(contains(cache, "3")) should be (true)
+        } finally {
+          precomputer close ()
+        }
+      }
+    }
+
+    "run its threads in the server thread group and stop them when closed" in {
+      loanDirectory { directory =>
+        val cache = new DeltaCache(new File(directory, "cache"), 1000000)
+        val resolver = new Resolver(directory, "1")
+        val precomputer = new DeltaPrecomputer(resolver, cache, 1, 1, 100,
+          TimeUnit.MILLISECONDS)
+        precomputer deployed (descriptor, "1")
+        await(threads.nonEmpty) should be (true)
+        threads foreach { thread =>
+          thread.isDaemon should be (true)
+          thread.getThreadGroup should
+            be theSameInstanceAs (ThreadGroups.getServerThreadGroup)
+        }
+        precomputer close ()
+        await(threads.isEmpty) should be (true)
+        precomputer deployed (descriptor, "2")
+        threads should be ('empty)
+        contains(cache, "2") should be (false)
+      }
+    }
+  }
+}
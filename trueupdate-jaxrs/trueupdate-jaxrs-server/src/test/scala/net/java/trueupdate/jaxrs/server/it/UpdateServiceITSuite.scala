@@ -4,9 +4,11 @@
  */
 package net.java.trueupdate.jaxrs.server.it
 
+import com.sun.jersey.api.client.ClientRequest
+import com.sun.jersey.api.client.filter.ClientFilter
 import com.sun.jersey.test.framework._
 import java.io._
-import java.util.zip.ZipInputStream
+import java.util.zip.{ZipFile, ZipInputStream}
 import javax.ws.rs.core.MediaType
 import javax.ws.rs.core.MediaType._
 import net.java.trueupdate.core.io._
@@ -17,6 +19,7 @@ import org.scalatest.matchers.ShouldMatchers._
 import net.java.trueupdate.artifact.spec._
 import net.java.trueupdate.core.TestContext
 import java.util.logging.Level
+import scala.collection.mutable.ArrayBuffer
 
 /** @author Christian Schlichtherle */
 abstract class UpdateServiceITSuite extends JerseyTest {
@@ -26,7 +29,9 @@ abstract class UpdateServiceITSuite extends JerseyTest {
 
   @Test def testLifeCycle() {
     assertVersion()
+    assertVersionRevalidation()
     assertDiff()
+    assertDownload()
   }
 
   private def assertVersion() {
@@ -39,6 +44,37 @@ abstract class UpdateServiceITSuite extends JerseyTest {
       be ("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?><version>" + updateVersion + "</version>")
   }
 
+  private def assertVersionRevalidation() {
+
+    /** Records the status codes of the responses for the update version. */
+    class StatusFilter extends ClientFilter {
+      val statuses = new ArrayBuffer[Int]
+
+      override def handle(request: ClientRequest) = {
+        val response = getNext handle request
+        if (request.getURI.getPath endsWith "/artifact/version")
+          statuses += response.getStatus
+        response
+      }
+    }
+
+    val filter = new StatusFilter
+    client addFilter filter
+    try {
+      val updateClient = this.updateClient
+      for (mediaType <- List(TEXT_PLAIN_TYPE, APPLICATION_JSON_TYPE,
+                             APPLICATION_XML_TYPE)) {
+        filter.statuses.clear()
+        val updateVersion = updateClient version (artifactDescriptor, mediaType)
+        updateClient version (artifactDescriptor, mediaType) should
+          equal (updateVersion)
+        filter.statuses should equal (List(200, 304))
+      }
+    } finally {
+      client removeFilter filter
+    }
+  }
+
   private def updateVersionAs(mediaType: MediaType) =
     updateClient.version(artifactDescriptor, mediaType)
 
@@ -49,8 +85,11 @@ abstract class UpdateServiceITSuite extends JerseyTest {
     class DiffTask extends InputTask[Unit, IOException] {
       override def execute(in: InputStream) {
         val zipIn = new ZipInputStream(in)
-        val entry = zipIn getNextEntry ()
-        entry.getName should be (DeltaModel.ENTRY_NAME)
+        // The delta model is the last entry when streaming the delta ZIP file.
+        var entry = zipIn getNextEntry ()
+        while (null != entry && entry.getName != DeltaModel.ENTRY_NAME)
+          entry = zipIn getNextEntry ()
+        entry should not be (null)
         val source = new Source {
           def input() = new FilterInputStream(zipIn) {
             override def close() { zipIn closeEntry () }
@@ -66,5 +105,21 @@ abstract class UpdateServiceITSuite extends JerseyTest {
     Sources execute new DiffTask on source
   }
 
+  private def assertDownload() {
+    val updateVersion = updateVersionAs(TEXT_PLAIN_TYPE)
+    val file = File createTempFile ("delta", ".zip")
+    try {
+      updateClient download (artifactDescriptor, updateVersion, file)
+      val zipFile = new ZipFile(file)
+      try {
+        zipFile getEntry DeltaModel.ENTRY_NAME should not be (null)
+      } finally {
+        zipFile close ()
+      }
+    } finally {
+      file delete ()
+    }
+  }
+
   private def updateClient = new UpdateClient(resource.getURI, client)
 }
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.jaxrs.server.it
+
+import java.io.File
+import java.util.Date
+import java.util.concurrent.{Callable, TimeUnit}
+import javax.ws.rs.core._
+import net.java.trueupdate.artifact.spec._
+import net.java.trueupdate.jaxrs.server._
+import org.junit.runner.RunWith
+import org.scalatest.WordSpec
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers._
+
+/**
+ * @author Christian Schlichtherle
+ */
+@RunWith(classOf[JUnitRunner])
+class VersionCacheIT extends WordSpec {
+
+  def descriptor(artifactId: String = "trueupdate-core") = ArtifactDescriptor
+    .builder
+    .groupId("net.java.trueupdate")
+    .artifactId(artifactId)
+    .version("1")
+    .build
+
+  /** Resolves to the given update version and counts the calls. */
+  class Resolver(@volatile var updateVersion: String)
+  extends Callable[String] {
+    @volatile var calls = 0
+
+    override def call() = {
+      calls += 1
+      updateVersion
+    }
+  }
+
+  "A version cache" should {
+    "resolve the update version only once within the time to live" in {
+      val cache = new VersionCache(1, TimeUnit.HOURS, 10)
+      val resolver = new Resolver("2")
+      cache updateVersion (descriptor(), resolver) should be ("2")
+      resolver.updateVersion = "3"
+      cache updateVersion (descriptor(), resolver) should be ("2")
+      resolver.calls should be (1)
+    }
+
+    "resolve the update version again when the time to live has expired" in {
+      val cache = new VersionCache(50, TimeUnit.MILLISECONDS, 10)
+      val resolver = new Resolver("2")
+      cache updateVersion (descriptor(), resolver) should be ("2")
+      resolver.updateVersion = "3"
+      Thread sleep 100
+      cache updateVersion (descriptor(), resolver) should be ("3")
+      resolver.calls should be (2)
+    }
+
+    "not cache a failure" in {
+      val cache = new VersionCache(1, TimeUnit.HOURS, 10)
+      intercept[IllegalStateException] {
+        cache updateVersion (descriptor(), new Callable[String] {
+          override def call() = throw new IllegalStateException
+        })
+      }
+      cache.size should be (0)
+      val resolver = new Resolver("2")
+      cache updateVersion (descriptor(), resolver) should be ("2")
+      resolver.calls should be (1)
+    }
+
+    "evict the least recently used entry when the maximum number of entries is exceeded" in {
+      val cache = new VersionCache(1, TimeUnit.HOURS, 2)
+      val resolver = new Resolver("2")
+      cache updateVersion (descriptor("a"), resolver)
+      cache updateVersion (descriptor("b"), resolver)
+      cache updateVersion (descriptor("a"), resolver)
+      cache updateVersion (descriptor("c"), resolver)
+      cache.size should be (2)
+      resolver.calls should be (3)
+      cache updateVersion (descriptor("a"), resolver)
+      resolver.calls should be (3)
+      cache updateVersion (descriptor("b"), resolver)
+      resolver.calls should be (4)
+    }
+  }
+
+  "An update server with a version cache" should {
+    "not resolve the update version again to revalidate it" in {
+
+      class CountingResolver extends ArtifactResolver {
+        @volatile var calls = 0
+
+        override def resolveArtifactFile(descriptor: ArtifactDescriptor) =
+          new File(descriptor.version)
+
+        override def resolveUpdateVersion(descriptor: ArtifactDescriptor) = {
+          calls += 1
+          "2"
+        }
+      }
+
+      /** A request with a matching If-None-Match header. */
+      class NotModifiedRequest extends Request {
+        override def getMethod = "GET"
+        override def selectVariant(variants: java.util.List[Variant]) =
+          throw new UnsupportedOperationException
+        override def evaluatePreconditions(eTag: EntityTag) =
+          Response.notModified()
+        override def evaluatePreconditions(lastModified: Date) =
+          throw new UnsupportedOperationException
+        override def evaluatePreconditions(lastModified: Date,
+                                           eTag: EntityTag) =
+          throw new UnsupportedOperationException
+        override def evaluatePreconditions() =
+          throw new UnsupportedOperationException
+      }
+
+      val resolver = new CountingResolver
+      val versions = new VersionCache(1, TimeUnit.HOURS, 10)
+      val server = new AbstractUpdateServer {
+        override def artifactResolver = resolver
+        override def versionCache = versions
+      }
+      val request = new NotModifiedRequest
+      for (i <- 1 to 3) {
+        val artifact = server artifact
+          ("net.java.trueupdate", "trueupdate-core", "1", "", "jar")
+        (artifact versionAsText request).getStatus should be (304)
+      }
+      resolver.calls should be (1)
+    }
+  }
+}
@@ -12,7 +12,6 @@ import edu.umd.cs.findbugs.annotations.CleanupObligation;
 import edu.umd.cs.findbugs.annotations.CreatesObligation;
 import edu.umd.cs.findbugs.annotations.DischargesObligation;
 import net.java.trueupdate.artifact.spec.ArtifactDescriptor;
-import net.java.trueupdate.core.io.*;
 import net.java.trueupdate.jaxrs.client.UpdateClient;
 import net.java.trueupdate.manager.spec.*;
 import net.java.trueupdate.manager.spec.cmd.*;
@@ -100,7 +99,7 @@ abstract class CoreUpdateResolver {
             @Override protected void doPerform() throws Exception {
                 final ArtifactDescriptor ad = descriptor.artifactDescriptor();
                 final String uv = descriptor.updateVersion();
-                Copy.copy(updateClient().diff(ad, uv), new FileStore(deltaZip));
+                updateClient().download(ad, uv, deltaZip);
             }
 
             @Override protected void doRevert() throws Exception {
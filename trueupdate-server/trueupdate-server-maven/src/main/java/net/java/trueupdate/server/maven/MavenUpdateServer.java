@@ -4,28 +4,66 @@
  */
 package net.java.trueupdate.server.maven;
 
+import java.io.Closeable;
+import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
 import javax.annotation.concurrent.Immutable;
 import javax.ws.rs.Path;
 import net.java.trueupdate.artifact.spec.ArtifactResolver;
 import net.java.trueupdate.jaxrs.server.AbstractUpdateServer;
+import net.java.trueupdate.jaxrs.server.DeltaCache;
+import net.java.trueupdate.jaxrs.server.DeltaPrecomputer;
+import net.java.trueupdate.jaxrs.server.VersionCache;
 
 /**
  * An artifact update server which uses a maven artifact resolver.
  * For best performance, this should be used like a singleton
  * - see {@link MavenUpdateServerApplication}.
+ * When the application gets stopped, e.g. when it gets redeployed, then the
+ * server needs to get {@linkplain #close closed}.
  *
  * @author Christian Schlichtherle
  */
 @Path("/")
 @Immutable
-public final class MavenUpdateServer extends AbstractUpdateServer {
+public final class MavenUpdateServer extends AbstractUpdateServer
+implements Closeable {
 
     private final ArtifactResolver artifactResolver;
+    private final @Nullable DeltaCache deltaCache;
+    private final @Nullable DeltaPrecomputer deltaPrecomputer;
+    private final @Nullable VersionCache versionCache;
 
     public MavenUpdateServer() {
-        artifactResolver = MavenUpdateServerParameters.load().artifactResolver();
+        final MavenUpdateServerParameters
+                parameters = MavenUpdateServerParameters.load();
+        artifactResolver = parameters.artifactResolver();
+        deltaCache = parameters.deltaCache();
+        deltaPrecomputer = parameters.deltaPrecomputer();
+        versionCache = parameters.versionCache();
     }
 
     @Override
     protected ArtifactResolver artifactResolver() { return artifactResolver; }
+
+    @Override
+    protected @Nullable DeltaCache deltaCache() { return deltaCache; }
+
+    @Override
+    protected @Nullable DeltaPrecomputer deltaPrecomputer() {
+        return deltaPrecomputer;
+    }
+
+    @Override
+    protected @Nullable VersionCache versionCache() { return versionCache; }
+
+    /**
+     * Stops the background threads of the delta precomputer, if any.
+     * This method gets called by the JAX-RS implementation when it destroys
+     * the application.
+     */
+    @PreDestroy
+    @Override public void close() {
+        if (null != deltaPrecomputer) deltaPrecomputer.close();
+    }
 }
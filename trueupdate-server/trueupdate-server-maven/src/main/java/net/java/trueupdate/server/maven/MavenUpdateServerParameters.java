@@ -4,17 +4,28 @@
  */
 package net.java.trueupdate.server.maven;
 
+import java.io.File;
 import java.net.URL;
 import java.util.Locale;
 import java.util.ServiceConfigurationError;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.*;
 import javax.annotation.concurrent.Immutable;
 import javax.xml.bind.JAXB;
 import net.java.trueupdate.artifact.maven.*;
 import net.java.trueupdate.artifact.spec.ArtifactResolver;
+import net.java.trueupdate.jaxrs.server.DeltaCache;
+import net.java.trueupdate.jaxrs.server.DeltaPrecomputer;
+import net.java.trueupdate.jaxrs.server.VersionCache;
+import net.java.trueupdate.server.maven.ci.DeltaCacheParametersCi;
+import net.java.trueupdate.server.maven.ci.DeltaPrecomputationParametersCi;
 import net.java.trueupdate.server.maven.ci.MavenUpdateServerParametersCi;
+import net.java.trueupdate.server.maven.ci.VersionCacheParametersCi;
 import net.java.trueupdate.util.builder.AbstractBuilder;
 
+import static net.java.trueupdate.util.Objects.nonNullOr;
+import static net.java.trueupdate.util.SystemProperties.resolve;
+
 /**
  * Maven update server parameters.
  *
@@ -26,9 +37,28 @@ public final class MavenUpdateServerParameters {
     private static final String CONFIGURATION = "update/server.xml";
 
     private final ArtifactResolver artifactResolver;
+    private final @CheckForNull DeltaCache deltaCache;
+    private final @CheckForNull DeltaPrecomputer deltaPrecomputer;
+    private final @CheckForNull VersionCache versionCache;
 
     MavenUpdateServerParameters(final Builder<?> b) {
         this.artifactResolver = new MavenArtifactResolver(b.mavenParameters);
+        this.deltaCache = b.deltaCache;
+        this.deltaPrecomputer = null == b.deltaCache
+                || null == b.precomputedVersions
+                || 0 == b.precomputedVersions
+                ? null
+                : new DeltaPrecomputer(artifactResolver, b.deltaCache,
+                        b.precomputedVersions,
+                        nonNullOr(b.precomputationThreads, 1),
+                        nonNullOr(b.precomputationPeriod, 5L),
+                        nonNullOr(b.precomputationUnit, TimeUnit.MINUTES));
+        final long versionCacheTtl = nonNullOr(b.versionCacheTtl, 10L);
+        this.versionCache = 0 == versionCacheTtl
+                ? null
+                : new VersionCache(versionCacheTtl,
+                        nonNullOr(b.versionCacheUnit, TimeUnit.SECONDS),
+                        nonNullOr(b.versionCacheEntries, 10000));
     }
 
     /**
@@ -61,6 +91,27 @@ public final class MavenUpdateServerParameters {
     /** Returns the artifact resolver. */
     public ArtifactResolver artifactResolver() { return artifactResolver; }
 
+    /**
+     * Returns the cache for delta ZIP files or {@code null} if delta ZIP
+     * files shall not get cached.
+     */
+    public @Nullable DeltaCache deltaCache() { return deltaCache; }
+
+    /**
+     * Returns the precomputer for delta ZIP files or {@code null} if delta
+     * ZIP files shall not get precomputed.
+     * This is {@code null} if the delta cache is {@code null}.
+     */
+    public @Nullable DeltaPrecomputer deltaPrecomputer() {
+        return deltaPrecomputer;
+    }
+
+    /**
+     * Returns the cache for update versions or {@code null} if update
+     * versions shall get resolved for each request.
+     */
+    public @Nullable VersionCache versionCache() { return versionCache; }
+
     /**
      * A builder for maven update server parameters.
      *
@@ -70,14 +121,49 @@ public final class MavenUpdateServerParameters {
     public static class Builder<P> extends AbstractBuilder<P> {
 
         @CheckForNull MavenParameters mavenParameters;
+        @CheckForNull DeltaCache deltaCache;
+        @CheckForNull Integer precomputedVersions, precomputationThreads;
+        @CheckForNull Long precomputationPeriod;
+        @CheckForNull TimeUnit precomputationUnit;
+        @CheckForNull Long versionCacheTtl;
+        @CheckForNull TimeUnit versionCacheUnit;
+        @CheckForNull Integer versionCacheEntries;
 
         protected Builder() { }
 
         /** Selectively parses the given configuration item. */
         public final Builder<P> parse(final MavenUpdateServerParametersCi ci) {
-            return null == ci.repositories
-                    ? this
-                    : mavenParameters(MavenParameters.parse(ci.repositories));
+            if (null != ci.repositories)
+                mavenParameters(MavenParameters.parse(ci.repositories));
+            if (null != ci.cache) {
+                deltaCache(deltaCache(ci.cache));
+                if (null != ci.cache.precomputation)
+                    parse(ci.cache.precomputation);
+            }
+            if (null != ci.versionCache) parse(ci.versionCache);
+            return this;
+        }
+
+        private void parse(final DeltaPrecomputationParametersCi ci) {
+            precomputedVersions(Integer.valueOf(resolve(ci.versions, "3")));
+            precomputationThreads(Integer.valueOf(resolve(ci.threads, "1")));
+            precomputationPeriod(Long.valueOf(resolve(ci.period, "5")));
+            precomputationUnit(TimeUnit.valueOf(
+                    resolve(ci.unit, "minutes").toUpperCase(Locale.ENGLISH)));
+        }
+
+        private void parse(final VersionCacheParametersCi ci) {
+            versionCacheTtl(Long.valueOf(resolve(ci.ttl, "10")));
+            versionCacheUnit(TimeUnit.valueOf(
+                    resolve(ci.unit, "seconds").toUpperCase(Locale.ENGLISH)));
+            versionCacheEntries(Integer.valueOf(
+                    resolve(ci.maxEntries, "10000")));
+        }
+
+        private static DeltaCache deltaCache(final DeltaCacheParametersCi ci) {
+            return new DeltaCache(
+                    new File(resolve(ci.directory)),
+                    Long.parseLong(resolve(ci.maxSize, "1073741824")));
         }
 
         public final Builder<P> mavenParameters(
@@ -86,6 +172,65 @@ public final class MavenUpdateServerParameters {
             return this;
         }
 
+        public final Builder<P> deltaCache(
+                final @Nullable DeltaCache deltaCache) {
+            this.deltaCache = deltaCache;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of deployed versions of each artifact to
+         * precompute delta ZIP files for.
+         * Zero or {@code null} disables precomputation.
+         * Precomputation requires a delta cache.
+         */
+        public final Builder<P> precomputedVersions(
+                final @Nullable Integer precomputedVersions) {
+            this.precomputedVersions = precomputedVersions;
+            return this;
+        }
+
+        public final Builder<P> precomputationThreads(
+                final @Nullable Integer precomputationThreads) {
+            this.precomputationThreads = precomputationThreads;
+            return this;
+        }
+
+        public final Builder<P> precomputationPeriod(
+                final @Nullable Long precomputationPeriod) {
+            this.precomputationPeriod = precomputationPeriod;
+            return this;
+        }
+
+        public final Builder<P> precomputationUnit(
+                final @Nullable TimeUnit precomputationUnit) {
+            this.precomputationUnit = precomputationUnit;
+            return this;
+        }
+
+        /**
+         * Sets the time to live for cached update versions.
+         * Zero disables caching update versions.
+         * {@code null} selects the default value of ten seconds.
+         */
+        public final Builder<P> versionCacheTtl(
+                final @Nullable Long versionCacheTtl) {
+            this.versionCacheTtl = versionCacheTtl;
+            return this;
+        }
+
+        public final Builder<P> versionCacheUnit(
+                final @Nullable TimeUnit versionCacheUnit) {
+            this.versionCacheUnit = versionCacheUnit;
+            return this;
+        }
+
+        public final Builder<P> versionCacheEntries(
+                final @Nullable Integer versionCacheEntries) {
+            this.versionCacheEntries = versionCacheEntries;
+            return this;
+        }
+
         @Override public final MavenUpdateServerParameters build() {
             return new MavenUpdateServerParameters(this);
         }
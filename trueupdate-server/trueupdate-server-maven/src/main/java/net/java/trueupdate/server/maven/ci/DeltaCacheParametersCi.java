@@ -0,0 +1,25 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.server.maven.ci;
+
+import javax.xml.bind.annotation.*;
+
+/**
+ * Represents delta cache parameters.
+ *
+ * @author Christian Schlichtherle
+ */
+@XmlType(name = "DeltaCacheParameters", propOrder = { })
+@SuppressWarnings("PublicField")
+public final class DeltaCacheParametersCi {
+
+    @XmlElement(required = true)
+    public String directory;
+
+    @XmlElement(defaultValue = "1073741824")
+    public String maxSize;
+
+    public DeltaPrecomputationParametersCi precomputation;
+}
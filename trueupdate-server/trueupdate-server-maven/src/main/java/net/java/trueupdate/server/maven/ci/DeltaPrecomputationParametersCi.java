@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.server.maven.ci;
+
+import javax.xml.bind.annotation.*;
+
+/**
+ * Represents delta precomputation parameters.
+ *
+ * @author Christian Schlichtherle
+ */
+@XmlType(name = "DeltaPrecomputationParameters", propOrder = { })
+@SuppressWarnings("PublicField")
+public final class DeltaPrecomputationParametersCi {
+
+    @XmlElement(defaultValue = "3")
+    public String versions;
+
+    @XmlElement(defaultValue = "1")
+    public String threads;
+
+    @XmlElement(defaultValue = "5")
+    public String period;
+
+    @XmlElement(defaultValue = "minutes")
+    public String unit;
+}
@@ -23,4 +23,8 @@ public final class MavenUpdateServerParametersCi {
 
     @XmlElement(required = true)
     public MavenParametersCi repositories;
+
+    public DeltaCacheParametersCi cache;
+
+    public VersionCacheParametersCi versionCache;
 }
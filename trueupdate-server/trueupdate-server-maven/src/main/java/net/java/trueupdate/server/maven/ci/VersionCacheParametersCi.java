@@ -0,0 +1,26 @@
+/*
+ * Copyright (C) 2013 Schlichtherle IT Services & Stimulus Software.
+ * All rights reserved. Use is subject to license terms.
+ */
+package net.java.trueupdate.server.maven.ci;
+
+import javax.xml.bind.annotation.*;
+
+/**
+ * Represents version cache parameters.
+ *
+ * @author Christian Schlichtherle
+ */
+@XmlType(name = "VersionCacheParameters", propOrder = { })
+@SuppressWarnings("PublicField")
+public final class VersionCacheParametersCi {
+
+    @XmlElement(defaultValue = "10")
+    public String ttl;
+
+    @XmlElement(defaultValue = "seconds")
+    public String unit;
+
+    @XmlElement(defaultValue = "10000")
+    public String maxEntries;
+}